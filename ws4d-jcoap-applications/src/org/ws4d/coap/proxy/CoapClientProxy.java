@@ -32,13 +32,23 @@ public class CoapClientProxy implements CoapClient{
 	static Logger logger = Logger.getLogger(Proxy.class);
 	ProxyMapper mapper = ProxyMapper.getInstance();
 	static final boolean RELIABLE = true; //use CON as client (NON has no timeout!!!)
+	/* statistics */
+	private final ProxyMetrics.Counter requestCount = mapper.getMetrics().counter("coap-client.requests");
+	private final ProxyMetrics.Counter responseCount = mapper.getMetrics().counter("coap-client.responses");
+	private final ProxyMetrics.Counter notificationCount = mapper.getMetrics().counter("coap-client.notifications");
+	private final ProxyMetrics.Counter failureCount = mapper.getMetrics().counter("coap-client.failures");
 	
 
 	/* creates a client channel and stores it in the context*/
 	public void createChannel(ProxyMessageContext context){
 		// create channel
 		CoapClientChannel channel;
-		channel = BasicCoapChannelManager.getInstance().connect(this, context.getServerAddress(), context.getServerPort());
+		if (context.getClusterPeer() != null) {
+			/* the owner of the resource in the proxy cluster */
+			channel = BasicCoapChannelManager.getInstance().connect(this, context.getClusterPeer().getAddress(), context.getClusterPeer().getPort());
+		} else {
+			channel = BasicCoapChannelManager.getInstance().connect(this, context.getServerAddress(), context.getServerPort());
+		}
 		if (channel != null) {
 			channel.setTrigger(context);
 			context.setOutCoapClientChannel(channel);
@@ -53,13 +63,33 @@ public class CoapClientProxy implements CoapClient{
 	
 	
 	public void sendRequest(ProxyMessageContext context) {
-		context.getOutCoapRequest().getChannel().sendMessage(context.getOutCoapRequest());
+		ProxyResponseFuture future = context.getResponseFuture();
+		if (future != null) {
+			/* the thread of the request waits for the response */
+			future.arm();
+		}
+		try {
+			context.getOutCoapRequest().getChannel().sendMessage(context.getOutCoapRequest());
+		} catch (RuntimeException e) {
+			if (future != null) {
+				future.disarm();
+			}
+			throw e;
+		}
+		requestCount.increment();
 	}
 		
 	@Override
 	public void onResponse(CoapClientChannel channel, CoapResponse response) {
 		ProxyMessageContext context = (ProxyMessageContext) channel.getTrigger();
+		if (context != null && context.isObserve()) {
+			/* the channel stays open for further notifications */
+			notificationCount.increment();
+			mapper.getObserveRelay().handleNotification(context, response);
+			return;
+		}
 		channel.close();
+		responseCount.increment();
 		if (context != null) {
 			context.setInCoapResponse(response);
 			mapper.handleCoapClientResponse(context);
@@ -70,9 +100,15 @@ public class CoapClientProxy implements CoapClient{
 	public void onConnectionFailed(CoapClientChannel channel, boolean notReachable, boolean resetByServer) {
 		ProxyMessageContext context = (ProxyMessageContext) channel.getTrigger();
 		channel.close();
+		failureCount.increment();
+		if (context != null && context.isObserve()) {
+			mapper.getObserveRelay().handleFailure(context);
+			return;
+		}
 		if (context != null) {
 			logger.warn("Coap client connection failed (e.g., timeout)!");
 			context.setInCoapResponse(null); // null indicates no response
+			context.setConnectionFailed(true);
 			mapper.handleCoapClientResponse(context);
 		}
 	}
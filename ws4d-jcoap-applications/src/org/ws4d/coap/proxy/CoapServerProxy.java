@@ -42,7 +42,7 @@ import org.ws4d.coap.messages.CoapResponseCode;
 public class CoapServerProxy implements CoapServer{
 	static Logger logger = Logger.getLogger(Proxy.class);
 	
-    private static final int LOCAL_PORT = 5683;					//port on which the server is listening
+    static final int DEFAULT_LOCAL_PORT = 5683;					//port on which the server is listening
     ProxyMapper mapper = ProxyMapper.getInstance();
     
     //coapOUTq_ receives a coap-response from mapper in case of coap-http
@@ -52,16 +52,27 @@ public class CoapServerProxy implements CoapServer{
     
     //constructor of coapserver-class, initiates the jcoap-components and starts CoapSender
     public CoapServerProxy() {
+        this(DEFAULT_LOCAL_PORT);
+    }
 
+    public CoapServerProxy(int localPort) {
         channelManager = BasicCoapChannelManager.getInstance();
-        channelManager.createServerListener(this, LOCAL_PORT);
+        channelManager.createServerListener(this, localPort);
     }
     
+    /* sends the response on a thread of the egress stage */
+    private final ProxyPipeline.Handler sender = new ProxyPipeline.Handler() {
+		@Override
+		public void handle(ProxyMessageContext context) {
+			CoapServerChannel channel = (CoapServerChannel) context.getInCoapRequest().getChannel();
+			channel.sendMessage(context.getOutCoapResponse());
+			channel.close(); //TODO: implement strategy when to close a channel
+		}
+	};
+
     //interface-function for the message-queue
     public void sendResponse(ProxyMessageContext context) {
-		CoapServerChannel channel = (CoapServerChannel) context.getInCoapRequest().getChannel();
-		channel.sendMessage(context.getOutCoapResponse());
-		channel.close(); //TODO: implement strategy when to close a channel
+		mapper.getPipeline().egress(context, sender);
     }
 
     @Override
@@ -124,24 +135,8 @@ public class CoapServerProxy implements CoapServer{
 				return;
 			}
 
-			/* parse URL */
-			InetAddress serverAddress = InetAddress.getByName(proxyUri.getHost());
-			int serverPort = proxyUri.getPort();
-			if (serverPort == -1) {
-				if (translate) {
-					/* HTTP Server */
-					serverPort = 80; // FIXME: use constant for HTTP well known
-										// port
-				} else {
-					/* CoAP Server */
-					serverPort = org.ws4d.coap.Constants.COAP_DEFAULT_PORT;
-				}
-			}
-			/* generate context and forward message */
-			ProxyMessageContext context = new ProxyMessageContext(request, translate, proxyUri);
-			context.setServerAddress(serverAddress, serverPort);
-			context.setOutCoapResponse(response);
-			mapper.handleCoapServerRequest(context);
+			/* parse URL, the host name is resolved off the I/O thread */
+			resolve(channel, request, response, proxyUri, translate);
 		} catch (Exception e) {
 			logger.warn("invalid message");
 			channel.sendMessage(channel.createResponse(request, CoapResponseCode.Bad_Request_400));
@@ -150,9 +145,50 @@ public class CoapServerProxy implements CoapServer{
 
 	}
 
+	private void resolve(final CoapServerChannel channel, final CoapRequest request, final BasicCoapResponse response,
+			final URI proxyUri, final boolean translate) {
+		mapper.getResolver().resolve(proxyUri.getHost(), new ProxyResolver.Callback() {
+			@Override
+			public void resolved(InetAddress serverAddress) {
+				int serverPort = proxyUri.getPort();
+				if (serverPort == -1) {
+					if (translate) {
+						/* HTTP Server */
+						serverPort = 80; // FIXME: use constant for HTTP well known
+											// port
+					} else {
+						/* CoAP Server */
+						serverPort = org.ws4d.coap.Constants.COAP_DEFAULT_PORT;
+					}
+				}
+				/* runs on a resolver thread, onRequest() can no longer catch a failure */
+				try {
+					/* generate context and forward message */
+					ProxyMessageContext context = new ProxyMessageContext(request, translate, proxyUri);
+					context.setServerAddress(serverAddress, serverPort);
+					context.setClientAddress(channel.getRemoteAddress(), channel.getRemotePort());
+					context.setOutCoapResponse(response);
+					mapper.handleCoapServerRequest(context);
+				} catch (RuntimeException e) {
+					logger.warn("CoAP request failed: " + e.getMessage());
+					channel.sendMessage(channel.createResponse(request, CoapResponseCode.Internal_Server_Error_500));
+					channel.close();
+				}
+			}
+
+			@Override
+			public void failed(UnknownHostException e) {
+				logger.warn("cannot resolve " + proxyUri.getHost() + ": " + e.getMessage());
+				channel.sendMessage(channel.createResponse(request, CoapResponseCode.Bad_Gateway_502));
+				channel.close();
+			}
+		});
+	}
+
 	@Override
 	public void onSeparateResponseFailed(CoapServerChannel channel) {
-		// TODO Auto-generated method stub
+		/* only notifications are sent separately */
+		mapper.getObserveRelay().removeObserver(channel);
 	}
    
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+/**
+ * Count-min sketch with 4-bit counters used as TinyLFU frequency estimator.
+ * Every counter is halved after sampleSize increments, so the estimate
+ * reflects the recent popularity of a key.
+ * This class is not thread safe, callers must synchronize.
+ */
+class FrequencySketch {
+	private static final long[] SEEDS = {
+		0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final int MAX_COUNT = 15;
+
+	private final long[] table;
+	private final int tableMask;
+	private final int sampleSize;
+	private int additions = 0;
+
+	public FrequencySketch(int expectedEntries) {
+		int size = 1;
+		while (size < Math.max(expectedEntries, 16)) {
+			size <<= 1;
+		}
+		/* one long holds 16 counters */
+		table = new long[size];
+		tableMask = size - 1;
+		sampleSize = 10 * size;
+	}
+
+	public int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		int frequency = MAX_COUNT;
+		for (int i = 0; i < 4; i++) {
+			int index = indexOf(hash, i);
+			int offset = offsetOf(hash, i);
+			int count = (int) ((table[index] >>> offset) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	public void increment(Object key) {
+		int hash = spread(key.hashCode());
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			int index = indexOf(hash, i);
+			int offset = offsetOf(hash, i);
+			if (((table[index] >>> offset) & 0xfL) < MAX_COUNT) {
+				table[index] += (1L << offset);
+				added = true;
+			}
+		}
+		if (added && (++additions == sampleSize)) {
+			reset();
+		}
+	}
+
+	/* aging: halve all counters */
+	void reset() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		additions = additions / 2;
+	}
+
+	private int indexOf(int hash, int depth) {
+		long h = (hash + SEEDS[depth]) * SEEDS[depth];
+		h += h >>> 32;
+		return ((int) h) & tableMask;
+	}
+
+	/* each depth uses its own group of four counters inside a long */
+	private int offsetOf(int hash, int depth) {
+		return (((hash >>> (depth << 3)) & 3) << 2) + (depth << 4);
+	}
+
+	static int spread(int hash) {
+		hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+		hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+		return (hash >>> 16) ^ hash;
+	}
+}
@@ -37,6 +37,11 @@ public class HttpClientNIO extends Thread {
 	static Logger logger = Logger.getLogger(Proxy.class);
 	ProxyMapper mapper = ProxyMapper.getInstance();
 	HttpAsyncClient httpClient;
+	/* statistics */
+	private final ProxyMetrics.Counter requestCount = mapper.getMetrics().counter("http-client.requests");
+	private final ProxyMetrics.Counter responseCount = mapper.getMetrics().counter("http-client.responses");
+	private final ProxyMetrics.Counter failureCount = mapper.getMetrics().counter("http-client.failures");
+	private final ProxyMetrics.Counter cancelCount = mapper.getMetrics().counter("http-client.cancelled");
 
 	public HttpClientNIO() {
 		try {
@@ -56,7 +61,20 @@ public class HttpClientNIO extends Thread {
 		logger.info("send HTTP request");
 		ProxyHttpFutureCallback fc = new ProxyHttpFutureCallback();
 		fc.setContext(context);
-		httpClient.execute(context.getOutHttpRequest(), fc);
+		ProxyResponseFuture future = context.getResponseFuture();
+		if (future != null) {
+			/* the thread of the request waits for the response */
+			future.arm();
+		}
+		try {
+			httpClient.execute(context.getOutHttpRequest(), fc);
+		} catch (RuntimeException e) {
+			if (future != null) {
+				future.disarm();
+			}
+			throw e;
+		}
+		requestCount.increment();
 	}
 	
 	private class ProxyHttpFutureCallback implements FutureCallback<HttpResponse>{
@@ -68,6 +86,7 @@ public class HttpClientNIO extends Thread {
 
 		// this is called when response is received
 		public void completed(final HttpResponse response) {
+			responseCount.increment();
 			if (context != null) {
 				context.setInHttpResponse(response);
 				mapper.handleHttpClientResponse(context);
@@ -76,14 +95,17 @@ public class HttpClientNIO extends Thread {
 
 		public void failed(final Exception ex) {
 			logger.warn("HTTP client request failed");
+			failureCount.increment();
 			if (context != null) {
 				context.setInHttpResponse(new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_NOT_FOUND, ex.getMessage()));
+				context.setConnectionFailed(true);
 				mapper.handleHttpClientResponse(context);
 			}
 		}
 
 		public void cancelled() {
 			logger.warn("HTTP Client Request cancelled");
+			cancelCount.increment();
 			if (context != null) {
 				/* null indicates no response */
 				context.setInHttpResponse(new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_INTERNAL_SERVER_ERROR, "http connection canceled"));
@@ -22,9 +22,11 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.net.UnknownHostException;
 
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
+import org.apache.http.HttpInetConnection;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpResponseInterceptor;
@@ -46,6 +48,7 @@ import org.apache.http.params.CoreConnectionPNames;
 import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.SyncBasicHttpParams;
+import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpProcessor;
 import org.apache.http.protocol.ImmutableHttpProcessor;
@@ -62,15 +65,38 @@ import org.apache.log4j.Logger;
 
 public class HttpServerNIO extends Thread{
 	static Logger logger = Logger.getLogger(Proxy.class);
-	static private int PORT = 8080;
+	static final int DEFAULT_PORT = 8080;
+	private final int port;
 	
 	ProxyMapper mapper = ProxyMapper.getInstance();
+	/* statistics */
+	private final ProxyMetrics.Counter requestCount = mapper.getMetrics().counter("http-server.requests");
+	private final ProxyMetrics.Counter responseCount = mapper.getMetrics().counter("http-server.responses");
+	private final ProxyMetrics.Counter badRequestCount = mapper.getMetrics().counter("http-server.bad-requests");
+	private final ProxyMetrics.Counter unknownHostCount = mapper.getMetrics().counter("http-server.unknown-hosts");
+	
+	public HttpServerNIO() {
+		this(DEFAULT_PORT);
+	}
+	
+	public HttpServerNIO(int port) {
+		this.port = port;
+	}
+	
+	/* submits the response on a thread of the egress stage */
+	private final ProxyPipeline.Handler sender = new ProxyPipeline.Handler() {
+		@Override
+		public void handle(ProxyMessageContext context) {
+	    	HttpResponse httpResponse = context.getOutHttpResponse();
+	    	NHttpResponseTrigger trigger = context.getTrigger();
+	   		trigger.submitResponse(httpResponse);
+	   		responseCount.increment();
+		}
+	};
 	
 	//interface-function for other classes/modules
 	public void sendResponse(ProxyMessageContext context) {
-    	HttpResponse httpResponse = context.getOutHttpResponse();
-    	NHttpResponseTrigger trigger = context.getTrigger();
-   		trigger.submitResponse(httpResponse);
+		mapper.getPipeline().egress(context, sender);
 	}
 	
 	public void run() {
@@ -110,7 +136,7 @@ public class HttpServerNIO extends Thread{
 
 			IOEventDispatch ioeventdispatch = new DefaultServerIOEventDispatch(handler, params);
 
-			ioReactor.listen(new InetSocketAddress(PORT));
+			ioReactor.listen(new InetSocketAddress(port));
 			ioReactor.execute(ioeventdispatch);
 			
 		} catch (IOReactorException e) {
@@ -121,7 +147,7 @@ public class HttpServerNIO extends Thread{
 	}
 
 	
-	static class ProxyHttpRequestHandler implements NHttpRequestHandler  {
+	class ProxyHttpRequestHandler implements NHttpRequestHandler  {
 
 
         public ProxyHttpRequestHandler() {
@@ -143,19 +169,43 @@ public class HttpServerNIO extends Thread{
 				final NHttpResponseTrigger trigger, HttpContext con)
 				throws HttpException, IOException {
 			logger.info("incomming HTTP request");
-			URI uri = ProxyMapper.resolveHttpRequestUri(request);
+			requestCount.increment();
+			final URI uri = ProxyMapper.resolveHttpRequestUri(request);
 			if (uri != null){
-				InetAddress serverAddress = InetAddress.getByName(uri.getHost()); //FIXME: blocking operation??? 
-				int serverPort = uri.getPort();
-				if (serverPort == -1) {
-					serverPort = org.ws4d.coap.Constants.COAP_DEFAULT_PORT;
-				}
-				/* translate always */
-				ProxyMessageContext context = new ProxyMessageContext(request, true, uri, trigger);
-				context.setServerAddress(serverAddress, serverPort);
-				ProxyMapper.getInstance().handleHttpServerRequest(context); 
+				final Object connection = con.getAttribute(ExecutionContext.HTTP_CONNECTION);
+				/* the host name is resolved off the I/O thread */
+				ProxyMapper.getInstance().getResolver().resolve(uri.getHost(), new ProxyResolver.Callback() {
+					@Override
+					public void resolved(InetAddress serverAddress) {
+						int serverPort = uri.getPort();
+						if (serverPort == -1) {
+							serverPort = org.ws4d.coap.Constants.COAP_DEFAULT_PORT;
+						}
+						/* runs on a resolver thread, the I/O reactor can no longer answer a failure */
+						try {
+							/* translate always */
+							ProxyMessageContext context = new ProxyMessageContext(request, true, uri, trigger);
+							context.setServerAddress(serverAddress, serverPort);
+							if (connection instanceof HttpInetConnection) {
+								context.setClientAddress(((HttpInetConnection) connection).getRemoteAddress(), ((HttpInetConnection) connection).getRemotePort());
+							}
+							ProxyMapper.getInstance().handleHttpServerRequest(context);
+						} catch (RuntimeException e) {
+							logger.warn("HTTP request failed: " + e.getMessage());
+							trigger.submitResponse(new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_INTERNAL_SERVER_ERROR, "Internal Server Error"));
+						}
+					}
+
+					@Override
+					public void failed(UnknownHostException e) {
+						logger.warn("cannot resolve " + uri.getHost() + ": " + e.getMessage());
+						trigger.submitResponse(new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_BAD_GATEWAY, "Unknown Host"));
+						unknownHostCount.increment();
+					}
+				});
 			} else {
 				trigger.submitResponse(new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_BAD_REQUEST, "Bad Header: Host"));
+				badRequestCount.increment();
 			}
 		}
     }
@@ -18,6 +18,14 @@
  */
 package org.ws4d.coap.proxy;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.GnuParser;
@@ -44,14 +52,39 @@ public class Proxy {
 		Options options = new Options();
 		/* Add command line options */
 		options.addOption("c", "default-cache-time", true, "Default caching time in seconds");
+		options.addOption("s", "cache-size", true, "Maximum cache size in kilobytes (payload and metadata)");
+		options.addOption("l", "cache-concurrency", true, "Number of lock segments of the cache");
+		options.addOption("g", "stale-grace", true, "Serve expired cache entries for this time in seconds while they are refreshed (0 disables)");
+		options.addOption("r", "refresh-ahead", true, "Refresh cache entries before they expire if they are accessed at least this often per second (0 disables)");
+		options.addOption("o", "off-heap", false, "Store cached payloads in off-heap memory");
+		options.addOption("z", "compress-threshold", true, "Compress cached payloads of at least this many bytes with Deflate (e.g. " + ProxyPayloadCompressor.DEFAULT_THRESHOLD + ")");
+		options.addOption("y", "cache-time-policy", true, "Expiry of cached responses relative to the request, the response, halfway between them (default) or adapted to the round trip times of the origin, optionally followed by policies of path prefixes (e.g. halftime,/sensors=adaptive)");
+		options.addOption("t", "request-timeout", true, "Answer with a gateway timeout if the server does not respond within this time in seconds (0 disables)");
+		options.addOption("n", "negative-ttl", true, "Answer requests to failed resources and unreachable servers for this time in seconds with the same error (0 disables)");
+		options.addOption("q", "origin-quota", true, "Maximum cache size per origin server in kilobytes, optionally followed by quotas of single servers (e.g. 64,10.0.0.5:5683=256)");
+		options.addOption("d", "origin-limit", true, "Maximum pending requests per origin server, optionally followed by limits of single servers (e.g. 8,10.0.0.5:5683=2), further requests are queued or answered with 5.03/503 (0 disables)");
+		options.addOption("j", "origin-queue", true, "Number of requests queued per busy origin server (default " + ProxyOriginLimiter.DEFAULT_QUEUE_SIZE + ")");
+		options.addOption("O", "origin-rate", true, "Requests per second (and burst) sent to each origin server for cache misses, further requests are answered with 429/5.03 (e.g. 5/10, 0 disables)");
+		options.addOption("C", "client-rate", true, "Requests per second (and burst) of each client that miss the cache (e.g. 20/40, 0 disables)");
+		options.addOption("H", "client-hit-rate", true, "Requests per second (and burst) of each client that are served from the cache (e.g. 100/200, 0 disables)");
+		options.addOption("a", "admission-threshold", true, "Cache a resource only after this many misses within a minute (1 caches every response)");
+		options.addOption("m", "invalidation-group", true, "Send and receive cache invalidations of other proxy instances on this multicast group (address[:port])");
+		options.addOption("e", "invalidation-interface", true, "Network interface of the invalidation group (e.g., lo for tests on one host)");
+		options.addOption("T", "resolver-ttl", true, "Cache resolved host names for this time in seconds, optionally followed by the time for unknown hosts (e.g. 30,10, default TTLs of the JVM)");
+		options.addOption("p", "coap-port", true, "CoAP port of the proxy (default 5683), the statistic resource uses the next port");
+		options.addOption("w", "http-port", true, "HTTP port of the proxy (default 8080)");
+		options.addOption("k", "cluster-peers", true, "Partition the cache between these proxies (comma separated address:coap-port list of all members, the same on all members)");
+		options.addOption("x", "stage-threads", true, "Number of threads of each pipeline stage (lookup, translate, egress), default " + ProxyPipeline.DEFAULT_THREADS);
+		options.addOption("b", "stage-queue", true, "Queue capacity of each pipeline stage, requests beyond it are answered with 5.03/503 (default " + ProxyPipeline.DEFAULT_QUEUE_CAPACITY + ")");
+		options.addOption("v", "thread-per-request", true, "Process each request on its own thread, which waits for the response of the origin server, with at most this many threads (0 uses the pipeline stages)");
+		options.addOption("u", "inline-cache-hits", false, "Answer cache hits on the I/O thread that received the request");
+		options.addOption("f", "snapshot-file", true, "Restore the cache from this file on startup and write it on shutdown");
+		options.addOption("i", "snapshot-interval", true, "Also write the cache snapshot every this many seconds");
 		CommandLine cmd = null;
 		try {
 			cmd = cmdParser.parse(options, args);
 		} catch (ParseException e) {
-			System.out.println( "Unexpected exception:" + e.getMessage() );
-			HelpFormatter formatter = new HelpFormatter();
-			formatter.printHelp( "jCoAP-Proxy", options );
-			System.exit(-1);
+			exitWithUsage(options, e);
 		}
 		
 		/* evaluate command line */
@@ -63,22 +96,322 @@ public class Proxy {
 				}
 				System.out.println("Set caching time to " + cmd.getOptionValue("c") + " seconds (0 disables the cache)");
 			} catch (NumberFormatException e) {
-				System.out.println( "Unexpected exception:" + e.getMessage() );
-				HelpFormatter formatter = new HelpFormatter();
-				formatter.printHelp( "jCoAP-Proxy", options );
-				System.exit(-1);
+				exitWithUsage(options, e);
+			}
+		}
+		
+		if(cmd.hasOption("s") || cmd.hasOption("l")) {
+			try {
+				long cacheSize = ProxyCache.DEFAULT_MAX_BYTES;
+				int concurrencyLevel = ProxyCache.DEFAULT_CONCURRENCY_LEVEL;
+				if (cmd.hasOption("s")) {
+					cacheSize = Long.parseLong(cmd.getOptionValue("s")) * 1024;
+				}
+				if (cmd.hasOption("l")) {
+					concurrencyLevel = Integer.parseInt(cmd.getOptionValue("l"));
+				}
+				ProxyMapper.getInstance().setCacheCapacity(cacheSize, concurrencyLevel);
+				System.out.println("Set cache size to " + cacheSize / 1024 + " KB with " + concurrencyLevel + " segments");
+			} catch (IllegalArgumentException e) {
+				/* includes NumberFormatException */
+				exitWithUsage(options, e);
+			}
+		}
+		
+		if(cmd.hasOption("t")) {
+			try {
+				long timeout = Long.parseLong(cmd.getOptionValue("t"));
+				ProxyMapper.getInstance().setPendingTimeout(timeout * 1000);
+				System.out.println("Set request timeout to " + timeout + " seconds");
+			} catch (NumberFormatException e) {
+				exitWithUsage(options, e);
 			}
 		}
 		
+		if(cmd.hasOption("n")) {
+			try {
+				long negativeTtl = Long.parseLong(cmd.getOptionValue("n"));
+				ProxyMapper.getInstance().getNegativeCache().setTtl(negativeTtl * 1000);
+				System.out.println("Remember failed requests for " + negativeTtl + " seconds");
+			} catch (NumberFormatException e) {
+				exitWithUsage(options, e);
+			}
+		}
+		
+		if(cmd.hasOption("o")) {
+			ProxyMapper.getInstance().getCache().setOffHeap(true);
+			System.out.println("Store cached payloads off-heap");
+		}
+		
+		if(cmd.hasOption("y")) {
+			try {
+				ProxyCache cache = ProxyMapper.getInstance().getCache();
+				for (String rule : cmd.getOptionValue("y").split(",")) {
+					int assign = rule.indexOf('=');
+					ProxyCache.ProxyCacheTimePolicy policy = ProxyCache.ProxyCacheTimePolicy.parse(rule.substring(assign + 1));
+					if (policy == null) {
+						throw new IllegalArgumentException("unknown cache time policy: " + rule);
+					}
+					if (assign < 0) {
+						cache.setTimePolicy(policy);
+					} else {
+						cache.addTimePolicyRule(rule.substring(0, assign).trim(), policy);
+					}
+				}
+				System.out.println("Set cache time policy to " + cache.getTimePolicy() + " (path rules: " + cache.getTimePolicyRules() + ")");
+			} catch (IllegalArgumentException e) {
+				exitWithUsage(options, e);
+			}
+		}
+		
+		if(cmd.hasOption("z")) {
+			try {
+				int threshold = Integer.parseInt(cmd.getOptionValue("z"));
+				ProxyMapper.getInstance().getCache().setCompressionThreshold(threshold);
+				System.out.println("Compress cached payloads of at least " + threshold + " bytes");
+			} catch (IllegalArgumentException e) {
+				/* includes NumberFormatException */
+				exitWithUsage(options, e);
+			}
+		}
+		
+		if(cmd.hasOption("g")) {
+			try {
+				long staleGrace = Long.parseLong(cmd.getOptionValue("g"));
+				ProxyMapper.getInstance().getCache().setStaleGrace(staleGrace * 1000);
+				System.out.println("Serve stale cache entries for " + staleGrace + " seconds");
+			} catch (NumberFormatException e) {
+				exitWithUsage(options, e);
+			}
+		}
+		
+		if(cmd.hasOption("r")) {
+			try {
+				double refreshAheadRate = Double.parseDouble(cmd.getOptionValue("r"));
+				ProxyMapper.getInstance().getCache().setRefreshAheadRate(refreshAheadRate);
+				System.out.println("Refresh cache entries ahead of expiry if accessed at least " + refreshAheadRate + " times per second");
+			} catch (NumberFormatException e) {
+				exitWithUsage(options, e);
+			}
+		}
+		
+		if(cmd.hasOption("q")) {
+			try {
+				ProxyCacheStore store = ProxyMapper.getInstance().getCache().getStore();
+				for (String quota : cmd.getOptionValue("q").split(",")) {
+					int assign = quota.indexOf('=');
+					if (assign < 0) {
+						store.setOriginQuota(Long.parseLong(quota.trim()) * 1024);
+						continue;
+					}
+					String origin = quota.substring(0, assign).trim();
+					int colon = origin.lastIndexOf(':');
+					int port = org.ws4d.coap.Constants.COAP_DEFAULT_PORT;
+					if (colon > 0) {
+						port = Integer.parseInt(origin.substring(colon + 1));
+						origin = origin.substring(0, colon);
+					}
+					store.setOriginQuota(new InetSocketAddress(InetAddress.getByName(origin), port), Long.parseLong(quota.substring(assign + 1).trim()) * 1024);
+				}
+				System.out.println("Set cache quota per origin server to " + store.getOriginQuota() / 1024 + " KB");
+			} catch (IOException e) {
+				exitWithUsage(options, e);
+			} catch (IllegalArgumentException e) {
+				/* includes NumberFormatException */
+				exitWithUsage(options, e);
+			}
+		}
+		
+		if(cmd.hasOption("d")) {
+			try {
+				ProxyOriginLimiter limiter = ProxyMapper.getInstance().getOriginLimiter();
+				for (String limit : cmd.getOptionValue("d").split(",")) {
+					int assign = limit.indexOf('=');
+					if (assign < 0) {
+						limiter.setLimit(Integer.parseInt(limit.trim()));
+						continue;
+					}
+					String origin = limit.substring(0, assign).trim();
+					int colon = origin.lastIndexOf(':');
+					int port = org.ws4d.coap.Constants.COAP_DEFAULT_PORT;
+					if (colon > 0) {
+						port = Integer.parseInt(origin.substring(colon + 1));
+						origin = origin.substring(0, colon);
+					}
+					limiter.setLimit(new InetSocketAddress(InetAddress.getByName(origin), port), Integer.parseInt(limit.substring(assign + 1).trim()));
+				}
+				System.out.println("Set pending requests per origin server to " + limiter.getLimit());
+			} catch (IOException e) {
+				exitWithUsage(options, e);
+			} catch (IllegalArgumentException e) {
+				/* includes NumberFormatException */
+				exitWithUsage(options, e);
+			}
+		}
+		
+		if(cmd.hasOption("j")) {
+			try {
+				int queueSize = Integer.parseInt(cmd.getOptionValue("j"));
+				ProxyMapper.getInstance().getOriginLimiter().setQueueSize(queueSize);
+				System.out.println("Queue " + queueSize + " requests per busy origin server");
+			} catch (IllegalArgumentException e) {
+				/* includes NumberFormatException */
+				exitWithUsage(options, e);
+			}
+		}
+		
+		setRate(cmd, options, "O", ProxyMapper.getInstance().getOriginRateLimiter(), "cache misses per origin server");
+		setRate(cmd, options, "C", ProxyMapper.getInstance().getClientRateLimiter(), "cache misses per client");
+		setRate(cmd, options, "H", ProxyMapper.getInstance().getHitRateLimiter(), "cache hits per client");
+		
+		if(cmd.hasOption("T")) {
+			try {
+				String[] ttls = cmd.getOptionValue("T").split(",");
+				long ttl = Long.parseLong(ttls[0].trim()) * 1000;
+				long negativeTtl = ttls.length > 1 ? Long.parseLong(ttls[1].trim()) * 1000 : ProxyMapper.getInstance().getResolver().getNegativeTtl();
+				ProxyMapper.getInstance().getResolver().setTtl(ttl, negativeTtl);
+				System.out.println("Cache resolved host names for " + ttl / 1000 + " s, unknown hosts for " + negativeTtl / 1000 + " s");
+			} catch (NumberFormatException e) {
+				exitWithUsage(options, e);
+			}
+		}
+		
+		if(cmd.hasOption("a")) {
+			try {
+				int threshold = Integer.parseInt(cmd.getOptionValue("a"));
+				ProxyMapper.getInstance().getCache().getDoorkeeper().setThreshold(threshold);
+				System.out.println("Cache resources after " + threshold + " misses");
+			} catch (IllegalArgumentException e) {
+				/* includes NumberFormatException */
+				exitWithUsage(options, e);
+			}
+		}
+		
+		int coapPort = CoapServerProxy.DEFAULT_LOCAL_PORT;
+		int httpPort = HttpServerNIO.DEFAULT_PORT;
+		try {
+			if(cmd.hasOption("p")) {
+				coapPort = Integer.parseInt(cmd.getOptionValue("p"));
+			}
+			if(cmd.hasOption("w")) {
+				httpPort = Integer.parseInt(cmd.getOptionValue("w"));
+			}
+		} catch (NumberFormatException e) {
+			exitWithUsage(options, e);
+		}
+		
+		if(cmd.hasOption("k")) {
+			try {
+				List<InetSocketAddress> members = new ArrayList<InetSocketAddress>();
+				for (String member : cmd.getOptionValue("k").split(",")) {
+					int colon = member.lastIndexOf(':');
+					if (colon <= 0) {
+						throw new IllegalArgumentException("cluster member without port: " + member);
+					}
+					members.add(new InetSocketAddress(InetAddress.getByName(member.substring(0, colon).trim()), Integer.parseInt(member.substring(colon + 1).trim())));
+				}
+				InetSocketAddress self = ProxyCluster.findSelf(members, coapPort);
+				ProxyMapper.getInstance().setCluster(new ProxyCluster(members, self, ProxyMapper.getInstance().getMetrics()));
+				System.out.println("Partition the cache between " + members.size() + " proxies" + (self == null ? " (this proxy is no member)" : ""));
+			} catch (IOException e) {
+				exitWithUsage(options, e);
+			} catch (IllegalArgumentException e) {
+				/* includes NumberFormatException */
+				exitWithUsage(options, e);
+			}
+		}
+		
+		ProxyInvalidationBus invalidationBus = null;
+		if(cmd.hasOption("m")) {
+			try {
+				String group = cmd.getOptionValue("m");
+				int port = ProxyInvalidationBus.DEFAULT_PORT;
+				int colon = group.lastIndexOf(':');
+				if (colon > 0 && group.indexOf(':') == colon) {
+					/* IPv4 address or host name with port */
+					port = Integer.parseInt(group.substring(colon + 1));
+					group = group.substring(0, colon);
+				}
+				NetworkInterface networkInterface = null;
+				if (cmd.hasOption("e")) {
+					networkInterface = NetworkInterface.getByName(cmd.getOptionValue("e"));
+					if (networkInterface == null) {
+						throw new IllegalArgumentException("unknown network interface " + cmd.getOptionValue("e"));
+					}
+				}
+				invalidationBus = new ProxyInvalidationBus(ProxyMapper.getInstance().getCache(),
+						new InetSocketAddress(InetAddress.getByName(group), port), networkInterface);
+				invalidationBus.start();
+				ProxyMapper.getInstance().getCache().setInvalidationBus(invalidationBus);
+				System.out.println("Exchange cache invalidations on " + invalidationBus.getGroup());
+			} catch (IOException e) {
+				exitWithUsage(options, e);
+			} catch (IllegalArgumentException e) {
+				/* includes NumberFormatException */
+				exitWithUsage(options, e);
+			}
+		}
+		
+		if(cmd.hasOption("x") || cmd.hasOption("b")) {
+			try {
+				int threads = ProxyPipeline.DEFAULT_THREADS;
+				int queueCapacity = ProxyPipeline.DEFAULT_QUEUE_CAPACITY;
+				if (cmd.hasOption("x")) {
+					threads = Integer.parseInt(cmd.getOptionValue("x"));
+				}
+				if (cmd.hasOption("b")) {
+					queueCapacity = Integer.parseInt(cmd.getOptionValue("b"));
+				}
+				ProxyMapper.getInstance().getPipeline().configure(threads, queueCapacity);
+				System.out.println("Set pipeline stages to " + threads + " threads and " + queueCapacity + " queued requests");
+			} catch (IllegalArgumentException e) {
+				/* includes NumberFormatException */
+				exitWithUsage(options, e);
+			}
+		}
+		
+		if(cmd.hasOption("v")) {
+			try {
+				int maxThreads = Integer.parseInt(cmd.getOptionValue("v"));
+				ProxyMapper.getInstance().getPipeline().setThreadPerRequest(maxThreads);
+				System.out.println("Process each request on its own thread (at most " + maxThreads + ")");
+			} catch (NumberFormatException e) {
+				exitWithUsage(options, e);
+			}
+		}
+		
+		if(cmd.hasOption("u")) {
+			ProxyMapper.getInstance().getPipeline().setInlineCacheHits(true);
+			System.out.println("Answer cache hits on the I/O threads");
+		}
+		
+		ProxyCacheSnapshot snapshot = null;
+		if(cmd.hasOption("f")) {
+			snapshot = new ProxyCacheSnapshot(ProxyMapper.getInstance().getCache(), new File(cmd.getOptionValue("f")));
+			/* entries are restored in the background */
+			if (snapshot.load() != null) {
+				System.out.println("Restore cache snapshot from " + cmd.getOptionValue("f"));
+			}
+			if(cmd.hasOption("i")) {
+				try {
+					long interval = Long.parseLong(cmd.getOptionValue("i"));
+					snapshot.schedule(interval);
+					System.out.println("Write cache snapshot every " + interval + " seconds");
+				} catch (IllegalArgumentException e) {
+					/* includes NumberFormatException */
+					exitWithUsage(options, e);
+				}
+			}
+		}
 		
         logger.addAppender(new ConsoleAppender(new SimpleLayout()));
         // ALL | DEBUG | INFO | WARN | ERROR | FATAL | OFF:
         logger.setLevel(Level.ALL);
 	
-		HttpServerNIO httpserver = new HttpServerNIO();
+		HttpServerNIO httpserver = new HttpServerNIO(httpPort);
 		HttpClientNIO httpclient = new HttpClientNIO();
 		CoapClientProxy coapclient = new CoapClientProxy();
-		CoapServerProxy coapserver = new CoapServerProxy();	
+		CoapServerProxy coapserver = new CoapServerProxy(coapPort);	
 
 		
 		ProxyMapper.getInstance().setHttpServer(httpserver);
@@ -89,9 +422,22 @@ public class Proxy {
 		httpserver.start();
 		httpclient.start();
 
+		final ProxyCacheSnapshot shutdownSnapshot = snapshot;
+		final ProxyInvalidationBus shutdownInvalidationBus = invalidationBus;
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			@Override
 			public void run() {
+				if (shutdownInvalidationBus != null) {
+					shutdownInvalidationBus.stop();
+				}
+				if (shutdownSnapshot != null) {
+					shutdownSnapshot.stop();
+					try {
+						shutdownSnapshot.write();
+					} catch (IOException e) {
+						System.out.println("Writing cache snapshot failed: " + e.getMessage());
+					}
+				}
 				System.out.println("===END===");
 				try {
 					Thread.sleep(500);
@@ -101,6 +447,27 @@ public class Proxy {
 		});
 
 		ProxyRestInterface restInterface = new ProxyRestInterface();
-		restInterface.start();
+		restInterface.start(coapPort + 1);
+	}
+	
+	private static void setRate(CommandLine cmd, Options options, String option, ProxyRateLimiter limiter, String description) {
+		if (!cmd.hasOption(option)) {
+			return;
+		}
+		try {
+			ProxyRateLimiter.Rate rate = ProxyRateLimiter.Rate.parse(cmd.getOptionValue(option));
+			limiter.setRate(rate);
+			System.out.println("Limit " + description + " to " + (rate == null ? "unlimited" : rate.toString()));
+		} catch (IllegalArgumentException e) {
+			/* includes NumberFormatException */
+			exitWithUsage(options, e);
+		}
+	}
+	
+	private static void exitWithUsage(Options options, Exception e) {
+		System.out.println( "Unexpected exception:" + e.getMessage() );
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp( "jCoAP-Proxy", options );
+		System.exit(-1);
 	}
 }
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ws4d.coap.messages.CoapMediaType;
+
+/**
+ * Blocks of large resources that were requested block-wise (Block2).
+ * The blocks of a resource are reassembled in one buffer, blocks of
+ * different sizes can be combined because all block borders are multiples of
+ * 16 bytes. Requested blocks are served from the buffer if all of their bytes
+ * were received. When all blocks are received, the resource is inserted into
+ * the cache as a whole and removed from this store.
+ * A block with a different ETag or media type starts a new buffer.
+ * The buffers of all resources are limited to a share of the cache size,
+ * blocks that would exceed it are not stored.
+ */
+public class ProxyBlockStore {
+	/* smallest block size, all block borders are multiples of it */
+	private static final int UNIT = 16;
+	private static final int MAX_RESOURCES = 256;
+	/* larger resources are not reassembled */
+	static final int MAX_RESOURCE_SIZE = 1024 * 1024;
+	/* share of the cache size that the buffers may use */
+	static final int CACHE_SHARE_DIVISOR = 4;
+
+	private final ConcurrentHashMap<ProxyResourceKey, PartialResource> resources = new ConcurrentHashMap<ProxyResourceKey, PartialResource>();
+	private final ProxyTimerWheel timerWheel;
+	/* size of all buffers */
+	private final AtomicLong bytes = new AtomicLong();
+	private volatile long maxBytes;
+
+	/* statistics */
+	private final ProxyMetrics.Counter blockHitCount;
+	private final ProxyMetrics.Counter completedCount;
+	private final ProxyMetrics.Counter rejectedCount;
+
+	public ProxyBlockStore(ProxyTimerWheel timerWheel, long maxBytes) {
+		this(timerWheel, maxBytes, new ProxyMetrics());
+	}
+
+	public ProxyBlockStore(ProxyTimerWheel timerWheel, long maxBytes, ProxyMetrics metrics) {
+		this.timerWheel = timerWheel;
+		this.maxBytes = maxBytes;
+		blockHitCount = metrics.counter("cache.blocks.served");
+		completedCount = metrics.counter("cache.blocks.reassembled");
+		rejectedCount = metrics.counter("cache.blocks.rejected");
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/* stores a received block, returns the complete payload if this was the missing block */
+	public byte[] addBlock(final ProxyResourceKey key, int position, byte[] data, boolean last,
+			CoapMediaType mediaType, byte[] etag, long expires) {
+		if (position + data.length > MAX_RESOURCE_SIZE || (expires != -1 && expires <= System.currentTimeMillis())) {
+			return null;
+		}
+		PartialResource resource = resources.get(key);
+		if (resource == null || !resource.matches(mediaType, etag) || resource.isExpired()) {
+			if (resource == null && resources.size() >= MAX_RESOURCES) {
+				return null;
+			}
+			final PartialResource created = new PartialResource(mediaType, etag);
+			if (resource == null) {
+				PartialResource existing = resources.putIfAbsent(key, created);
+				resource = existing != null ? existing : created;
+			} else {
+				/* another representation */
+				if (resources.replace(key, resource, created)) {
+					discard(resource);
+				}
+				resource = resources.get(key);
+			}
+			if (resource == null) {
+				return null;
+			}
+		}
+		byte[] complete;
+		synchronized (resource) {
+			if (!resource.matches(mediaType, etag) || resource.discarded) {
+				/* replaced or removed concurrently */
+				return null;
+			}
+			int capacity = resource.capacityFor(position + data.length);
+			if (!reserve(capacity - resource.buffer.length)) {
+				rejectedCount.increment();
+				return null;
+			}
+			complete = resource.add(position, data, last, capacity);
+			if (resource.expires == -1 || expires < resource.expires) {
+				/* all blocks must be fresh */
+				resource.expires = expires;
+				scheduleRemoval(key, resource);
+			}
+		}
+		if (complete != null) {
+			if (resources.remove(key, resource)) {
+				discard(resource);
+			}
+			completedCount.increment();
+		}
+		return complete;
+	}
+
+	/* returns false if the buffers would exceed maxBytes */
+	private boolean reserve(int size) {
+		if (size <= 0) {
+			return true;
+		}
+		while (true) {
+			long used = bytes.get();
+			if (used + size > maxBytes) {
+				return false;
+			}
+			if (bytes.compareAndSet(used, used + size)) {
+				return true;
+			}
+		}
+	}
+
+	/* frees the buffer of a resource that was removed from the map */
+	private void discard(PartialResource resource) {
+		synchronized (resource) {
+			if (resource.discarded) {
+				return;
+			}
+			resource.discarded = true;
+			bytes.addAndGet(-resource.buffer.length);
+			resource.buffer = new byte[0];
+			if (resource.removal != null) {
+				resource.removal.cancel();
+			}
+		}
+	}
+
+	/* returns the requested block if all of its bytes were received, null otherwise */
+	public Block getBlock(ProxyResourceKey key, int position, int size) {
+		if (resources.isEmpty()) {
+			return null;
+		}
+		PartialResource resource = resources.get(key);
+		if (resource == null || resource.isExpired()) {
+			return null;
+		}
+		Block block;
+		synchronized (resource) {
+			block = resource.get(position, size);
+		}
+		if (block != null) {
+			blockHitCount.increment();
+		}
+		return block;
+	}
+
+	public void remove(ProxyResourceKey key) {
+		PartialResource resource = resources.remove(key);
+		if (resource != null) {
+			discard(resource);
+		}
+	}
+
+	/* removes the buffers of all variants of the resource */
+	public void removeVariants(ProxyResourceKey key) {
+		if (resources.isEmpty()) {
+			return;
+		}
+		ProxyResourceKey pathKey = key.getPathKey();
+		for (Map.Entry<ProxyResourceKey, PartialResource> entry : resources.entrySet()) {
+			if (entry.getKey().getPathKey().equals(pathKey) && resources.remove(entry.getKey(), entry.getValue())) {
+				discard(entry.getValue());
+			}
+		}
+	}
+
+	private void scheduleRemoval(final ProxyResourceKey key, final PartialResource resource) {
+		if (resource.expires == -1) {
+			return;
+		}
+		if (resource.removal != null) {
+			resource.removal.cancel();
+		}
+		resource.removal = timerWheel.schedule(resource.expires, new Runnable() {
+			@Override
+			public void run() {
+				if (resources.remove(key, resource)) {
+					discard(resource);
+				}
+			}
+		});
+	}
+
+	public int size() {
+		return resources.size();
+	}
+
+	public long getBlockHitCount() {
+		return blockHitCount.get();
+	}
+
+	public long getCompletedCount() {
+		return completedCount.get();
+	}
+
+	/* blocks that were not stored because the buffers are full */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/* a block served from the store */
+	public static class Block {
+		private final byte[] payload;
+		private final boolean more;
+		private final CoapMediaType mediaType;
+		private final byte[] etag;
+		private final long expires;
+
+		Block(byte[] payload, boolean more, CoapMediaType mediaType, byte[] etag, long expires) {
+			this.payload = payload;
+			this.more = more;
+			this.mediaType = mediaType;
+			this.etag = etag;
+			this.expires = expires;
+		}
+
+		public byte[] getPayload() {
+			return payload;
+		}
+
+		public boolean isMore() {
+			return more;
+		}
+
+		public CoapMediaType getMediaType() {
+			return mediaType;
+		}
+
+		public byte[] getETag() {
+			return etag;
+		}
+
+		public long expires() {
+			return expires;
+		}
+	}
+
+	/* guarded by itself */
+	private static class PartialResource {
+		final CoapMediaType mediaType;
+		final byte[] etag;
+		byte[] buffer = new byte[0];
+		/* received units of 16 bytes */
+		final BitSet received = new BitSet();
+		/* -1 until the last block is received */
+		int length = -1;
+		long expires = -1;
+		ProxyTimerWheel.Timeout removal;
+		/* removed from the store, the buffer is freed */
+		boolean discarded = false;
+
+		PartialResource(CoapMediaType mediaType, byte[] etag) {
+			this.mediaType = mediaType;
+			this.etag = etag;
+		}
+
+		boolean matches(CoapMediaType mediaType, byte[] etag) {
+			return this.mediaType == mediaType && Arrays.equals(this.etag, etag);
+		}
+
+		synchronized boolean isExpired() {
+			return expires != -1 && expires <= System.currentTimeMillis();
+		}
+
+		/* size of the buffer after a block that ends at end is added */
+		int capacityFor(int end) {
+			if (end <= buffer.length) {
+				return buffer.length;
+			}
+			return Math.max(end, Math.min(buffer.length * 2, MAX_RESOURCE_SIZE));
+		}
+
+		byte[] add(int position, byte[] data, boolean last, int capacity) {
+			int end = position + data.length;
+			if (capacity > buffer.length) {
+				buffer = Arrays.copyOf(buffer, capacity);
+			}
+			System.arraycopy(data, 0, buffer, position, data.length);
+			if (last) {
+				length = end;
+				/* the last unit can be shorter */
+				received.set(position / UNIT, (end + UNIT - 1) / UNIT);
+			} else {
+				received.set(position / UNIT, end / UNIT);
+			}
+			if (length != -1 && received.nextClearBit(0) >= (length + UNIT - 1) / UNIT) {
+				return Arrays.copyOf(buffer, length);
+			}
+			return null;
+		}
+
+		Block get(int position, int size) {
+			int end = position + size;
+			if (length != -1) {
+				if (position >= length) {
+					return null;
+				}
+				end = Math.min(end, length);
+			}
+			int firstUnit = position / UNIT;
+			int endUnit = (end + UNIT - 1) / UNIT;
+			if (received.nextClearBit(firstUnit) < endUnit || end > buffer.length) {
+				return null;
+			}
+			boolean more = length == -1 || end < length;
+			return new Block(Arrays.copyOfRange(buffer, position, end), more, mediaType, etag, expires);
+		}
+	}
+}
@@ -18,27 +18,33 @@
  */
 package org.ws4d.coap.proxy;
 
+import java.io.IOException;
 import java.net.URI;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.TreeMap;
 
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
-import net.sf.ehcache.config.CacheConfiguration;
-import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
-
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.util.EntityUtils;
 import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.SimpleLayout;
 import org.ws4d.coap.interfaces.CoapRequest;
 import org.ws4d.coap.interfaces.CoapResponse;
+import org.ws4d.coap.messages.CoapBlockOption;
 import org.ws4d.coap.messages.CoapRequestCode;
 import org.ws4d.coap.messages.CoapResponseCode;
 
@@ -50,32 +56,325 @@ import org.ws4d.coap.messages.CoapResponseCode;
 /*
  * TODO's:
  * - implement Date option as described in "Connecting the Web with the Web of Things: Lessons Learned From Implementing a CoAP-HTTP Proxy"
- * - caching of HTTP resources not supported as HTTP servers may have enough resources (in terms of RAM/ROM/batery/computation)
  * 
  * */
 
 public class ProxyCache {
 	static Logger logger = Logger.getLogger(Proxy.class);
-	private static final int MAX_LIFETIME = Integer.MAX_VALUE;
-	private static Cache cache;				
-	private static CacheManager cacheManager;			
+	static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+	static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+	private volatile ProxyCacheStore cache;
+	/* removes expired entries */
+	private final ProxyTimerWheel timerWheel;
+	/* payloads are stored in off-heap slabs if set */
+	private volatile ProxySlabAllocator slabAllocator = null;
+	/* payloads above the threshold are compressed if set */
+	private volatile ProxyPayloadCompressor compressor = null;
+	/* resources are cached only after repeated misses */
+	private final ProxyDoorkeeper doorkeeper;
+	/* blocks of resources that were requested block-wise */
+	private final ProxyBlockStore blockStore;
+	/* sends invalidations to the other proxy instances, null if there are none */
+	private volatile ProxyInvalidationBus invalidationBus = null;
 	private boolean enabled = true;
 	private static final int defaultMaxAge = org.ws4d.coap.Constants.COAP_DEFAULT_MAX_AGE_S;
-	private static final ProxyCacheTimePolicy cacheTimePolicy = ProxyCacheTimePolicy.Halftime;
+	private volatile ProxyCacheTimePolicy cacheTimePolicy = ProxyCacheTimePolicy.Halftime;
+	/* policies of paths that start with the prefix, the longest prefix wins */
+	private volatile TreeMap<String, ProxyCacheTimePolicy> timePolicyRules = new TreeMap<String, ProxyCacheTimePolicy>();
+	/* round trip times of the origin servers for the adaptive policy */
+	private final ProxyRttEstimator rttEstimator;
+	/* hot resources are refreshed in the last part of their lifetime */
+	static final double REFRESH_AHEAD_FACTOR = 0.2;
+	/* expired resources are served for this time while they are refreshed, 0 disables */
+	private volatile long staleGraceMs = 0;
+	/* minimum accesses per second to refresh a resource ahead of expiry, 0 disables */
+	private volatile double refreshAheadRate = 0;
+	
+	/* statistics */
+	private final ProxyMetrics metrics;
+	private final ProxyMetrics.Counter staleHitCount;
+	private final ProxyMetrics.Counter refreshCount;
+	private final ProxyMetrics.Counter expiredCount;
 	
 	public ProxyCache() {
-		cacheManager = CacheManager.create();
-		cache = new Cache(new CacheConfiguration("proxy", 100)
-		.memoryStoreEvictionPolicy(MemoryStoreEvictionPolicy.LFU)
-		.overflowToDisk(true)
-		.eternal(false)
-		.diskPersistent(false)
-		.diskExpiryThreadIntervalSeconds(0));
-		cacheManager.addCache(cache);	
+		this(new ProxyTimerWheel());
+	}
+	
+	public ProxyCache(ProxyTimerWheel timerWheel) {
+		this(timerWheel, new ProxyMetrics());
+	}
+	
+	public ProxyCache(ProxyTimerWheel timerWheel, ProxyMetrics metrics) {
+		this(timerWheel, DEFAULT_MAX_BYTES, DEFAULT_CONCURRENCY_LEVEL, metrics);
+	}
+	
+	public ProxyCache(ProxyTimerWheel timerWheel, long maxBytes, int concurrencyLevel, ProxyMetrics metrics) {
+		this.timerWheel = timerWheel;
+		this.metrics = metrics;
+		this.doorkeeper = new ProxyDoorkeeper(timerWheel, metrics);
+		this.blockStore = new ProxyBlockStore(timerWheel, maxBytes / ProxyBlockStore.CACHE_SHARE_DIVISOR, metrics);
+		this.rttEstimator = new ProxyRttEstimator(metrics);
+		staleHitCount = metrics.counter("cache.stale-hits");
+		refreshCount = metrics.counter("cache.refreshes");
+		expiredCount = metrics.counter("cache.expired");
+		cache = new ProxyCacheStore(maxBytes, concurrencyLevel, metrics);
+		registerMetrics();
+	}
+
+	/* the store is read when the statistic is requested, it is replaced by setCapacity() */
+	private void registerMetrics() {
+		metrics.gauge("cache.entries", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return cache.size();
+			}
+		});
+		metrics.gauge("cache.bytes", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return cache.getWeightedSize();
+			}
+		});
+		metrics.gauge("cache.max-bytes", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return cache.getMaxBytes();
+			}
+		});
+		metrics.gauge("cache.origins", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return cache.getOriginUsage().size();
+			}
+		});
+		metrics.gauge("cache.blocks.resources", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return blockStore.size();
+			}
+		});
+		metrics.gauge("cache.blocks.bytes", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return blockStore.getBytes();
+			}
+		});
+		metrics.gauge("cache.rtt.origins", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return rttEstimator.size();
+			}
+		});
+	}
+
+	/* the allocator is read when the statistic is requested, it is replaced by setCapacity() */
+	private void registerSlabMetrics() {
+		metrics.gauge("cache.offheap.slabs", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				ProxySlabAllocator slabs = slabAllocator;
+				return slabs != null ? slabs.getSlabCount() : 0;
+			}
+		});
+		metrics.gauge("cache.offheap.reserved-bytes", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				ProxySlabAllocator slabs = slabAllocator;
+				return slabs != null ? slabs.getReservedBytes() : 0;
+			}
+		});
+		metrics.gauge("cache.offheap.used-bytes", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				ProxySlabAllocator slabs = slabAllocator;
+				return slabs != null ? slabs.getUsedBytes() : 0;
+			}
+		});
+		metrics.gauge("cache.offheap.fragmentation-percent", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				ProxySlabAllocator slabs = slabAllocator;
+				return slabs != null ? Math.round(slabs.getFragmentation() * 100) : 0;
+			}
+		});
+	}
+
+	public ProxyMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/* replaces the store, all cached entries are dropped */
+	public void setCapacity(long maxBytes, int concurrencyLevel) {
+		ProxyCacheStore old = cache;
+		ProxyCacheStore store = new ProxyCacheStore(maxBytes, concurrencyLevel, metrics);
+		store.copyQuotas(old);
+		cache = store;
+		old.clear();
+		blockStore.setMaxBytes(maxBytes / ProxyBlockStore.CACHE_SHARE_DIVISOR);
+		if (slabAllocator != null) {
+			slabAllocator = new ProxySlabAllocator(maxBytes, metrics);
+		}
+		logger.info("cache capacity: " + maxBytes + " bytes in " + cache.getSegmentCount() + " segments");
+	}
+	
+	public ProxyCacheStore getStore() {
+		return cache;
+	}
+
+	/* slabs are reserved on demand up to the byte budget of the cache */
+	public void setOffHeap(boolean offHeap) {
+		if (offHeap == (slabAllocator != null)) {
+			return;
+		}
+		/* payloads of cached entries are owned by the old allocator */
+		cache.clear();
+		if (offHeap) {
+			slabAllocator = new ProxySlabAllocator(cache.getMaxBytes(), metrics);
+			registerSlabMetrics();
+		} else {
+			slabAllocator = null;
+			metrics.removeAll("cache.offheap.");
+		}
+	}
+
+	/* compresses payloads of at least this size, 0 disables the compression,
+	 * cached entries keep their encoding */
+	public void setCompressionThreshold(int threshold) {
+		compressor = threshold > 0 ? new ProxyPayloadCompressor(threshold, metrics) : null;
+		if (compressor == null) {
+			metrics.removeAll("cache.compression.");
+		}
+	}
+
+	public ProxyPayloadCompressor getCompressor() {
+		return compressor;
+	}
+
+	public ProxyCacheTimePolicy getTimePolicy() {
+		return cacheTimePolicy;
+	}
+
+	public void setTimePolicy(ProxyCacheTimePolicy policy) {
+		this.cacheTimePolicy = policy;
+	}
+
+	/* uses the policy for all paths that start with the prefix */
+	public synchronized void addTimePolicyRule(String pathPrefix, ProxyCacheTimePolicy policy) {
+		TreeMap<String, ProxyCacheTimePolicy> rules = new TreeMap<String, ProxyCacheTimePolicy>(timePolicyRules);
+		rules.put(pathPrefix, policy);
+		timePolicyRules = rules;
+	}
+
+	public Map<String, ProxyCacheTimePolicy> getTimePolicyRules() {
+		return Collections.unmodifiableMap(timePolicyRules);
+	}
+
+	public ProxyCacheTimePolicy getTimePolicy(String path) {
+		TreeMap<String, ProxyCacheTimePolicy> rules = timePolicyRules;
+		if (path != null && !rules.isEmpty()) {
+			/* prefixes of the path sort before it, the longest one comes first */
+			for (Map.Entry<String, ProxyCacheTimePolicy> rule : rules.headMap(path, true).descendingMap().entrySet()) {
+				if (path.startsWith(rule.getKey())) {
+					return rule.getValue();
+				}
+			}
+		}
+		return cacheTimePolicy;
+	}
+
+	public ProxyRttEstimator getRttEstimator() {
+		return rttEstimator;
+	}
+
+	private long calcExpires(ProxyMessageContext context, long maxAge) {
+		ProxyCacheTimePolicy policy = getTimePolicy(context.getUri().getPath());
+		return policy.calcExpires(context.getRequestTime(), context.getResponseTime(), getOriginDelay(policy, context), maxAge);
+	}
+
+	private long calcRefreshTime(ProxyMessageContext context, long maxAge) {
+		ProxyCacheTimePolicy policy = getTimePolicy(context.getUri().getPath());
+		return policy.calcRefreshTime(context.getRequestTime(), context.getResponseTime(), getOriginDelay(policy, context), maxAge);
+	}
+
+	private long getOriginDelay(ProxyCacheTimePolicy policy, ProxyMessageContext context) {
+		if (policy != ProxyCacheTimePolicy.Adaptive || context.getResourceKey() == null) {
+			return -1;
+		}
+		return rttEstimator.getDelay(context.getResourceKey().getOrigin());
+	}
+
+	public ProxyInvalidationBus getInvalidationBus() {
+		return invalidationBus;
+	}
+
+	public void setInvalidationBus(ProxyInvalidationBus invalidationBus) {
+		this.invalidationBus = invalidationBus;
+		if (invalidationBus == null) {
+			metrics.removeAll("invalidation.");
+		}
+	}
+
+	public ProxyBlockStore getBlockStore() {
+		return blockStore;
+	}
+
+	public ProxyDoorkeeper getDoorkeeper() {
+		return doorkeeper;
+	}
+
+	/* null if payloads are stored on the heap */
+	public ProxySlabAllocator getSlabAllocator() {
+		return slabAllocator;
+	}
+	
+	public long getStaleGrace() {
+		return staleGraceMs;
+	}
+
+	public void setStaleGrace(long staleGraceMs) {
+		this.staleGraceMs = staleGraceMs;
+	}
+
+	public double getRefreshAheadRate() {
+		return refreshAheadRate;
+	}
+
+	public void setRefreshAheadRate(double refreshAheadRate) {
+		this.refreshAheadRate = refreshAheadRate;
+	}
+
+	public long getStaleHitCount() {
+		return staleHitCount.get();
+	}
+
+	public long getRefreshCount() {
+		return refreshCount.get();
+	}
+
+	public long getExpiredCount() {
+		return expiredCount.get();
 	}
 	
-	public void removeKey(URI uri) {
-		cache.remove(uri);
+	public void removeKey(ProxyResourceKey key) {
+		cache.remove(key);
+	}
+	
+	/* marks all variants as not fresh, here and in the other proxy instances */
+	private void invalidate(ProxyResourceKey key) {
+		cache.removeVariants(key);
+		blockStore.removeVariants(key);
+		ProxyInvalidationBus bus = invalidationBus;
+		if (bus != null) {
+			bus.publish(key);
+		}
+	}
+	
+	/* called for invalidations of other proxy instances */
+	public void removeInvalidated(ProxyResourceKey key) {
+		if (cache.removeVariants(key) > 0) {
+			logger.debug("cache remove (invalidated by peer): " + key.getPath());
+		}
+		blockStore.removeVariants(key);
 	}
 	
 
@@ -95,64 +394,6 @@ public class ProxyCache {
 ////		}
 //	}
 	
-//	private void putHttpRes(URI uri, HttpResponse response){
-//		if (response == null){
-//			return;
-//		}
-//		logger.info( "Cache HTTP Resource (" + uri.toString() + ")");
-//		//first determine what to do
-//		int code = response.getStatusLine().getStatusCode();
-//		
-//		//make some garbage collection to avoid a cache overflow caused by many expired elements (when 80% charged as first idea)
-//		if (cache.getSize() > cache.getCacheConfiguration().getMaxElementsInMemory()*0.8) {
-//			cache.evictExpiredElements();
-//		}
-//		
-//		//set the max-age of new element
-//		//use the http-header-options expires and date
-//		//difference is the same value as the corresponding max-age from coap-response, but at this point we only have a http-response
-//		int timeToLive = 0;
-//		Header[] expireHeaders = response.getHeaders("Expires");
-//		if (expireHeaders.length == 1) {
-//			String expire = expireHeaders[0].getValue();
-//			Date expireDate = StringToDate(expire);
-//		
-//			Header[] dateHeaders = response.getHeaders("Date");
-//			if (dateHeaders.length == 1) {
-//				String dvalue = dateHeaders[0].getValue();
-//				Date date = StringToDate(dvalue);
-//			
-//				timeToLive = (int) ((expireDate.getTime() - date.getTime()) / 1000);
-//			}
-//		}
-//		
-//		//cache-actions are dependent of response-code, as described in coap-rfc-draft-7
-//		switch(code) {
-//			case HttpStatus.SC_CREATED: {
-//				if (cache.isKeyInCache(uri)) {
-//					markExpired(uri);
-//				}
-//				break;
-//			}
-//			case HttpStatus.SC_NO_CONTENT: {
-//				if (cache.isKeyInCache(uri)) {
-//					markExpired(uri);
-//				}
-//				break;
-//			}
-//			case HttpStatus.SC_NOT_MODIFIED: {
-//				if (cache.isKeyInCache(uri)) {
-//					insertElement(uri, response, timeToLive); //should update the response if req is already in cache
-//				}
-//				break;
-//			}
-//			default: {
-//				insertElement(uri, response, timeToLive);
-//				break;
-//			}
-//		}
-//	}
-	
 //	private void putCoapRes(ProxyResourceKey key, CoapResponse response){
 //		if (response == null){
 //			return;
@@ -195,7 +436,7 @@ public class ProxyCache {
 		if (!isEnabled()){
 			return false;
 		}
-		if (cache.isKeyInCache(key)) {
+		if (cache.containsKey(key)) {
 			return true;
 		} else {
 			return false;
@@ -216,7 +457,7 @@ public class ProxyCache {
 		try {
 			date = (Date) formatter.parse(string_date);
 		} catch (ParseException e) {
-			e.printStackTrace();
+			logger.debug("invalid HTTP date: " + string_date);
 		}
 		
 		return date;
@@ -229,45 +470,104 @@ public class ProxyCache {
 //		}
 //	}
 	
+	/* inserts a resource of a snapshot, cached entries are newer and are not replaced */
+	public boolean restore(ProxyResource resource) {
+		if (!isEnabled()) {
+			return false;
+		}
+		return insertElement(resource.getKey(), resource, true);
+	}
+	
 	private boolean insertElement(ProxyResourceKey key, ProxyResource resource) {
-		Element elem = new Element(key, resource);
-		if (resource.expires() == -1) {
-			/* never expires */
-			cache.put(elem);
-		} else {
-			long ttl = resource.expires() - System.currentTimeMillis();
-			if (ttl > 0) {
-				/* limit the maximum lifetime */
-				if (ttl > MAX_LIFETIME) {
-					ttl = MAX_LIFETIME;
-				}
-				elem.setTimeToLive((int) ttl);
-				cache.put(elem);
-				logger.debug("cache insert: " + resource.getPath() );
-
-			} else {
-				/* resource is already expired */
-				return false;
-			}
+		return insertElement(key, resource, false, false);
+	}
+	
+	private boolean insertElement(ProxyResourceKey key, ProxyResource resource, boolean onlyIfAbsent) {
+		return insertElement(key, resource, onlyIfAbsent, false);
+	}
+	
+	/* notifications of an active upstream observation are always admitted */
+	private boolean insertElement(ProxyResourceKey key, ProxyResource resource, boolean onlyIfAbsent, boolean observed) {
+		resource.setKey(key);
+		if (resource.expires() != -1 && resource.expires() <= System.currentTimeMillis()) {
+			/* resource is already expired */
+			return false;
+		}
+		if (!onlyIfAbsent && !observed && !cache.containsKey(key) && !doorkeeper.admit(key)) {
+			/* requested too rarely, updates of cached resources are always admitted */
+			logger.debug("cache insert not admitted: " + resource.getPath());
+			return false;
 		}
+		ProxyPayloadCompressor c = compressor;
+		if (c != null) {
+			/* before the payload is moved off-heap */
+			resource.compress(c);
+		}
+		ProxySlabAllocator allocator = slabAllocator;
+		if (allocator != null && resource.getPayloadLength() > 0 && !resource.moveOffHeap(allocator)) {
+			/* slabs are full or the payload is too large, keep it on the heap */
+			logger.debug("cache insert: payload stays on heap: " + resource.getPath());
+		}
+		/* the timer wheel removes the resource when it is expired */
+		boolean inserted = onlyIfAbsent ? cache.putIfAbsent(key, resource) : cache.put(key, resource);
+		if (!inserted) {
+			resource.discard();
+			logger.debug("cache insert rejected: " + resource.getPath());
+			return false;
+		}
+		scheduleExpiry(resource);
+		logger.debug("cache insert: " + resource.getPath() );
 		return true;
 	}
 	
 	private void updateTtl(ProxyResourceKey key, long newExpires) {
 		/*getQuiet is used to not update statistics */
-		Element elem = cache.getQuiet(key);
+		ProxyResource resource = cache.getQuiet(key);
 		
-		if (elem != null) {
+		if (resource != null) {
 			long ttl = newExpires - System.currentTimeMillis();
 			if (ttl > 0 || newExpires == -1 ) {
-				/* limit the maximum lifetime */
-				if (ttl > MAX_LIFETIME) {
-					ttl = MAX_LIFETIME;
-				}
-				elem.setTimeToLive((int) ttl);
+				resource.setExpires(newExpires);
+				scheduleExpiry(resource);
 			} 
 		}
 	}
+	
+	/* expired resources are kept while they can be served stale,
+	 * resources with an ETag are kept one more lifetime to be validated */
+	private long getRemovalTime(ProxyResource resource) {
+		long expires = resource.expires();
+		long retention = staleGraceMs;
+		if (resource.getETag() != null) {
+			retention = Math.max(retention, expires - resource.getCachedTime());
+		}
+		return expires + retention;
+	}
+	
+	private void scheduleExpiry(final ProxyResource resource) {
+		if (resource.expires() == -1) {
+			resource.setExpiryTimeout(null);
+			return;
+		}
+		resource.setExpiryTimeout(timerWheel.schedule(getRemovalTime(resource), new Runnable() {
+			@Override
+			public void run() {
+				expire(resource);
+			}
+		}));
+	}
+	
+	private void expire(ProxyResource resource) {
+		if (resource.expires() == -1 || getRemovalTime(resource) > System.currentTimeMillis()) {
+			/* the lifetime was changed in the meantime */
+			scheduleExpiry(resource);
+			return;
+		}
+		if (cache.remove(resource.getKey(), resource)) {
+			expiredCount.increment();
+			logger.debug("cache expired: " + resource.getPath());
+		}
+	}
 
 	public boolean isEnabled() {
 		return enabled;
@@ -282,19 +582,64 @@ public class ProxyCache {
 			return null;
 		}
 		
-		String path = context.getUri().getPath();
-		if(path == null){
+		ProxyResourceKey key = context.getResourceKey();
+		if(key == null){
 			/* no caching */
 			return null;
 		}
-		Element elem = cache.get(new ProxyResourceKey(context.getServerAddress(), context.getServerPort(), path));
-		logger.debug("cache get: " + context.getServerAddress().toString() + " " + context.getServerPort() + " " + path);
-		if (elem != null) {
+		ProxyResource res = cache.get(key);
+		logger.debug("cache get: " + context.getServerAddress().toString() + " " + context.getServerPort() + " " + context.getUri().getPath());
+		if (res != null) {
 			/* found cached entry */
-			ProxyResource res = (ProxyResource) elem.getObjectValue();
+			res.recordAccess();
 			if (!res.isExpired()) {
 				return res;
 			}
+			if (res.expires() + staleGraceMs > System.currentTimeMillis()) {
+				/* serve stale while it is refreshed */
+				staleHitCount.increment();
+				return res;
+			}
+		} else {
+			doorkeeper.recordMiss(key);
+		}
+		return null;
+	}
+
+	/* returns true if the caller has to refresh the served resource in the background */
+	public boolean claimRefresh(ProxyResource res) {
+		if (res.expires() == -1 || res.getKey() == null) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		boolean refresh;
+		if (res.isExpired()) {
+			/* served stale */
+			refresh = true;
+		} else {
+			/* refresh ahead if the resource is hot */
+			refresh = refreshAheadRate > 0 && res.getRefreshTime() != -1 && now >= res.getRefreshTime()
+					&& res.getAccessRate(now) >= refreshAheadRate;
+		}
+		if (refresh && res.startRefresh()) {
+			refreshCount.increment();
+			return true;
+		}
+		return false;
+	}
+
+	/* returns an expired resource that can be validated using its ETag */
+	public ProxyResource getValidationCandidate(ProxyMessageContext context) {
+		if (!isEnabled()){
+			return null;
+		}
+		ProxyResourceKey key = context.getResourceKey();
+		if(key == null){
+			return null;
+		}
+		ProxyResource res = cache.getQuiet(key);
+		if (res != null && res.isExpired() && res.getETag() != null) {
+			return res;
 		}
 		return null;
 	}
@@ -303,8 +648,129 @@ public class ProxyCache {
 		if (!isEnabled()){
 			return;
 		}
-		/* TODO caching of HTTP responses currently not supported (not use to unload HTTP servers) */
-		return;
+		HttpResponse response = context.getInHttpResponse();
+		ProxyResourceKey key = context.getResourceKey();
+		if (response == null || key == null || context.getOutHttpRequest() == null) {
+			return;
+		}
+		String path = context.getUri().getPath();
+		boolean get = context.getOutHttpRequest().getMethod().equalsIgnoreCase("GET");
+		
+		/* cache-actions are dependent of response-code, as described in coap-rfc-draft */
+		switch (response.getStatusLine().getStatusCode()) {
+		case HttpStatus.SC_CREATED:
+		case HttpStatus.SC_NO_CONTENT:
+			/* mark stored responses of all variants as not fresh */
+			invalidate(key);
+			break;
+		case HttpStatus.SC_NOT_MODIFIED: {
+			ProxyResource validated = cache.getQuiet(key);
+			long maxAge = getHttpMaxAge(response, context.getResponseTime());
+			if (validated != null && maxAge != 0) {
+				Header etag = response.getFirstHeader("ETag");
+				if (etag == null || Arrays.equals(etag.getValue().getBytes(), validated.getETag())) {
+					validated.setCachedTime(context.getResponseTime());
+					updateTtl(key, calcExpires(context, maxAge));
+					validated.setRefreshTime(calcRefreshTime(context, maxAge));
+					logger.debug("cache validate: " + path);
+				} else {
+					cache.remove(key);
+				}
+			}
+			break;
+		}
+		case HttpStatus.SC_OK: {
+			if (!get) {
+				invalidate(key);
+				break;
+			}
+			long maxAge = getHttpMaxAge(response, context.getResponseTime());
+			if (maxAge == 0) {
+				/* not cacheable */
+				break;
+			}
+			byte[] payload;
+			try {
+				HttpEntity entity = response.getEntity();
+				if (entity == null) {
+					payload = new byte[0];
+				} else {
+					/* the entity is read again by the translation */
+					if (!entity.isRepeatable()) {
+						entity = new BufferedHttpEntity(entity);
+						response.setEntity(entity);
+					}
+					payload = EntityUtils.toByteArray(entity);
+				}
+			} catch (IOException e) {
+				logger.warn("cache: reading HTTP entity failed");
+				break;
+			}
+			ProxyResource resource = new ProxyResource(path, payload, ProxyMapper.httpContentType2coapMediaType(response));
+			Header etag = response.getFirstHeader("ETag");
+			if (etag != null) {
+				resource.setETag(etag.getValue().getBytes());
+			}
+			resource.setOriginUri(context.getUri());
+			resource.setExpires(calcExpires(context, maxAge));
+			resource.setCachedTime(context.getResponseTime());
+			resource.setRefreshTime(calcRefreshTime(context, maxAge));
+			insertElement(key, resource);
+			break;
+		}
+		default:
+			break;
+		}
+	}
+	
+	/* freshness lifetime in seconds from Cache-Control or Expires/Date:
+	 * 0 if the response must not be cached, -1 if the default max age is used */
+	static long getHttpMaxAge(HttpResponse response, long now) {
+		long maxAge = -1;
+		long sharedMaxAge = -1;
+		for (Header header : response.getHeaders("Cache-Control")) {
+			for (HeaderElement element : header.getElements()) {
+				String name = element.getName().toLowerCase(Locale.US);
+				if (name.equals("no-store") || name.equals("no-cache") || name.equals("private")) {
+					return 0;
+				}
+				try {
+					if (name.equals("max-age") && element.getValue() != null) {
+						maxAge = Math.max(Long.parseLong(element.getValue()), 0);
+					} else if (name.equals("s-maxage") && element.getValue() != null) {
+						sharedMaxAge = Math.max(Long.parseLong(element.getValue()), 0);
+					}
+				} catch (NumberFormatException e) {
+					/* invalid value, treat as expired */
+					return 0;
+				}
+			}
+		}
+		/* a shared cache uses s-maxage first */
+		if (sharedMaxAge != -1) {
+			return sharedMaxAge;
+		}
+		if (maxAge != -1) {
+			return maxAge;
+		}
+		Header expires = response.getFirstHeader("Expires");
+		if (expires != null) {
+			Date expireDate = StringToDate(expires.getValue());
+			if (expireDate == null) {
+				/* invalid dates (e.g. "0") mean already expired */
+				return 0;
+			}
+			long date = now;
+			Header dateHeader = response.getFirstHeader("Date");
+			if (dateHeader != null) {
+				Date d = StringToDate(dateHeader.getValue());
+				if (d != null) {
+					date = d.getTime();
+				}
+			}
+			return Math.max((expireDate.getTime() - date) / 1000, 0);
+		}
+		return -1;
 	}
 
 	public void cacheCoapResponse(ProxyMessageContext context) {
@@ -314,48 +780,81 @@ public class ProxyCache {
 		
 		CoapResponse response = context.getInCoapResponse();
 		
-		String path = context.getUri().getPath();
-		if(path == null){
+		ProxyResourceKey key = context.getResourceKey();
+		if(key == null){
 			/* no caching */
 			return;
 		}
-		
-		ProxyResourceKey key = new ProxyResourceKey(context.getServerAddress(), context.getServerPort(), path);
+		String path = context.getUri().getPath();
 		
 		/* NOTE:
 		 * - currently caching is only implemented for success error codes (2.xx) 
-		 * - not fresh resources are removed (could be used for validation model)*/
+		 * - not fresh resources are removed, expired resources are validated using their ETag */
 		
 		switch (context.getInCoapResponse().getResponseCode()) {
 		case Created_201:
 			/* A cache SHOULD mark any stored response for the
 			   created resource as not fresh. This response is not cacheable.*/
-			cache.remove(key); 
+			invalidate(key);
 			break;
 		case Deleted_202:
 			/*    This response is not cacheable.  However, a cache SHOULD mark any
    				stored response for the deleted resource as not fresh.*/
-			cache.remove(key); 
+			invalidate(key);
 			break;
 		case Valid_203:
 			/* When a cache receives a 2.03 (Valid) response, it needs to update the
    				stored response with the value of the Max-Age Option included in the
    				response (see Section 5.6.2). */
-			//TODO
+			ProxyResource validated = cache.getQuiet(key);
+			if (validated != null) {
+				if (response.getETag() == null || Arrays.equals(response.getETag(), validated.getETag())) {
+					validated.setCachedTime(context.getResponseTime());
+					updateTtl(key, calcExpires(context, response.getMaxAge()));
+					validated.setRefreshTime(calcRefreshTime(context, response.getMaxAge()));
+					logger.debug("cache validate: " + path);
+				} else {
+					/* validated a different representation */
+					cache.remove(key);
+				}
+			}
 			break;
 		case Changed_204:
 			/* This response is not cacheable.  However, a cache SHOULD mark any
    				stored response for the changed resource as not fresh. */
-			cache.remove(key); 
+			invalidate(key);
 			break;
 		case Content_205:
 			/* This response is cacheable: Caches can use the Max-Age Option to
    				determine freshness (see Section 5.6.1) and (if present) the ETag
    				Option for validation (see Section 5.6.2).*/
 			/* CACHE RESOURCE */
-			ProxyResource resource = new ProxyResource(path, response.getPayload(), response.getContentType());
-			resource.setExpires(cacheTimePolicy.calcExpires(context.getRequestTime(), context.getResponseTime(), response.getMaxAge()));
-			insertElement(key, resource);
+			byte[] payload = response.getPayload();
+			CoapBlockOption block = response.getBlock2();
+			if (block != null && (block.getNumber() > 0 || !block.isLast())) {
+				/* one block of a large resource, cached when all blocks are received */
+				int position = block.getNumber() * block.getBlockSize().getSize();
+				if (position + payload.length > cache.getMaxPayloadLength(key)) {
+					/* the store would reject the reassembled resource */
+					blockStore.remove(key);
+					logger.debug("cache block " + block.getNumber() + ": resource too large " + path);
+					break;
+				}
+				payload = blockStore.addBlock(key, position, payload, block.isLast(), response.getContentType(),
+						response.getETag(), calcExpires(context, response.getMaxAge()));
+				if (payload == null) {
+					logger.debug("cache block " + block.getNumber() + ": " + path);
+					break;
+				}
+				logger.debug("cache reassembled resource: " + path);
+			}
+			ProxyResource resource = new ProxyResource(path, payload, response.getContentType());
+			resource.setETag(response.getETag());
+			resource.setOriginUri(context.getUri());
+			resource.setExpires(calcExpires(context, response.getMaxAge()));
+			resource.setCachedTime(context.getResponseTime());
+			resource.setRefreshTime(calcRefreshTime(context, response.getMaxAge()));
+			insertElement(key, resource, false, context.isObserve());
 			break;
 
 		default:
@@ -366,7 +865,9 @@ public class ProxyCache {
 	public enum ProxyCacheTimePolicy{
 		Request(0), 
 		Response(1), 
-		Halftime(2);
+		Halftime(2),
+		/* the response is created at least the estimated delay of the origin before it is received */
+		Adaptive(3);
 		
 		int state;
 		
@@ -374,7 +875,22 @@ public class ProxyCache {
 			this.state = state;
 		}
 		
+		/* case insensitive, null if there is no such policy */
+		public static ProxyCacheTimePolicy parse(String name) {
+			for (ProxyCacheTimePolicy policy : values()) {
+				if (policy.name().equalsIgnoreCase(name.trim())) {
+					return policy;
+				}
+			}
+			return null;
+		}
+		
 		public long calcExpires(long requestTime, long responseTime, long maxAge){
+			return calcExpires(requestTime, responseTime, -1, maxAge);
+		}
+		
+		/* delay: conservative delay from the origin to the proxy, -1 if unknown */
+		public long calcExpires(long requestTime, long responseTime, long delay, long maxAge){
 			if (maxAge == -1){
 				maxAge = defaultMaxAge;
 			}
@@ -385,8 +901,25 @@ public class ProxyCache {
 				return responseTime + (maxAge * 1000);
 			case Halftime:
 				return requestTime + ((responseTime - requestTime) / 2) + (maxAge * 1000);
+			case Adaptive:
+				if (delay < 0) {
+					/* no estimate yet, the request time is the earliest possible */
+					return requestTime + (maxAge * 1000);
+				}
+				/* the response cannot be older than the request */
+				return Math.max(requestTime, responseTime - delay) + (maxAge * 1000);
 			}
 			return 0;
 		}
+		
+		public long calcRefreshTime(long requestTime, long responseTime, long maxAge){
+			return calcRefreshTime(requestTime, responseTime, -1, maxAge);
+		}
+		
+		/* a hot resource is refreshed when the last part of its lifetime is reached */
+		public long calcRefreshTime(long requestTime, long responseTime, long delay, long maxAge){
+			long expires = calcExpires(requestTime, responseTime, delay, maxAge);
+			return expires - (long) ((expires - responseTime) * REFRESH_AHEAD_FACTOR);
+		}
 	}
 }
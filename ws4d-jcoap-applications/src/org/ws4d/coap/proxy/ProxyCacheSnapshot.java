@@ -0,0 +1,264 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.ws4d.coap.messages.CoapMediaType;
+
+/**
+ * Snapshot of the unexpired cache entries, used for a warm restart.
+ * The snapshot is written to a temporary file that replaces the old snapshot.
+ * On startup the file is memory mapped and the entries are inserted by a
+ * background thread, so the proxy does not wait for the whole snapshot.
+ * Expiry times are stored as absolute times, so restored entries keep their
+ * remaining time to live.
+ */
+public class ProxyCacheSnapshot {
+	static Logger logger = Logger.getLogger(Proxy.class);
+	/* "JCPS" */
+	private static final int MAGIC = 0x4a435053;
+	private static final int VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ProxyCache cache;
+	private final File file;
+	private ScheduledExecutorService scheduler = null;
+
+	public ProxyCacheSnapshot(ProxyCache cache, File file) {
+		this.cache = cache;
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/* writes all unexpired entries, returns the number of written entries */
+	public synchronized int write() throws IOException {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		long now = System.currentTimeMillis();
+		int count = 0;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			for (ProxyResource resource : cache.getStore().values()) {
+				ProxyResourceKey key = resource.getKey();
+				if (key == null || (resource.expires() != -1 && resource.expires() <= now)) {
+					continue;
+				}
+				byte[] payload = resource.getValue();
+				if (payload == null) {
+					/* released in the meantime */
+					continue;
+				}
+				out.writeLong(resource.expires());
+				out.writeLong(resource.getCachedTime());
+				out.writeLong(resource.getRefreshTime());
+				writeBytes(out, key.getInetAddr().getAddress());
+				out.writeInt(key.getPort());
+				writeString(out, key.getPath());
+				writeString(out, key.getQuery());
+				writeString(out, key.getAccept());
+				writeString(out, resource.getPath());
+				CoapMediaType mediaType = resource.getCoapMediaType();
+				out.writeInt(mediaType == null ? -1 : mediaType.getValue());
+				writeBytes(out, resource.getETag());
+				writeString(out, resource.getOriginUri() == null ? null : resource.getOriginUri().toString());
+				writeBytes(out, payload);
+				count++;
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmpFile.renameTo(file)) {
+			/* some platforms do not replace existing files */
+			file.delete();
+			if (!tmpFile.renameTo(file)) {
+				throw new IOException("cannot replace snapshot " + file);
+			}
+		}
+		logger.info("cache snapshot: wrote " + count + " entries to " + file);
+		return count;
+	}
+
+	/* maps the snapshot and starts a thread that restores the entries,
+	 * returns null if there is no valid snapshot */
+	public Thread load() {
+		if (!file.isFile()) {
+			return null;
+		}
+		final MappedByteBuffer buffer;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				/* the mapping stays valid after the file is closed */
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			logger.warn("cache snapshot: cannot map " + file + ": " + e.getMessage());
+			return null;
+		}
+		if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+			logger.warn("cache snapshot: invalid file " + file);
+			return null;
+		}
+		Thread loader = new Thread("cache snapshot loader") {
+			@Override
+			public void run() {
+				restore(buffer);
+			}
+		};
+		loader.setDaemon(true);
+		loader.setPriority(Thread.MIN_PRIORITY);
+		loader.start();
+		return loader;
+	}
+
+	private void restore(MappedByteBuffer buffer) {
+		int restored = 0;
+		int skipped = 0;
+		try {
+			while (buffer.hasRemaining()) {
+				long expires = buffer.getLong();
+				long cachedTime = buffer.getLong();
+				long refreshTime = buffer.getLong();
+				byte[] address = readBytes(buffer);
+				int port = buffer.getInt();
+				String keyPath = readString(buffer);
+				String query = readString(buffer);
+				String accept = readString(buffer);
+				String path = readString(buffer);
+				int mediaType = buffer.getInt();
+				byte[] etag = readBytes(buffer);
+				String originUri = readString(buffer);
+				byte[] payload = readBytes(buffer);
+
+				if (expires != -1 && expires <= System.currentTimeMillis()) {
+					skipped++;
+					continue;
+				}
+				ProxyResource resource = new ProxyResource(path, payload, mediaType == -1 ? null : CoapMediaType.parse(mediaType));
+				resource.setKey(new ProxyResourceKey(InetAddress.getByAddress(address), port, keyPath, query, accept));
+				resource.setExpires(expires);
+				resource.setCachedTime(cachedTime);
+				resource.setRefreshTime(refreshTime);
+				resource.setETag(etag);
+				if (originUri != null) {
+					resource.setOriginUri(new URI(originUri));
+				}
+				if (cache.restore(resource)) {
+					restored++;
+				} else {
+					skipped++;
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			logger.warn("cache snapshot: truncated file " + file);
+		} catch (IOException e) {
+			/* invalid address length */
+			logger.warn("cache snapshot: invalid entry in " + file);
+		} catch (URISyntaxException e) {
+			logger.warn("cache snapshot: invalid entry in " + file);
+		}
+		logger.info("cache snapshot: restored " + restored + " entries, skipped " + skipped);
+	}
+
+	/* writes the snapshot periodically in addition to the shutdown */
+	public synchronized void schedule(long intervalSeconds) {
+		stop();
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "cache snapshot writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write();
+				} catch (IOException e) {
+					logger.warn("cache snapshot: write failed: " + e.getMessage());
+				}
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			scheduler = null;
+		}
+	}
+
+	/* byte arrays and strings are stored with their length, -1 for null */
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static void writeString(DataOutputStream out, String string) throws IOException {
+		writeBytes(out, string == null ? null : string.getBytes(UTF8));
+	}
+
+	private static byte[] readBytes(MappedByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length == -1) {
+			return null;
+		}
+		if (length < 0 || length > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	private static String readString(MappedByteBuffer buffer) {
+		byte[] bytes = readBytes(buffer);
+		return bytes == null ? null : new String(bytes, UTF8);
+	}
+}
@@ -0,0 +1,677 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory store of the proxy cache.
+ * The store is split into lock striped segments. Each segment has its own
+ * byte budget, an LRU order and a TinyLFU frequency sketch. A new entry is
+ * only admitted if it is estimated to be accessed more often than the
+ * entry that would be evicted for it.
+ * A secondary index maps the path of a resource to all cached variants
+ * (query, accept) so that all of them can be invalidated at once.
+ * The usage of every origin server with cached entries is tracked. If a
+ * quota is set, an admitted entry that exceeds it evicts entries of its own
+ * origin, so a single device cannot displace the entries of all others. The victim
+ * is chosen by the clock algorithm: a hit only sets a flag in the entry, an
+ * entry whose flag is set gets a second chance.
+ * Expired entries are removed by the timer wheel of the ProxyCache.
+ */
+public class ProxyCacheStore {
+	/* estimated heap usage of an entry without payload */
+	static final int ENTRY_OVERHEAD = 96;
+	/* used to size the frequency sketch */
+	private static final int AVERAGE_ENTRY_SIZE = 128;
+
+	private final Segment[] segments;
+	private final int segmentShift;
+	private final long maxBytes;
+	/* path key -> variant keys */
+	private final ConcurrentHashMap<ProxyResourceKey, Variants> variants = new ConcurrentHashMap<ProxyResourceKey, Variants>();
+
+	/* usage per origin server */
+	private final ConcurrentHashMap<InetSocketAddress, OriginUsage> origins = new ConcurrentHashMap<InetSocketAddress, OriginUsage>();
+	/* bytes per origin, 0 disables the quota */
+	private volatile long originQuota = 0;
+	/* quotas of single origins, override originQuota */
+	private final ConcurrentHashMap<InetSocketAddress, Long> originQuotas = new ConcurrentHashMap<InetSocketAddress, Long>();
+
+	/* statistics, shared with the store that replaces this one */
+	private final ProxyMetrics.Counter hitCount;
+	private final ProxyMetrics.Counter missCount;
+	private final ProxyMetrics.Counter evictionCount;
+	private final ProxyMetrics.Counter rejectionCount;
+	private final ProxyMetrics.Counter quotaEvictionCount;
+
+	public ProxyCacheStore(long maxBytes, int concurrencyLevel) {
+		this(maxBytes, concurrencyLevel, new ProxyMetrics());
+	}
+
+	public ProxyCacheStore(long maxBytes, int concurrencyLevel, ProxyMetrics metrics) {
+		if (maxBytes <= 0 || concurrencyLevel <= 0) {
+			throw new IllegalArgumentException("cache size and concurrency level must be positive");
+		}
+		hitCount = metrics.counter("cache.hits");
+		missCount = metrics.counter("cache.misses");
+		evictionCount = metrics.counter("cache.evictions");
+		rejectionCount = metrics.counter("cache.rejected-inserts");
+		quotaEvictionCount = metrics.counter("cache.quota-evictions");
+		int shift = 0;
+		int segmentCount = 1;
+		while (segmentCount < concurrencyLevel) {
+			segmentCount <<= 1;
+			shift++;
+		}
+		this.segmentShift = 32 - shift;
+		this.maxBytes = maxBytes;
+		this.segments = new Segment[segmentCount];
+		long segmentBytes = Math.max(maxBytes / segmentCount, 1);
+		int expectedEntries = (int) Math.min(segmentBytes / AVERAGE_ENTRY_SIZE, Integer.MAX_VALUE);
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment(segmentBytes, expectedEntries);
+		}
+	}
+
+	public ProxyResource get(ProxyResourceKey key) {
+		ProxyResource resource = segmentFor(key).get(key, true);
+		if (resource != null) {
+			hitCount.increment();
+		} else {
+			missCount.increment();
+		}
+		return resource;
+	}
+
+	/* does not update statistics and LRU order */
+	public ProxyResource getQuiet(ProxyResourceKey key) {
+		return segmentFor(key).get(key, false);
+	}
+
+	public boolean containsKey(ProxyResourceKey key) {
+		return segmentFor(key).get(key, false) != null;
+	}
+
+	/* returns false if the resource was not admitted */
+	public boolean put(ProxyResourceKey key, ProxyResource resource) {
+		return put(key, resource, false);
+	}
+
+	/* returns false if the key is already cached or the resource was not admitted */
+	public boolean putIfAbsent(ProxyResourceKey key, ProxyResource resource) {
+		return put(key, resource, true);
+	}
+
+	private boolean put(ProxyResourceKey key, ProxyResource resource, boolean onlyIfAbsent) {
+		if (!segmentFor(key).put(key, resource, onlyIfAbsent)) {
+			return false;
+		}
+		/* only admitted entries evict other entries of their origin */
+		enforceQuota(key);
+		return true;
+	}
+
+	/* evicts other entries of the same origin until the origin is within its quota */
+	private void enforceQuota(ProxyResourceKey key) {
+		InetSocketAddress origin = key.getOrigin();
+		long quota = getOriginQuota(origin);
+		if (quota <= 0) {
+			return;
+		}
+		OriginUsage usage = origins.get(origin);
+		if (usage == null) {
+			return;
+		}
+		/* the segment locks are not held, concurrent inserts exceed the quota until they enforce it */
+		while (usage.getBytes() > quota) {
+			ProxyResourceKey victim = usage.eldest(key);
+			if (victim == null) {
+				break;
+			}
+			if (segmentFor(victim).remove(victim, null) != null) {
+				usage.evictions.incrementAndGet();
+				evictionCount.increment();
+				quotaEvictionCount.increment();
+			} else {
+				/* removed in the meantime */
+				usage.forget(victim);
+			}
+		}
+	}
+
+	private void reject(ProxyResourceKey key) {
+		OriginUsage usage = origins.get(key.getOrigin());
+		if (usage != null) {
+			usage.rejections.incrementAndGet();
+		}
+		rejectionCount.increment();
+	}
+
+	/* largest payload of the key that put accepts, in the segment and in the origin quota */
+	public long getMaxPayloadLength(ProxyResourceKey key) {
+		long maxWeight = segmentFor(key).maxBytes;
+		long quota = getOriginQuota(key.getOrigin());
+		if (quota > 0 && quota < maxWeight) {
+			maxWeight = quota;
+		}
+		if (key.getPath() != null) {
+			maxWeight -= key.getPath().length();
+		}
+		return maxWeight - ENTRY_OVERHEAD;
+	}
+
+	public long getOriginQuota() {
+		return originQuota;
+	}
+
+	public void setOriginQuota(long bytes) {
+		this.originQuota = bytes;
+	}
+
+	public long getOriginQuota(InetSocketAddress origin) {
+		Long quota = originQuotas.get(origin);
+		return quota != null ? quota : originQuota;
+	}
+
+	public void setOriginQuota(InetSocketAddress origin, long bytes) {
+		originQuotas.put(origin, bytes);
+	}
+
+	/* takes the quotas of the store that is replaced */
+	void copyQuotas(ProxyCacheStore other) {
+		originQuota = other.originQuota;
+		originQuotas.putAll(other.originQuotas);
+	}
+
+	/* usage of all origins with cached entries */
+	public List<OriginUsage> getOriginUsage() {
+		return new ArrayList<OriginUsage>(origins.values());
+	}
+
+	/* adds the entry to the usage of its origin */
+	private Entry newEntry(ProxyResourceKey key, ProxyResource resource, int weight) {
+		InetSocketAddress origin = key.getOrigin();
+		while (true) {
+			Entry entry = new Entry(resource, weight, usageOf(origin));
+			if (entry.usage.add(key, entry)) {
+				return entry;
+			}
+			/* the usage became empty and was removed in the meantime */
+		}
+	}
+
+	/* removes the entry from the usage of its origin, an empty usage is dropped */
+	private void releaseEntry(ProxyResourceKey key, Entry entry) {
+		if (entry.usage.remove(key, entry.weight)) {
+			origins.remove(entry.usage.getOrigin(), entry.usage);
+		}
+	}
+
+	private OriginUsage usageOf(InetSocketAddress origin) {
+		OriginUsage usage = origins.get(origin);
+		if (usage == null) {
+			OriginUsage newUsage = new OriginUsage(origin);
+			usage = origins.putIfAbsent(origin, newUsage);
+			if (usage == null) {
+				usage = newUsage;
+			}
+		}
+		return usage;
+	}
+
+	public ProxyResource remove(ProxyResourceKey key) {
+		return segmentFor(key).remove(key, null);
+	}
+
+	/* removes the key only if it is mapped to the resource */
+	public boolean remove(ProxyResourceKey key, ProxyResource resource) {
+		return segmentFor(key).remove(key, resource) != null;
+	}
+
+	/* removes all variants of the resource, returns the number of removed entries */
+	public int removeVariants(ProxyResourceKey key) {
+		ProxyResourceKey pathKey = key.getPathKey();
+		int removed = 0;
+		Variants removedVariants = variants.remove(pathKey);
+		if (removedVariants != null) {
+			for (ProxyResourceKey variant : removedVariants.close()) {
+				if (segmentFor(variant).remove(variant, null) != null) {
+					removed++;
+				}
+			}
+		}
+		/* the plain resource is not indexed */
+		if (segmentFor(pathKey).remove(pathKey, null) != null) {
+			removed++;
+		}
+		return removed;
+	}
+
+	/* copy of all cached resources, the key is set in each resource */
+	public List<ProxyResource> values() {
+		List<ProxyResource> values = new ArrayList<ProxyResource>();
+		for (Segment segment : segments) {
+			segment.copyValues(values);
+		}
+		return values;
+	}
+
+	public void clear() {
+		for (Segment segment : segments) {
+			segment.clear();
+		}
+		for (Iterator<Variants> it = variants.values().iterator(); it.hasNext();) {
+			it.next().close();
+			it.remove();
+		}
+		for (Iterator<OriginUsage> it = origins.values().iterator(); it.hasNext();) {
+			it.next().close();
+			it.remove();
+		}
+	}
+
+	private void index(ProxyResourceKey key) {
+		if (!key.isVariant()) {
+			return;
+		}
+		ProxyResourceKey pathKey = key.getPathKey();
+		while (true) {
+			Variants keys = variants.get(pathKey);
+			if (keys == null) {
+				Variants newKeys = new Variants();
+				keys = variants.putIfAbsent(pathKey, newKeys);
+				if (keys == null) {
+					keys = newKeys;
+				}
+			}
+			if (keys.add(key)) {
+				return;
+			}
+			/* the set was removed from the index in the meantime */
+		}
+	}
+
+	private void unindex(ProxyResourceKey key) {
+		if (!key.isVariant()) {
+			return;
+		}
+		ProxyResourceKey pathKey = key.getPathKey();
+		Variants keys = variants.get(pathKey);
+		if (keys != null && keys.remove(key)) {
+			variants.remove(pathKey, keys);
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	public long getWeightedSize() {
+		long bytes = 0;
+		for (Segment segment : segments) {
+			bytes += segment.getWeightedSize();
+		}
+		return bytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public int getSegmentCount() {
+		return segments.length;
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public long getRejectionCount() {
+		return rejectionCount.get();
+	}
+
+	public long getQuotaEvictionCount() {
+		return quotaEvictionCount.get();
+	}
+
+	static int weightOf(ProxyResourceKey key, ProxyResource resource) {
+		/* off-heap payloads are counted as well, the budget covers both,
+		 * compressed payloads are counted with their compressed length */
+		int weight = ENTRY_OVERHEAD + resource.getStoredLength();
+		if (resource.getPath() != null) {
+			weight += resource.getPath().length();
+		}
+		return weight;
+	}
+
+	private Segment segmentFor(ProxyResourceKey key) {
+		if (segments.length == 1) {
+			return segments[0];
+		}
+		return segments[FrequencySketch.spread(key.hashCode()) >>> segmentShift];
+	}
+
+	/* cache usage of one origin server, the keys are kept in insertion order,
+	 * a removed usage is no longer in the map and cannot be added to */
+	public static class OriginUsage {
+		private final InetSocketAddress origin;
+		/* guarded by this */
+		private final LinkedHashMap<ProxyResourceKey, Entry> keys = new LinkedHashMap<ProxyResourceKey, Entry>();
+		private long bytes = 0;
+		private boolean removed = false;
+		private final AtomicLong hits = new AtomicLong();
+		private final AtomicLong evictions = new AtomicLong();
+		private final AtomicLong rejections = new AtomicLong();
+
+		OriginUsage(InetSocketAddress origin) {
+			this.origin = origin;
+		}
+
+		/* returns false if the usage was removed */
+		synchronized boolean add(ProxyResourceKey key, Entry entry) {
+			if (removed) {
+				return false;
+			}
+			keys.put(key, entry);
+			bytes += entry.weight;
+			return true;
+		}
+
+		/* returns true if the usage became empty and was removed, the caller removes it from the map */
+		synchronized boolean remove(ProxyResourceKey key, int weight) {
+			keys.remove(key);
+			bytes -= weight;
+			if (keys.isEmpty() && !removed) {
+				removed = true;
+				return true;
+			}
+			return false;
+		}
+
+		synchronized void forget(ProxyResourceKey key) {
+			keys.remove(key);
+		}
+
+		/* eldest key except the given one whose entry was not hit since it was last passed over */
+		synchronized ProxyResourceKey eldest(ProxyResourceKey except) {
+			List<Map.Entry<ProxyResourceKey, Entry>> referenced = null;
+			ProxyResourceKey eldest = null;
+			for (Iterator<Map.Entry<ProxyResourceKey, Entry>> it = keys.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<ProxyResourceKey, Entry> key = it.next();
+				if (key.getKey().equals(except)) {
+					continue;
+				}
+				if (!key.getValue().referenced) {
+					eldest = key.getKey();
+					break;
+				}
+				/* second chance: clear the flag and move the key to the end */
+				key.getValue().referenced = false;
+				it.remove();
+				if (referenced == null) {
+					referenced = new ArrayList<Map.Entry<ProxyResourceKey, Entry>>();
+				}
+				referenced.add(key);
+			}
+			if (referenced != null) {
+				for (Map.Entry<ProxyResourceKey, Entry> key : referenced) {
+					keys.put(key.getKey(), key.getValue());
+				}
+				if (eldest == null) {
+					/* all entries were hit, take the first one that lost its flag */
+					eldest = referenced.get(0).getKey();
+				}
+			}
+			return eldest;
+		}
+
+		synchronized void close() {
+			removed = true;
+			keys.clear();
+			bytes = 0;
+		}
+
+		public InetSocketAddress getOrigin() {
+			return origin;
+		}
+
+		public synchronized long getBytes() {
+			return bytes;
+		}
+
+		public synchronized int getEntryCount() {
+			return keys.size();
+		}
+
+		public long getHitCount() {
+			return hits.get();
+		}
+
+		public long getEvictionCount() {
+			return evictions.get();
+		}
+
+		public long getRejectionCount() {
+			return rejections.get();
+		}
+	}
+
+	/* variant keys of one path, a closed set is no longer in the index and cannot be added to */
+	private static class Variants {
+		/* guarded by this */
+		private final Set<ProxyResourceKey> keys = new HashSet<ProxyResourceKey>();
+		private boolean closed = false;
+
+		/* returns false if the set is closed */
+		synchronized boolean add(ProxyResourceKey key) {
+			if (closed) {
+				return false;
+			}
+			keys.add(key);
+			return true;
+		}
+
+		/* returns true if the set became empty and was closed, the caller removes it from the index */
+		synchronized boolean remove(ProxyResourceKey key) {
+			keys.remove(key);
+			if (keys.isEmpty() && !closed) {
+				closed = true;
+				return true;
+			}
+			return false;
+		}
+
+		/* returns the keys, following adds fail */
+		synchronized List<ProxyResourceKey> close() {
+			closed = true;
+			return new ArrayList<ProxyResourceKey>(keys);
+		}
+	}
+
+	private static class Entry {
+		final ProxyResource resource;
+		final int weight;
+		final OriginUsage usage;
+		/* set by hits, cleared by the quota eviction */
+		volatile boolean referenced = false;
+
+		Entry(ProxyResource resource, int weight, OriginUsage usage) {
+			this.resource = resource;
+			this.weight = weight;
+			this.usage = usage;
+		}
+	}
+
+	private class Segment {
+		/* insertion ordered, accessed entries are reinserted: the eldest entry is the LRU victim */
+		private final LinkedHashMap<ProxyResourceKey, Entry> map = new LinkedHashMap<ProxyResourceKey, Entry>();
+		private final FrequencySketch sketch;
+		private final long maxBytes;
+		private long weightedSize = 0;
+
+		Segment(long maxBytes, int expectedEntries) {
+			this.maxBytes = maxBytes;
+			this.sketch = new FrequencySketch(expectedEntries);
+		}
+
+		synchronized ProxyResource get(ProxyResourceKey key, boolean recordAccess) {
+			if (recordAccess) {
+				sketch.increment(key);
+			}
+			Entry entry = map.get(key);
+			if (entry == null) {
+				return null;
+			}
+			if (recordAccess) {
+				/* move to the MRU end */
+				map.remove(key);
+				map.put(key, entry);
+				entry.referenced = true;
+				entry.usage.hits.incrementAndGet();
+			}
+			return entry.resource;
+		}
+
+		synchronized boolean put(ProxyResourceKey key, ProxyResource resource, boolean onlyIfAbsent) {
+			if (onlyIfAbsent && map.containsKey(key)) {
+				return false;
+			}
+			int weight = weightOf(key, resource);
+			long quota = getOriginQuota(key.getOrigin());
+			if (weight > maxBytes || (quota > 0 && weight > quota)) {
+				/* the old representation must not be served instead of the rejected one */
+				remove(key, null);
+				reject(key);
+				return false;
+			}
+			Entry old = map.remove(key);
+			if (old != null) {
+				/* replacing an entry is always admitted, a larger one evicts the LRU entries */
+				weightedSize -= old.weight;
+				releaseEntry(key, old);
+				if (old.resource != resource) {
+					old.resource.discard();
+				}
+				evict(weight);
+			} else if (weightedSize + weight > maxBytes) {
+				if (!makeRoom(key, weight)) {
+					reject(key);
+					return false;
+				}
+			}
+			map.put(key, newEntry(key, resource, weight));
+			weightedSize += weight;
+			index(key);
+			return true;
+		}
+
+		/* TinyLFU admission: evict victims as long as the candidate is more popular */
+		private boolean makeRoom(ProxyResourceKey candidate, int weight) {
+			int candidateFrequency = sketch.frequency(candidate);
+			Iterator<Map.Entry<ProxyResourceKey, Entry>> it = map.entrySet().iterator();
+			long freed = 0;
+			long needed = weightedSize + weight - maxBytes;
+			/* first check that the candidate wins against all required victims */
+			while (freed < needed && it.hasNext()) {
+				Map.Entry<ProxyResourceKey, Entry> victim = it.next();
+				if (sketch.frequency(victim.getKey()) >= candidateFrequency) {
+					return false;
+				}
+				freed += victim.getValue().weight;
+			}
+			if (freed < needed) {
+				return false;
+			}
+			evict(weight);
+			return true;
+		}
+
+		/* evicts LRU entries until an entry of the weight fits */
+		private void evict(int weight) {
+			Iterator<Map.Entry<ProxyResourceKey, Entry>> it = map.entrySet().iterator();
+			while (weightedSize + weight > maxBytes && it.hasNext()) {
+				Map.Entry<ProxyResourceKey, Entry> victim = it.next();
+				it.remove();
+				weightedSize -= victim.getValue().weight;
+				unindex(victim.getKey());
+				victim.getValue().usage.evictions.incrementAndGet();
+				releaseEntry(victim.getKey(), victim.getValue());
+				victim.getValue().resource.discard();
+				evictionCount.increment();
+			}
+		}
+
+		synchronized ProxyResource remove(ProxyResourceKey key, ProxyResource resource) {
+			Entry entry = map.get(key);
+			if (entry == null || (resource != null && entry.resource != resource)) {
+				return null;
+			}
+			map.remove(key);
+			weightedSize -= entry.weight;
+			unindex(key);
+			releaseEntry(key, entry);
+			entry.resource.discard();
+			return entry.resource;
+		}
+
+		synchronized void clear() {
+			for (Entry entry : map.values()) {
+				entry.resource.discard();
+			}
+			map.clear();
+			weightedSize = 0;
+		}
+
+		synchronized void copyValues(List<ProxyResource> values) {
+			for (Entry entry : map.values()) {
+				values.add(entry.resource);
+			}
+		}
+
+		synchronized int size() {
+			return map.size();
+		}
+
+		synchronized long getWeightedSize() {
+			return weightedSize;
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Partitions the cache of a proxy cluster by consistent hashing.
+ * Every node is placed on a hash ring at VIRTUAL_NODES points, a resource is
+ * owned by the node at the first point after the hash of its key. A node
+ * forwards cache misses of resources it does not own to the owner, which
+ * answers from its cache or requests the origin server. The peer protocol is
+ * CoAP: the forwarded request carries the resource as Proxy-Uri.
+ * The members are given by a static list that must be the same on all nodes,
+ * otherwise requests can be forwarded in circles. A peer that does not respond
+ * is skipped for PEER_DOWN_MS, its resources are requested directly.
+ */
+public class ProxyCluster {
+	static Logger logger = Logger.getLogger(Proxy.class);
+	public static final int VIRTUAL_NODES = 128;
+	static final long PEER_DOWN_MS = 30 * 1000;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/* immutable after construction */
+	private final TreeMap<Long, InetSocketAddress> ring = new TreeMap<Long, InetSocketAddress>();
+	private final List<InetSocketAddress> peers;
+	/* null if this node is not a member and forwards all misses */
+	private final InetSocketAddress self;
+	/* peers that did not respond, with the time they are asked again */
+	private final Map<InetSocketAddress, Long> downUntil = new ConcurrentHashMap<InetSocketAddress, Long>();
+
+	/* statistics */
+	private final ProxyMetrics.Counter forwardedCount;
+	private final ProxyMetrics.Counter failedCount;
+
+	/* self is the member that is this node, null if it is no member */
+	public ProxyCluster(List<InetSocketAddress> members, InetSocketAddress self) {
+		this(members, self, new ProxyMetrics());
+	}
+
+	public ProxyCluster(List<InetSocketAddress> members, InetSocketAddress self, ProxyMetrics metrics) {
+		if (members.isEmpty()) {
+			throw new IllegalArgumentException("no cluster members");
+		}
+		forwardedCount = metrics.counter("cluster.forwarded");
+		failedCount = metrics.counter("cluster.failed-forwards");
+		this.peers = new ArrayList<InetSocketAddress>(members);
+		this.self = self;
+		for (InetSocketAddress member : members) {
+			String id = member.getAddress().getHostAddress() + ":" + member.getPort();
+			for (int i = 0; i < VIRTUAL_NODES; i++) {
+				ring.put(mix(hash((id + "#" + i).getBytes(UTF8), FNV_OFFSET)), member);
+			}
+		}
+	}
+
+	/* returns the member with the same port and a local address, null if there is none */
+	public static InetSocketAddress findSelf(List<InetSocketAddress> members, int localPort) {
+		for (InetSocketAddress member : members) {
+			if (member.getPort() == localPort && isLocalAddress(member.getAddress())) {
+				return member;
+			}
+		}
+		return null;
+	}
+
+	private static boolean isLocalAddress(InetAddress address) {
+		if (address.isLoopbackAddress() || address.isAnyLocalAddress()) {
+			return true;
+		}
+		try {
+			return NetworkInterface.getByInetAddress(address) != null;
+		} catch (SocketException e) {
+			return false;
+		}
+	}
+
+	public InetSocketAddress getSelf() {
+		return self;
+	}
+
+	public List<InetSocketAddress> getPeers() {
+		return peers;
+	}
+
+	/* returns the peer the request has to be forwarded to, null if this node owns the resource */
+	public InetSocketAddress getOwner(ProxyResourceKey key) {
+		Map.Entry<Long, InetSocketAddress> entry = ring.ceilingEntry(hash(key));
+		if (entry == null) {
+			/* wrap around */
+			entry = ring.firstEntry();
+		}
+		InetSocketAddress owner = entry.getValue();
+		if (owner.equals(self)) {
+			return null;
+		}
+		Long down = downUntil.get(owner);
+		if (down != null) {
+			if (down > System.currentTimeMillis()) {
+				return null;
+			}
+			downUntil.remove(owner);
+			logger.info("cluster: asking peer " + owner + " again");
+		}
+		forwardedCount.increment();
+		return owner;
+	}
+
+	/* the peer did not respond, its resources are requested directly for a while */
+	public void markDown(InetSocketAddress peer) {
+		failedCount.increment();
+		if (downUntil.put(peer, System.currentTimeMillis() + PEER_DOWN_MS) == null) {
+			logger.warn("cluster: peer " + peer + " does not respond");
+		}
+	}
+
+	/* the hash covers all parts of the key and is the same on all nodes */
+	static long hash(ProxyResourceKey key) {
+		long h = hash(key.getInetAddr().getAddress(), FNV_OFFSET);
+		h = (h ^ key.getPort()) * FNV_PRIME;
+		h = hash(key.getPath().getBytes(UTF8), h);
+		if (key.getQuery() != null) {
+			h = hash(key.getQuery().getBytes(UTF8), (h ^ '?') * FNV_PRIME);
+		}
+		if (key.getAccept() != null) {
+			h = hash(key.getAccept().getBytes(UTF8), (h ^ '#') * FNV_PRIME);
+		}
+		return mix(h);
+	}
+
+	/* FNV-1a */
+	private static long hash(byte[] bytes, long h) {
+		for (byte b : bytes) {
+			h = (h ^ (b & 0xff)) * FNV_PRIME;
+		}
+		return h;
+	}
+
+	/* spreads the FNV hash over all bits (MurmurHash3 finalizer) */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public long getForwardedCount() {
+		return forwardedCount.get();
+	}
+
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	public int getDownCount() {
+		return downUntil.size();
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+
+/**
+ * Admission filter in front of the cache ("doorkeeper").
+ * Cache misses are counted in a count-min sketch and a response is only
+ * cached if its resource missed at least threshold times within the window.
+ * Resources that are requested only once (scanners, diagnostics) do not
+ * displace popular entries. All counters are halved at the end of each window
+ * and after every 10 * EXPECTED_KEYS increments.
+ */
+public class ProxyDoorkeeper {
+	public static final int DEFAULT_THRESHOLD = 2;
+	public static final long DEFAULT_WINDOW_MS = 60 * 1000;
+	/* 4-bit counters */
+	public static final int MAX_THRESHOLD = 15;
+	private static final int EXPECTED_KEYS = 4096;
+
+	private final ProxyTimerWheel timerWheel;
+	/* guarded by this */
+	private final FrequencySketch sketch = new FrequencySketch(EXPECTED_KEYS);
+	private ProxyTimerWheel.Timeout aging = null;
+	/* incremented when the window changes, outdated aging tasks stop */
+	private int agingGeneration = 0;
+	private long windowMs = 0;
+	/* 1 admits every resource */
+	private volatile int threshold = DEFAULT_THRESHOLD;
+
+	/* statistics */
+	private final ProxyMetrics.Counter admittedCount;
+	private final ProxyMetrics.Counter rejectedCount;
+
+	public ProxyDoorkeeper(ProxyTimerWheel timerWheel) {
+		this(timerWheel, new ProxyMetrics());
+	}
+
+	public ProxyDoorkeeper(ProxyTimerWheel timerWheel, ProxyMetrics metrics) {
+		this.timerWheel = timerWheel;
+		admittedCount = metrics.counter("cache.admitted");
+		rejectedCount = metrics.counter("cache.not-admitted");
+		setWindow(DEFAULT_WINDOW_MS);
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	public void setThreshold(int threshold) {
+		if (threshold < 1 || threshold > MAX_THRESHOLD) {
+			throw new IllegalArgumentException("admission threshold must be between 1 and " + MAX_THRESHOLD);
+		}
+		this.threshold = threshold;
+	}
+
+	public synchronized long getWindow() {
+		return windowMs;
+	}
+
+	/* 0 ages the counters only by the number of increments */
+	public synchronized void setWindow(long windowMs) {
+		this.windowMs = windowMs;
+		if (aging != null) {
+			aging.cancel();
+			aging = null;
+		}
+		scheduleAging();
+	}
+
+	private synchronized void scheduleAging() {
+		if (windowMs <= 0) {
+			return;
+		}
+		final int generation = ++agingGeneration;
+		aging = timerWheel.schedule(System.currentTimeMillis() + windowMs, new Runnable() {
+			@Override
+			public void run() {
+				synchronized (ProxyDoorkeeper.this) {
+					if (generation != agingGeneration) {
+						return;
+					}
+					sketch.reset();
+					scheduleAging();
+				}
+			}
+		});
+	}
+
+	public void recordMiss(ProxyResourceKey key) {
+		if (threshold <= 1) {
+			return;
+		}
+		synchronized (this) {
+			sketch.increment(key);
+		}
+	}
+
+	/* returns true if the resource was requested often enough to be cached */
+	public boolean admit(ProxyResourceKey key) {
+		int minCount = threshold;
+		boolean admitted = true;
+		if (minCount > 1) {
+			synchronized (this) {
+				admitted = sketch.frequency(key) >= minCount;
+			}
+		}
+		if (admitted) {
+			admittedCount.increment();
+		} else {
+			rejectedCount.increment();
+		}
+		return admitted;
+	}
+
+	public long getAdmittedCount() {
+		return admittedCount.get();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Table of pending upstream requests used to coalesce concurrent cache misses.
+ * The first context that joins a key becomes the leader and sends the request,
+ * all other contexts wait for the response of the leader.
+ */
+public class ProxyInFlightTable {
+	private final ConcurrentHashMap<ProxyResourceKey, InFlightRequest> table = new ConcurrentHashMap<ProxyResourceKey, InFlightRequest>();
+
+	/* statistics */
+	private final ProxyMetrics.Counter leaderCount;
+	private final ProxyMetrics.Counter coalescedCount;
+
+	public ProxyInFlightTable() {
+		this(new ProxyMetrics());
+	}
+
+	public ProxyInFlightTable(ProxyMetrics metrics) {
+		leaderCount = metrics.counter("proxy.upstream-requests");
+		coalescedCount = metrics.counter("proxy.coalesced-requests");
+	}
+
+	/* returns true if the context is the leader and has to send the request */
+	public boolean join(ProxyResourceKey key, ProxyMessageContext context) {
+		while (true) {
+			InFlightRequest inFlight = new InFlightRequest(context);
+			InFlightRequest existing = table.putIfAbsent(key, inFlight);
+			if (existing == null) {
+				leaderCount.increment();
+				return true;
+			}
+			synchronized (existing) {
+				if (!existing.completed) {
+					existing.followers.add(context);
+					coalescedCount.increment();
+					return false;
+				}
+			}
+			/* the leader completed in the meantime, try again */
+		}
+	}
+
+	/* like join, but does not wait if the key is already pending */
+	public boolean lead(ProxyResourceKey key, ProxyMessageContext context) {
+		if (table.putIfAbsent(key, new InFlightRequest(context)) == null) {
+			leaderCount.increment();
+			return true;
+		}
+		return false;
+	}
+
+	/* removes the key, returns the waiting contexts */
+	public List<ProxyMessageContext> complete(ProxyResourceKey key, ProxyMessageContext leader) {
+		InFlightRequest inFlight = table.get(key);
+		if (inFlight == null || inFlight.leader != leader) {
+			return Collections.emptyList();
+		}
+		synchronized (inFlight) {
+			inFlight.completed = true;
+			table.remove(key, inFlight);
+			return inFlight.followers;
+		}
+	}
+
+	public int size() {
+		return table.size();
+	}
+
+	public long getLeaderCount() {
+		return leaderCount.get();
+	}
+
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	private static class InFlightRequest {
+		final ProxyMessageContext leader;
+		final List<ProxyMessageContext> followers = new ArrayList<ProxyMessageContext>();
+		boolean completed = false;
+
+		InFlightRequest(ProxyMessageContext leader) {
+			this.leader = leader;
+		}
+	}
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sends invalidations of cached resources to the other proxy instances of a
+ * cluster and removes the resources invalidated by them.
+ * Invalidations are collected for FLUSH_INTERVAL_MS and sent as one UDP
+ * multicast datagram. Each datagram carries the id of the sending instance,
+ * so instances ignore their own datagrams and several instances can share a
+ * host or a JVM (multicast loopback is enabled).
+ * Datagram format: magic, version, instance id, key count and for each key
+ * the address, port and path of the resource. All variants of an invalidated
+ * resource are removed, as for local invalidations.
+ * Invalidations are not acknowledged, a lost datagram leaves the resource
+ * cached until it expires. Keys that do not fit into one datagram are not
+ * sent and are counted as dropped.
+ */
+public class ProxyInvalidationBus {
+	static Logger logger = Logger.getLogger(Proxy.class);
+	public static final String DEFAULT_GROUP = "239.255.67.80";
+	public static final int DEFAULT_PORT = 5690;
+	static final long FLUSH_INTERVAL_MS = 20;
+	/* stays below the Ethernet MTU */
+	private static final int MAX_DATAGRAM_SIZE = 1400;
+	/* "JCPI" */
+	private static final int MAGIC = 0x4a435049;
+	private static final byte VERSION = 1;
+	/* magic, version, instance id and key count */
+	private static final int HEADER_SIZE = 4 + 1 + 8 + 2;
+
+	private final ProxyCache cache;
+	private final InetSocketAddress group;
+	private final NetworkInterface networkInterface;
+	private final long instanceId = new Random().nextLong();
+	private MulticastSocket socket;
+	private Thread sender;
+	private Thread receiver;
+	private volatile boolean stopped = false;
+
+	/* pending invalidations, guarded by this */
+	private final ByteArrayOutputStream batch = new ByteArrayOutputStream(MAX_DATAGRAM_SIZE);
+	private int batchCount = 0;
+
+	/* statistics */
+	private final ProxyMetrics.Counter sentDatagrams;
+	private final ProxyMetrics.Counter sentKeys;
+	private final ProxyMetrics.Counter receivedKeys;
+	private final ProxyMetrics.Counter invalidDatagrams;
+	private final ProxyMetrics.Counter droppedKeys;
+
+	/* the network interface is optional, e.g., the loopback interface for tests */
+	public ProxyInvalidationBus(ProxyCache cache, InetSocketAddress group, NetworkInterface networkInterface) {
+		this.cache = cache;
+		this.group = group;
+		this.networkInterface = networkInterface;
+		/* counted with the other metrics of the cache */
+		ProxyMetrics metrics = cache.getMetrics();
+		sentDatagrams = metrics.counter("invalidation.sent-datagrams");
+		sentKeys = metrics.counter("invalidation.sent-keys");
+		receivedKeys = metrics.counter("invalidation.received-keys");
+		invalidDatagrams = metrics.counter("invalidation.invalid-datagrams");
+		droppedKeys = metrics.counter("invalidation.dropped-keys");
+	}
+
+	public synchronized void start() throws IOException {
+		if (socket != null) {
+			return;
+		}
+		socket = new MulticastSocket(group.getPort());
+		if (networkInterface != null) {
+			socket.setNetworkInterface(networkInterface);
+		}
+		/* false enables the loopback of sent datagrams */
+		socket.setLoopbackMode(false);
+		socket.setTimeToLive(1);
+		socket.joinGroup(group.getAddress());
+		sender = new Thread("cache invalidation sender") {
+			@Override
+			public void run() {
+				sendLoop();
+			}
+		};
+		receiver = new Thread("cache invalidation receiver") {
+			@Override
+			public void run() {
+				receiveLoop();
+			}
+		};
+		sender.setDaemon(true);
+		receiver.setDaemon(true);
+		sender.start();
+		receiver.start();
+		logger.info("cache invalidation bus: joined " + group);
+	}
+
+	public void stop() {
+		stopped = true;
+		MulticastSocket s;
+		Thread t;
+		synchronized (this) {
+			s = socket;
+			t = sender;
+		}
+		if (t != null) {
+			/* the sender flushes the pending invalidations */
+			t.interrupt();
+			try {
+				t.join(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (s != null) {
+			/* unblocks the receiver */
+			s.close();
+		}
+	}
+
+	/* queues the invalidation of all variants of the resource */
+	public void publish(ProxyResourceKey key) {
+		if (stopped) {
+			return;
+		}
+		byte[] entry;
+		try {
+			entry = encode(key.getPathKey());
+		} catch (IOException e) {
+			/* path too long */
+			logger.warn("cache invalidation bus: cannot encode " + key.getPath());
+			droppedKeys.increment();
+			return;
+		}
+		if (HEADER_SIZE + entry.length > MAX_DATAGRAM_SIZE) {
+			/* the receivers would get a truncated datagram */
+			logger.warn("cache invalidation bus: path too long for a datagram: " + key.getPath());
+			droppedKeys.increment();
+			return;
+		}
+		byte[] full = null;
+		synchronized (this) {
+			if (HEADER_SIZE + batch.size() + entry.length > MAX_DATAGRAM_SIZE || batchCount == 0xffff) {
+				full = takeBatch();
+			}
+			batch.write(entry, 0, entry.length);
+			batchCount++;
+		}
+		if (full != null) {
+			send(full);
+		}
+	}
+
+	/* returns the datagram of the pending invalidations, null if there are none */
+	private synchronized byte[] takeBatch() {
+		if (batchCount == 0) {
+			return null;
+		}
+		ByteArrayOutputStream datagram = new ByteArrayOutputStream(HEADER_SIZE + batch.size());
+		DataOutputStream out = new DataOutputStream(datagram);
+		try {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeLong(instanceId);
+			out.writeShort(batchCount);
+			batch.writeTo(out);
+		} catch (IOException e) {
+			/* not thrown by byte array streams */
+		}
+		sentKeys.add(batchCount);
+		batch.reset();
+		batchCount = 0;
+		return datagram.toByteArray();
+	}
+
+	private void send(byte[] datagram) {
+		MulticastSocket s;
+		synchronized (this) {
+			s = socket;
+		}
+		if (s == null) {
+			return;
+		}
+		try {
+			s.send(new DatagramPacket(datagram, datagram.length, group));
+			sentDatagrams.increment();
+		} catch (IOException e) {
+			logger.warn("cache invalidation bus: send failed: " + e.getMessage());
+		}
+	}
+
+	private void sendLoop() {
+		while (!stopped) {
+			try {
+				Thread.sleep(FLUSH_INTERVAL_MS);
+			} catch (InterruptedException e) {
+				/* stopped, send the pending invalidations */
+			}
+			byte[] datagram = takeBatch();
+			if (datagram != null) {
+				send(datagram);
+			}
+		}
+	}
+
+	private void receiveLoop() {
+		byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+		while (!stopped) {
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			try {
+				socket.receive(packet);
+			} catch (SocketException e) {
+				/* socket closed */
+				break;
+			} catch (IOException e) {
+				logger.warn("cache invalidation bus: receive failed: " + e.getMessage());
+				continue;
+			}
+			try {
+				receive(new DataInputStream(new ByteArrayInputStream(packet.getData(), packet.getOffset(), packet.getLength())));
+			} catch (IOException e) {
+				invalidDatagrams.increment();
+				logger.warn("cache invalidation bus: invalid datagram from " + packet.getSocketAddress());
+			}
+		}
+	}
+
+	private void receive(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+			throw new IOException("invalid header");
+		}
+		if (in.readLong() == instanceId) {
+			/* own datagram */
+			return;
+		}
+		int count = in.readUnsignedShort();
+		for (int i = 0; i < count; i++) {
+			byte[] address = new byte[in.readUnsignedByte()];
+			in.readFully(address);
+			int port = in.readUnsignedShort();
+			String path = in.readUTF();
+			cache.removeInvalidated(new ProxyResourceKey(InetAddress.getByAddress(address), port, path));
+			receivedKeys.increment();
+		}
+	}
+
+	private static byte[] encode(ProxyResourceKey key) throws IOException {
+		ByteArrayOutputStream entry = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(entry);
+		byte[] address = key.getInetAddr().getAddress();
+		out.writeByte(address.length);
+		out.write(address);
+		out.writeShort(key.getPort());
+		out.writeUTF(key.getPath());
+		return entry.toByteArray();
+	}
+
+	public InetSocketAddress getGroup() {
+		return group;
+	}
+
+	public long getSentDatagramCount() {
+		return sentDatagrams.get();
+	}
+
+	public long getSentKeyCount() {
+		return sentKeys.get();
+	}
+
+	public long getReceivedKeyCount() {
+		return receivedKeys.get();
+	}
+
+	public long getInvalidDatagramCount() {
+		return invalidDatagrams.get();
+	}
+
+	public long getDroppedKeyCount() {
+		return droppedKeys.get();
+	}
+}
@@ -23,16 +23,19 @@ import java.io.UnsupportedEncodingException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
-
-import net.sf.ehcache.Element;
+import java.util.Vector;
 
 import org.apache.http.Header;
 import org.apache.http.HttpRequest;
@@ -48,6 +51,7 @@ import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.message.BasicHttpEntityEnclosingRequest;
 import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.nio.entity.ConsumingNHttpEntityTemplate;
+import org.apache.http.nio.entity.NByteArrayEntity;
 import org.apache.http.nio.entity.NStringEntity;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
@@ -58,6 +62,8 @@ import org.ws4d.coap.interfaces.CoapServerChannel;
 import org.ws4d.coap.messages.AbstractCoapMessage.CoapHeaderOptionType;
 import org.ws4d.coap.messages.BasicCoapRequest;
 import org.ws4d.coap.messages.BasicCoapResponse;
+import org.ws4d.coap.messages.CoapBlockOption;
+import org.ws4d.coap.messages.CoapBlockOption.CoapBlockSize;
 import org.ws4d.coap.messages.CoapMediaType;
 import org.ws4d.coap.messages.CoapRequestCode;
 import org.ws4d.coap.messages.CoapResponseCode;
@@ -69,6 +75,10 @@ import org.ws4d.coap.messages.CoapResponseCode;
 public class ProxyMapper {
 	static Logger logger = Logger.getLogger(Proxy.class);
 	static final int DEFAULT_MAX_AGE_MS = 60000; //Max Age Default in ms 
+	/* larger payloads are sent block-wise (Block2) */
+	static final CoapBlockSize MAX_BLOCK_SIZE = CoapBlockSize.BLOCK_1024;
+	/* RFC 6585, not defined by HttpStatus of httpcore 4.2 */
+	static final int SC_TOO_MANY_REQUESTS = 429;
 
 	//introduce other needed classes for communication
 	private CoapClientProxy coapClient;
@@ -76,13 +86,104 @@ public class ProxyMapper {
 	private HttpServerNIO httpServer;
 	private HttpClientNIO httpClient;
 	private static ProxyCache cache;	
+	/* counters and gauges of this proxy, initialized before the components */
+	private final ProxyMetrics metrics = new ProxyMetrics();
+	/* pending upstream CoAP requests, used to coalesce cache misses */
+	private final ProxyInFlightTable inFlight = new ProxyInFlightTable(metrics);
+	/* drives cache expiry and the timeouts of pending requests */
+	private final ProxyTimerWheel timerWheel = new ProxyTimerWheel();
+	/* recent failures of origin servers */
+	private final ProxyNegativeCache negativeCache = new ProxyNegativeCache(timerWheel, metrics);
+	/* partitions the cache between the nodes of a proxy cluster, null if there is no cluster */
+	private volatile ProxyCluster cluster = null;
+	/* shared upstream observations */
+	private final ProxyObserveRelay observeRelay;
+	/* limits the pending requests per origin server */
+	private final ProxyOriginLimiter originLimiter = new ProxyOriginLimiter(metrics);
+	/* request rates of cache misses per origin server and per client, of cache hits per client */
+	private final ProxyRateLimiter originRateLimiter = new ProxyRateLimiter("rate-limit.origin", metrics);
+	private final ProxyRateLimiter clientRateLimiter = new ProxyRateLimiter("rate-limit.client", metrics);
+	private final ProxyRateLimiter hitRateLimiter = new ProxyRateLimiter("rate-limit.client-hits", metrics);
+	/* host names of the request URIs, resolved off the I/O threads */
+	private final ProxyResolver resolver = new ProxyResolver(metrics);
+	/* threads and queues between the I/O threads and the handlers below */
+	private final ProxyPipeline pipeline = new ProxyPipeline(metrics);
+
+	/* answers the client of a context whose handler failed with 5.00/500 */
+	private abstract class FailureHandler extends ProxyPipeline.Handler {
+		@Override
+		public void failed(ProxyMessageContext context, RuntimeException e) {
+			answerFailure(context);
+		}
+	}
+
+	private final ProxyPipeline.Handler httpLookup = new FailureHandler() {
+		@Override
+		public void handle(ProxyMessageContext context) {
+			lookupHttpServerRequest(context);
+		}
+
+		@Override
+		public void rejected(ProxyMessageContext context) {
+			sendDirectHttpError(context, HttpStatus.SC_SERVICE_UNAVAILABLE, "Service Unavailable");
+		}
+	};
+	private final ProxyPipeline.Handler httpForward = new FailureHandler() {
+		@Override
+		public void handle(ProxyMessageContext context) {
+			forwardHttpServerRequest(context);
+		}
+
+		@Override
+		public void rejected(ProxyMessageContext context) {
+			sendDirectHttpError(context, HttpStatus.SC_SERVICE_UNAVAILABLE, "Service Unavailable");
+		}
+	};
+	private final ProxyPipeline.Handler coapLookup = new FailureHandler() {
+		@Override
+		public void handle(ProxyMessageContext context) {
+			lookupCoapServerRequest(context);
+		}
+
+		@Override
+		public void rejected(ProxyMessageContext context) {
+			sendDirectCoapError(context, CoapResponseCode.Service_Unavailable_503);
+		}
+	};
+	private final ProxyPipeline.Handler coapForward = new FailureHandler() {
+		@Override
+		public void handle(ProxyMessageContext context) {
+			forwardCoapServerRequest(context);
+		}
+
+		@Override
+		public void rejected(ProxyMessageContext context) {
+			sendDirectCoapError(context, CoapResponseCode.Service_Unavailable_503);
+		}
+	};
+	private final ProxyPipeline.Handler coapResponse = new FailureHandler() {
+		@Override
+		public void handle(ProxyMessageContext context) {
+			processCoapClientResponse(context);
+		}
+	};
+	private final ProxyPipeline.Handler httpResponse = new FailureHandler() {
+		@Override
+		public void handle(ProxyMessageContext context) {
+			processHttpClientResponse(context);
+		}
+	};
+	/* longer than the CoAP MAX_TRANSMIT_WAIT (93 s), the CoAP client usually fails first */
+	static final long DEFAULT_PENDING_TIMEOUT_MS = 100 * 1000;
+	private volatile long pendingTimeoutMs = DEFAULT_PENDING_TIMEOUT_MS;
+	private final ProxyMetrics.Counter pendingTimeoutCount = metrics.counter("proxy.request-timeouts");
 	
 	private static ProxyMapper instance;
 	
 	/*for statistics*/
-	private int httpRequestCount = 0;
-	private int coapRequestCount = 0;
-	private int servedFromCacheCount = 0;
+	private final ProxyMetrics.Counter httpRequestCount = metrics.counter("proxy.http-requests");
+	private final ProxyMetrics.Counter coapRequestCount = metrics.counter("proxy.coap-requests");
+	private final ProxyMetrics.Counter servedFromCacheCount = metrics.counter("proxy.served-from-cache");
 	
 
     public synchronized static ProxyMapper getInstance() {
@@ -93,8 +194,48 @@ public class ProxyMapper {
     }
 
     private ProxyMapper() {
-		cache = new ProxyCache();
+		cache = new ProxyCache(timerWheel, metrics);
+		observeRelay = new ProxyObserveRelay(this, cache, timerWheel);
+		registerMetrics();
     }
+
+	/* components without own registration are read when the statistic is requested */
+	private void registerMetrics() {
+		metrics.gauge("proxy.pending-requests", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return inFlight.size();
+			}
+		});
+		metrics.gauge("proxy.scheduled-timers", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return timerWheel.size();
+			}
+		});
+		metrics.gauge("negative-cache.entries", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return negativeCache.size();
+			}
+		});
+		metrics.gauge("observe.observations", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return observeRelay.getObservationCount();
+			}
+		});
+		metrics.gauge("observe.clients", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return observeRelay.getObserverCount();
+			}
+		});
+	}
+
+	public ProxyMetrics getMetrics() {
+		return metrics;
+	}
     
     /*
     *               Server                              Client
@@ -120,7 +261,18 @@ public class ProxyMapper {
     
     
 	public void handleHttpServerRequest(ProxyMessageContext context) {
-		httpRequestCount++;
+		httpRequestCount.increment();
+		if (pipeline.isThreadPerRequest()) {
+			pipeline.startRequest(context, httpLookup);
+		} else if (pipeline.isInlineCacheHits()) {
+			/* cache hits are answered on the I/O thread, misses are queued */
+			pipeline.getLookupStage().process(context, httpLookup);
+		} else {
+			pipeline.getLookupStage().submit(context, httpLookup);
+		}
+	}
+
+	private void lookupHttpServerRequest(ProxyMessageContext context) {
 		// do not translate methods: OPTIONS,TRACE,CONNECT -> error
 		// "Not Implemented"
 		if (isHttpRequestMethodSupported(context.getInHttpRequest())) {
@@ -128,32 +280,33 @@ public class ProxyMapper {
 			
 			/* try to get from cache */
 			ProxyResource resource = null;
-			if (context.getInHttpRequest().getRequestLine().getMethod().toLowerCase().equals("get")){
+			boolean get = context.getInHttpRequest().getRequestLine().getMethod().toLowerCase().equals("get");
+			if (get){
 				resource = cache.get(context);
 			}
 			
+			long wait = get ? getLongPollWait(context.getInHttpRequest()) : -1;
+			if (wait > 0 && observeRelay.longPoll(context, wait)) {
+				/* the client waits for the next change of the resource */
+				return;
+			}
+			
 			if (resource != null) {
+				if (isRateLimited(context, hitRateLimiter, context.getClientAddress())) {
+					return;
+				}
 				/* answer from cache */
 				resourceToHttp(context, resource);
 				context.setCached(true); // avoid "recaching"
 				httpServer.sendResponse(context);
 				logger.info("served HTTP request from cache");
-				servedFromCacheCount++;
+				servedFromCacheCount.increment();
+				if (cache.claimRefresh(resource)) {
+					refreshResource(resource);
+				}
 			} else {
 				/* not cached -> forward request */
-				try {
-					coapClient.createChannel(context); //channel must be created first 
-					transRequestHttpToCoap(context);
-					context.setRequestTime(System.currentTimeMillis());
-					coapClient.sendRequest(context);
-				} catch (Exception e) {
-					logger.warn("HTTP to CoAP Request failed: " + e.getMessage());
-					/* close if a channel was connected */
-					if (context.getOutCoapClientChannel() != null){
-						context.getOutCoapClientChannel().close();
-					}
-					sendDirectHttpError(context, HttpStatus.SC_INTERNAL_SERVER_ERROR, "Internal Server Error");
-				}
+				pipeline.getTranslateStage().submit(context, httpForward);
 			}
 		} else {
 			/* method not supported */
@@ -161,62 +314,256 @@ public class ProxyMapper {
 		}
 	}
 
+	private void forwardHttpServerRequest(ProxyMessageContext context) {
+		String method = context.getInHttpRequest().getRequestLine().getMethod().toLowerCase();
+		if (sendNegativeResponse(context, method.equals("get") || method.equals("head"))) {
+			/* the request failed recently */
+			return;
+		}
+		if (isClientRateLimited(context)) {
+			return;
+		}
+		if (!joinInFlight(context)) {
+			/* the same resource is already requested, wait for the response */
+			return;
+		}
+		if (isOriginRateLimited(context)) {
+			return;
+		}
+		try {
+			context.setClusterPeer(getClusterOwner(context));
+			coapClient.createChannel(context); //channel must be created first 
+			transRequestHttpToCoap(context);
+			if (context.getClusterPeer() != null) {
+				forwardToClusterPeer(context);
+			}
+			addValidation(context);
+			if (sendUpstream(context)) {
+				schedulePendingTimeout(context);
+			}
+		} catch (Exception e) {
+			logger.warn("HTTP to CoAP Request failed: " + e.getMessage());
+			/* close if a channel was connected */
+			if (context.getOutCoapClientChannel() != null){
+				context.getOutCoapClientChannel().close();
+			}
+			sendDirectHttpError(context, HttpStatus.SC_INTERNAL_SERVER_ERROR, "Internal Server Error");
+			completeInFlight(context);
+		}
+	}
+
 	public void handleCoapServerRequest(ProxyMessageContext context) {
-		coapRequestCount++;
+		coapRequestCount.increment();
+		if (pipeline.isThreadPerRequest()) {
+			pipeline.startRequest(context, coapLookup);
+		} else if (pipeline.isInlineCacheHits()) {
+			/* cache hits are answered on the I/O thread, misses are queued */
+			pipeline.getLookupStage().process(context, coapLookup);
+		} else {
+			pipeline.getLookupStage().submit(context, coapLookup);
+		}
+	}
+
+	private void lookupCoapServerRequest(ProxyMessageContext context) {
 		ProxyResource resource = null;
-		if (context.getInCoapRequest().getRequestCode() == CoapRequestCode.GET){
+		boolean get = context.getInCoapRequest().getRequestCode() == CoapRequestCode.GET;
+		if (get){
 			resource = cache.get(context);
 		}
 		if (context.isTranslate()) {
 			/* coap to http */
 			if (resource != null) {
+				if (isRateLimited(context, hitRateLimiter, context.getClientAddress())) {
+					return;
+				}
 				/* answer from cache */
-				resourceToHttp(context, resource);
+				resourceToCoap(context, resource);
 				context.setCached(true); // avoid "recaching"
-				httpServer.sendResponse(context);
+				coapServer.sendResponse(context);
 				logger.info("served CoAP request from cache");
-				servedFromCacheCount++;
-			} else {
-				/* translate CoAP Request -> HTTP Request */
-				try {
-					transRequestCoapToHttp(context);
-					context.setRequestTime(System.currentTimeMillis());
-					httpClient.sendRequest(context); 
-				} catch (Exception e) {
-					logger.warn("CoAP to HTTP Request translation failed: " + e.getMessage());
-					sendDirectCoapError(context, CoapResponseCode.Not_Found_404);
+				servedFromCacheCount.increment();
+				if (cache.claimRefresh(resource)) {
+					refreshResource(resource);
 				}
+			} else {
+				pipeline.getTranslateStage().submit(context, coapForward);
 			}
 		} else {
 			/* coap to coap */
+			if (get) {
+				if (context.getInCoapRequest().getObserveOption() != null) {
+					if (observeRelay.observe(context)) {
+						/* notifications are sent by the observe relay */
+						return;
+					}
+				} else {
+					/* a GET without Observe option ends an observation */
+					observeRelay.cancel(context);
+				}
+			}
 			if (resource != null) {
+				if (isRateLimited(context, hitRateLimiter, context.getClientAddress())) {
+					return;
+				}
 				/* answer from cache */
 				resourceToCoap(context, resource);
 				context.setCached(true); // avoid "recaching"
 				coapServer.sendResponse(context);
 				logger.info("served from cache");
-				servedFromCacheCount++;
+				servedFromCacheCount.increment();
+				if (cache.claimRefresh(resource)) {
+					refreshResource(resource);
+				}
 			} else {
-				/* translate CoAP Request -> CoAP Request */
-				try {
-					coapClient.createChannel(context); //channel must be created first 
-					transRequestCoapToCoap(context);
-					context.setRequestTime(System.currentTimeMillis());
-					coapClient.sendRequest(context);
-				} catch (Exception e) {
-					logger.warn("CoAP to CoAP Request forwarding failed: " + e.getMessage());
-					sendDirectCoapError(context, CoapResponseCode.Not_Found_404);
+				pipeline.getTranslateStage().submit(context, coapForward);
+			}
+		}
+	}
+
+	/* CoAP request of a resource that is not cached */
+	private void forwardCoapServerRequest(ProxyMessageContext context) {
+		boolean get = context.getInCoapRequest().getRequestCode() == CoapRequestCode.GET;
+		if (context.isTranslate()) {
+			if (sendNegativeResponse(context, get)) {
+				/* the request failed recently */
+				return;
+			}
+			if (isClientRateLimited(context) || isOriginRateLimited(context)) {
+				return;
+			}
+			/* translate CoAP Request -> HTTP Request */
+			try {
+				transRequestCoapToHttp(context);
+				addHttpValidation(context);
+				if (sendUpstream(context)) {
+					schedulePendingTimeout(context);
 				}
+			} catch (Exception e) {
+				logger.warn("CoAP to HTTP Request translation failed: " + e.getMessage());
+				sendDirectCoapError(context, CoapResponseCode.Not_Found_404);
+			}
+			return;
+		}
+		if (get && serveCachedBlock(context)) {
+			/* the requested block was received for another client */
+			return;
+		}
+		if (sendNegativeResponse(context, get)) {
+			/* the request failed recently */
+			return;
+		}
+		if (isClientRateLimited(context)) {
+			return;
+		}
+		/* translate CoAP Request -> CoAP Request */
+		if (!joinInFlight(context)) {
+			/* the same resource is already requested, wait for the response */
+			return;
+		}
+		if (isOriginRateLimited(context)) {
+			return;
+		}
+		try {
+			context.setClusterPeer(getClusterOwner(context));
+			coapClient.createChannel(context); //channel must be created first 
+			transRequestCoapToCoap(context);
+			if (context.getClusterPeer() != null) {
+				forwardToClusterPeer(context);
+			}
+			addValidation(context);
+			if (sendUpstream(context)) {
+				schedulePendingTimeout(context);
 			}
+		} catch (Exception e) {
+			logger.warn("CoAP to CoAP Request forwarding failed: " + e.getMessage());
+			sendDirectCoapError(context, CoapResponseCode.Not_Found_404);
+			completeInFlight(context);
 		}
 	}
 
 	public void handleCoapClientResponse(ProxyMessageContext context) {
+		/* before the response waits in a queue, the time is used for the RTT samples */
 		context.setResponseTime(System.currentTimeMillis());
+		ProxyResponseFuture future = context.getResponseFuture();
+		if (future != null && future.complete(coapResponse)) {
+			/* the thread of the request processes the response */
+			return;
+		}
+		/* a full queue processes the response on the client thread, it must not get lost */
+		pipeline.getTranslateStage().submit(context, coapResponse);
+	}
+
+	private void processCoapClientResponse(ProxyMessageContext context) {
+		originLimiter.release(context);
+		if (context.getClusterPeer() != null && context.isConnectionFailed() && !context.isAnswered()) {
+			/* the owner of the resource does not respond, ask the origin server */
+			cluster.markDown(context.getClusterPeer());
+			if (resendToOrigin(context)) {
+				return;
+			}
+		}
+		boolean answer = finishPending(context);
+		if (context.getInCoapResponse() != null && context.getClusterPeer() == null) {
+			sampleRtt(context);
+		}
 		
-		if (!context.isCached() && context.getInCoapResponse() !=null ) { // avoid recaching
+		/* the owner in the proxy cluster caches the resource */
+		if (!context.isCached() && context.getInCoapResponse() !=null && context.getClusterPeer() == null) { // avoid recaching
 			cache.cacheCoapResponse(context);
 		}
+		recordCoapFailure(context);
+		if (!answer) {
+			/* the client already got a timeout, only the cache is updated */
+			return;
+		}
+
+		try {
+			if (context.isRefresh()) {
+				/* background refresh, there is no client */
+				context.getResource().finishRefresh();
+			} else {
+				sendCoapClientResponse(context);
+			}
+		} finally {
+			/* the followers must not wait for the pending timeout */
+			completeInFlight(context);
+		}
+	}
+
+	/* round trip time of the origin server for the adaptive cache time policy */
+	private void sampleRtt(ProxyMessageContext context) {
+		if (context.getServerAddress() != null && context.getRequestTime() > 0) {
+			cache.getRttEstimator().sample(new InetSocketAddress(context.getServerAddress(), context.getServerPort()),
+					context.getResponseTime() - context.getRequestTime());
+		}
+	}
+
+	/* translates and sends the response of the CoAP server to the client */
+	private void sendCoapClientResponse(ProxyMessageContext context) {
+		if (context.isValidation() && context.getInCoapResponse() != null
+				&& context.getInCoapResponse().getResponseCode() == CoapResponseCode.Valid_203) {
+			if (!isValidated(context.getInCoapResponse().getETag(), context.getResource())) {
+				/* the cached payload is not the validated representation */
+				logger.warn("validation returned a different ETag: " + context.getUri());
+				if (context.isTranslate()) {
+					sendDirectHttpError(context, HttpStatus.SC_BAD_GATEWAY, "Bad Gateway");
+				} else {
+					sendDirectCoapError(context, CoapResponseCode.Bad_Gateway_502);
+				}
+				return;
+			}
+			/* the client did not send the ETag, answer with the validated resource */
+			if (context.isTranslate()) {
+				resourceToHttp(context, context.getResource());
+				httpServer.sendResponse(context);
+			} else {
+				resourceToCoap(context, context.getResource());
+				coapServer.sendResponse(context);
+			}
+			logger.info("served validated resource from cache");
+			servedFromCacheCount.increment();
+			return;
+		}
 
 		if (context.isTranslate()) {
 			/* coap to HTTP */
@@ -241,11 +588,52 @@ public class ProxyMapper {
 
         
 	public void handleHttpClientResponse(ProxyMessageContext context) {
+		/* before the response waits in a queue, the time is used for the RTT samples */
 		context.setResponseTime(System.currentTimeMillis());
+		ProxyResponseFuture future = context.getResponseFuture();
+		if (future != null && future.complete(httpResponse)) {
+			/* the thread of the request processes the response */
+			return;
+		}
+		pipeline.getTranslateStage().submit(context, httpResponse);
+	}
+
+	private void processHttpClientResponse(ProxyMessageContext context) {
+		originLimiter.release(context);
+		boolean answer = finishPending(context);
+		if (context.getInHttpResponse() != null) {
+			sampleRtt(context);
+		}
 		
 		if (!context.isCached()) {
 			cache.cacheHttpResponse(context);
 		}
+		recordHttpFailure(context);
+		if (!answer) {
+			/* the client already got a timeout, only the cache is updated */
+			return;
+		}
+		if (context.isRefresh()) {
+			/* background refresh, there is no client */
+			context.getResource().finishRefresh();
+			completeInFlight(context);
+			return;
+		}
+		if (context.isValidation() && context.getInHttpResponse().getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+			Header etag = context.getInHttpResponse().getFirstHeader("ETag");
+			if (!isValidated(etag == null ? null : etag.getValue().getBytes(), context.getResource())) {
+				/* the cached payload is not the validated representation */
+				logger.warn("validation returned a different ETag: " + context.getUri());
+				sendDirectCoapError(context, CoapResponseCode.Bad_Gateway_502);
+				return;
+			}
+			/* answer with the validated resource */
+			resourceToCoap(context, context.getResource());
+			coapServer.sendResponse(context);
+			logger.info("served validated resource from cache");
+			servedFromCacheCount.increment();
+			return;
+		}
 		try {
 			transResponseHttpToCoap(context);
 		} catch (Exception e) {
@@ -256,6 +644,604 @@ public class ProxyMapper {
 	}
 	
 
+	/* a 2.03/304 without ETag or with the ETag of the cached resource */
+	private static boolean isValidated(byte[] etag, ProxyResource resource) {
+		return etag == null || Arrays.equals(etag, resource.getETag());
+	}
+
+	/* adds the ETag of an expired cached resource to the outgoing HTTP GET request */
+	private void addHttpValidation(ProxyMessageContext context) {
+		HttpUriRequest request = context.getOutHttpRequest();
+		if (!request.getMethod().equalsIgnoreCase("GET")) {
+			return;
+		}
+		ProxyResource resource = cache.getValidationCandidate(context);
+		if (resource != null) {
+			request.addHeader("If-None-Match", new String(resource.getETag()));
+			context.setResource(resource);
+			context.setValidation(true);
+		}
+	}
+
+	/* answers the client with a timeout if the upstream server does not respond in time */
+	private void schedulePendingTimeout(final ProxyMessageContext context) {
+		if (pendingTimeoutMs <= 0) {
+			return;
+		}
+		ProxyTimerWheel.Timeout timeout = timerWheel.schedule(System.currentTimeMillis() + pendingTimeoutMs, new Runnable() {
+			@Override
+			public void run() {
+				handlePendingTimeout(context);
+			}
+		});
+		context.setPendingTimeout(timeout);
+		if (context.isAnswered()) {
+			/* the response was faster */
+			timeout.cancel();
+		}
+	}
+
+	/* returns false if the request was already answered with a timeout */
+	private boolean finishPending(ProxyMessageContext context) {
+		ProxyTimerWheel.Timeout timeout = context.getPendingTimeout();
+		if (timeout != null) {
+			timeout.cancel();
+		}
+		return context.claimAnswer();
+	}
+
+	/* answers a context whose processing failed, unless it was already answered */
+	private void answerFailure(ProxyMessageContext context) {
+		if (!finishPending(context)) {
+			return;
+		}
+		try {
+			if (context.isRefresh()) {
+				/* background refresh, there is no client */
+				context.getResource().finishRefresh();
+			} else if (context.isHttpRequest()) {
+				sendDirectHttpError(context, HttpStatus.SC_INTERNAL_SERVER_ERROR, "Internal Server Error");
+			} else {
+				sendDirectCoapError(context, CoapResponseCode.Internal_Server_Error_500);
+			}
+		} finally {
+			completeInFlight(context);
+		}
+	}
+
+	private void handlePendingTimeout(ProxyMessageContext context) {
+		if (!context.claimAnswer()) {
+			return;
+		}
+		pendingTimeoutCount.increment();
+		logger.warn("upstream request timed out: " + context.getUri());
+		if (context.getResponseFuture() != null) {
+			/* the request thread returns, a late response takes the staged path */
+			context.getResponseFuture().disarm();
+		}
+		/* a queued request was never sent, the origin is only busy */
+		if (!originLimiter.removeQueued(context)) {
+			if (context.getClusterPeer() != null) {
+				cluster.markDown(context.getClusterPeer());
+			} else {
+				/* a late response must not hold the slot */
+				originLimiter.release(context);
+				negativeCache.putOrigin(context);
+			}
+		}
+		if (context.isRefresh()) {
+			context.getResource().finishRefresh();
+		} else {
+			sendTimeoutResponse(context);
+		}
+		if (context.getInFlightKey() != null) {
+			for (ProxyMessageContext follower : inFlight.complete(context.getInFlightKey(), context)) {
+				sendTimeoutResponse(follower);
+			}
+		}
+	}
+
+	/* sends the request if its origin server has a free slot, queues it otherwise;
+	 * returns false if the origin is too busy and the request was answered with 5.03/503 */
+	private boolean sendUpstream(final ProxyMessageContext context) {
+		if (context.getClusterPeer() != null || originLimiter.isDisabled()) {
+			/* cluster peers are proxies and not limited */
+			sendNow(context);
+			return true;
+		}
+		InetSocketAddress origin = new InetSocketAddress(context.getServerAddress(), context.getServerPort());
+		int result = originLimiter.acquire(origin, context, new Runnable() {
+			@Override
+			public void run() {
+				sendQueued(context);
+			}
+		});
+		if (result == ProxyOriginLimiter.ADMITTED) {
+			try {
+				sendNow(context);
+			} catch (RuntimeException e) {
+				originLimiter.release(context);
+				throw e;
+			}
+			return true;
+		}
+		if (result == ProxyOriginLimiter.QUEUED) {
+			if (context.getResponseFuture() != null) {
+				/* the thread of the request waits until the queued request is answered */
+				context.getResponseFuture().arm();
+			}
+			logger.debug("origin busy, request queued: " + context.getUri());
+			return true;
+		}
+		shedRequest(context, origin);
+		return false;
+	}
+
+	private void sendNow(ProxyMessageContext context) {
+		context.setRequestTime(System.currentTimeMillis());
+		if (context.getOutHttpRequest() != null) {
+			httpClient.sendRequest(context);
+		} else {
+			coapClient.sendRequest(context);
+		}
+	}
+
+	/* runs on the thread that released the slot */
+	private void sendQueued(ProxyMessageContext context) {
+		if (context.isAnswered()) {
+			/* timed out while queued */
+			originLimiter.release(context);
+			if (context.getResponseFuture() != null) {
+				context.getResponseFuture().disarm();
+			}
+			return;
+		}
+		try {
+			sendNow(context);
+		} catch (RuntimeException e) {
+			logger.warn("queued upstream request failed: " + e.getMessage());
+			context.setConnectionFailed(true);
+			if (context.getOutHttpRequest() != null) {
+				context.setInHttpResponse(new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_BAD_GATEWAY, "Bad Gateway"));
+				handleHttpClientResponse(context);
+			} else {
+				if (context.getOutCoapClientChannel() != null) {
+					context.getOutCoapClientChannel().close();
+				}
+				handleCoapClientResponse(context);
+			}
+		}
+	}
+
+	/* answers the request and the coalesced requests with 5.03/503 */
+	private void shedRequest(ProxyMessageContext context, InetSocketAddress origin) {
+		logger.warn("origin busy, request rejected: " + context.getUri());
+		if (context.getOutCoapClientChannel() != null) {
+			context.getOutCoapClientChannel().close();
+		}
+		if (!finishPending(context)) {
+			return;
+		}
+		ProxyRttEstimator.Estimate estimate = cache.getRttEstimator().get(origin);
+		int retryAfter = originLimiter.getRetryAfter(origin, estimate == null ? 1000 : estimate.getSmoothedRtt());
+		if (context.isRefresh()) {
+			context.getResource().finishRefresh();
+		} else {
+			sendOverloadResponse(context, retryAfter);
+		}
+		if (context.getInFlightKey() != null) {
+			for (ProxyMessageContext follower : inFlight.complete(context.getInFlightKey(), context)) {
+				sendOverloadResponse(follower, retryAfter);
+			}
+		}
+	}
+
+	/* checks the rate of the client of a request that is not answered from the cache */
+	private boolean isClientRateLimited(ProxyMessageContext context) {
+		return isRateLimited(context, clientRateLimiter, context.getClientAddress());
+	}
+
+	/* checks the rate of the origin server, called after joinInFlight: only the leader
+	 * of coalesced requests is charged, a limited leader answers its followers as well */
+	private boolean isOriginRateLimited(ProxyMessageContext context) {
+		if (originRateLimiter.isDisabled()) {
+			return false;
+		}
+		InetSocketAddress origin = new InetSocketAddress(context.getServerAddress(), context.getServerPort());
+		if (!isRateLimited(context, originRateLimiter, origin)) {
+			return false;
+		}
+		if (context.getInFlightKey() != null) {
+			int retryAfter = originRateLimiter.getRetryAfter(origin);
+			for (ProxyMessageContext follower : inFlight.complete(context.getInFlightKey(), context)) {
+				sendRateLimitResponse(follower, retryAfter);
+			}
+		}
+		return true;
+	}
+
+	/* answers the request with 4.29/5.03 if the bucket of the key is empty */
+	private boolean isRateLimited(ProxyMessageContext context, ProxyRateLimiter limiter, Object key) {
+		if (limiter.isDisabled() || key == null || limiter.tryAcquire(key)) {
+			return false;
+		}
+		logger.info("rate limit exceeded: " + context.getUri());
+		sendRateLimitResponse(context, limiter.getRetryAfter(key));
+		return true;
+	}
+
+	private void sendRateLimitResponse(ProxyMessageContext context, int retryAfter) {
+		if (context.isHttpRequest()) {
+			HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, SC_TOO_MANY_REQUESTS, "Too Many Requests");
+			setRetryAfter(response, retryAfter);
+			context.setOutHttpResponse(response);
+			httpServer.sendResponse(context);
+		} else {
+			/* this CoAP version has no 4.29 Too Many Requests */
+			sendOverloadResponse(context, retryAfter);
+		}
+	}
+
+	private void sendOverloadResponse(ProxyMessageContext context, int retryAfter) {
+		if (context.isHttpRequest()) {
+			HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_SERVICE_UNAVAILABLE, "Service Unavailable");
+			setRetryAfter(response, retryAfter);
+			context.setOutHttpResponse(response);
+			httpServer.sendResponse(context);
+		} else {
+			CoapServerChannel channel = (CoapServerChannel) context.getInCoapRequest().getChannel();
+			CoapResponse response = channel.createResponse(context.getInCoapRequest(), CoapResponseCode.Service_Unavailable_503);
+			response.setMaxAge(retryAfter);
+			context.setOutCoapResponse(response);
+			coapServer.sendResponse(context);
+		}
+	}
+
+	private void sendTimeoutResponse(ProxyMessageContext context) {
+		if (context.isHttpRequest()) {
+			sendDirectHttpError(context, HttpStatus.SC_GATEWAY_TIMEOUT, "Gateway Timeout");
+		} else {
+			sendDirectCoapError(context, CoapResponseCode.Gateway_Timeout_504);
+		}
+	}
+
+	/* answers with the stored failure, returns false if there is none */
+	/* only safe requests (GET, HEAD) are answered with a stored failure */
+	private boolean sendNegativeResponse(ProxyMessageContext context, boolean safe) {
+		ProxyNegativeCache.NegativeEntry entry = negativeCache.get(context, safe);
+		if (entry == null) {
+			return false;
+		}
+		int maxAge = entry.getMaxAge(System.currentTimeMillis());
+		if (context.isHttpRequest()) {
+			HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, entry.getHttpStatus(), entry.getReason());
+			setRetryAfter(response, maxAge);
+			context.setOutHttpResponse(response);
+			httpServer.sendResponse(context);
+		} else {
+			CoapServerChannel channel = (CoapServerChannel) context.getInCoapRequest().getChannel();
+			CoapResponse response = channel.createResponse(context.getInCoapRequest(), entry.getCoapCode());
+			response.setMaxAge(maxAge);
+			context.setOutCoapResponse(response);
+			coapServer.sendResponse(context);
+		}
+		logger.info("served failure from negative cache");
+		return true;
+	}
+
+	/* remembers 4.04, 5.xx and connection failures of a CoAP origin server */
+	private void recordCoapFailure(ProxyMessageContext context) {
+		CoapResponse response = context.getInCoapResponse();
+		if (response == null) {
+			if (context.isConnectionFailed()) {
+				negativeCache.putOrigin(context);
+			}
+			return;
+		}
+		CoapResponseCode code = response.getResponseCode();
+		boolean get = context.getOutCoapRequest() != null && context.getOutCoapRequest().getRequestCode() == CoapRequestCode.GET;
+		if (get && (code == CoapResponseCode.Not_Found_404 || code.getValue() >= CoapResponseCode.Internal_Server_Error_500.getValue())) {
+			HttpResponse httpResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_BAD_GATEWAY, "Bad Gateway");
+			setHttpMsgCode(response, "get", httpResponse);
+			negativeCache.putResource(context.getResourceKey(), code, httpResponse.getStatusLine().getStatusCode(), httpResponse.getStatusLine().getReasonPhrase());
+		} else {
+			negativeCache.remove(context);
+		}
+	}
+
+	/* remembers 404, 5xx and connection failures of a HTTP origin server */
+	private void recordHttpFailure(ProxyMessageContext context) {
+		if (context.isConnectionFailed()) {
+			negativeCache.putOrigin(context);
+			return;
+		}
+		HttpResponse response = context.getInHttpResponse();
+		if (response == null) {
+			return;
+		}
+		int status = response.getStatusLine().getStatusCode();
+		boolean get = context.getOutHttpRequest() != null && context.getOutHttpRequest().getMethod().equalsIgnoreCase("GET");
+		if (get && (status == HttpStatus.SC_NOT_FOUND || status >= HttpStatus.SC_INTERNAL_SERVER_ERROR)) {
+			CoapResponseCode code;
+			try {
+				code = getCoapResponseCode(context);
+			} catch (IllegalStateException e) {
+				code = CoapResponseCode.Bad_Gateway_502;
+			}
+			negativeCache.putResource(context.getResourceKey(), code, status, response.getStatusLine().getReasonPhrase());
+		} else {
+			negativeCache.remove(context);
+		}
+	}
+
+	/* returns false if the context waits for the response of an equal pending request */
+	private boolean joinInFlight(ProxyMessageContext context) {
+		if (!isCoalescable(context)) {
+			return true;
+		}
+		ProxyResourceKey key = context.getResourceKey();
+		if (inFlight.join(key, context)) {
+			context.setInFlightKey(key);
+			return true;
+		}
+		return false;
+	}
+
+	/* passes the response of a leading context to all waiting contexts */
+	private void completeInFlight(ProxyMessageContext context) {
+		if (context.getInFlightKey() == null) {
+			return;
+		}
+		List<ProxyMessageContext> followers = inFlight.complete(context.getInFlightKey(), context);
+		for (ProxyMessageContext follower : followers) {
+			follower.setRequestTime(context.getRequestTime());
+			follower.setResponseTime(context.getResponseTime());
+			follower.setInCoapResponse(context.getInCoapResponse());
+			follower.setResource(context.getResource());
+			follower.setValidation(context.isValidation());
+			try {
+				sendCoapClientResponse(follower);
+			} catch (RuntimeException e) {
+				logger.warn("response to coalesced request failed: " + e.getMessage());
+			}
+		}
+	}
+
+	/* requests a cached resource from the origin server to update the cache, clients are not blocked */
+	private void refreshResource(ProxyResource resource) {
+		ProxyResourceKey key = resource.getKey();
+		ProxyMessageContext context;
+		if (resource.isHttpOrigin()) {
+			context = new ProxyMessageContext(resource.getOriginUri(), true);
+		} else {
+			try {
+				URI uri = new URI("coap", null, key.getInetAddr().getHostAddress(), key.getPort(), key.getPath(), key.getQuery(), null);
+				context = new ProxyMessageContext(uri, false);
+			} catch (URISyntaxException e) {
+				resource.finishRefresh();
+				return;
+			}
+		}
+		context.setServerAddress(key.getInetAddr(), key.getPort());
+		context.setResourceKey(key);
+		context.setResource(resource);
+		if (!inFlight.lead(key, context)) {
+			/* already requested */
+			resource.finishRefresh();
+			return;
+		}
+		context.setInFlightKey(key);
+		if (context.isTranslate()) {
+			try {
+				HttpGet request = new HttpGet(context.getUri().toString());
+				if (resource.getETag() != null) {
+					request.addHeader("If-None-Match", new String(resource.getETag()));
+					context.setValidation(true);
+				}
+				context.setOutHttpRequest(request);
+				if (sendUpstream(context)) {
+					schedulePendingTimeout(context);
+				}
+				logger.debug("refresh cached HTTP resource: " + key.getPath());
+			} catch (Exception e) {
+				logger.warn("cache refresh failed: " + e.getMessage());
+				resource.finishRefresh();
+				completeInFlight(context);
+			}
+			return;
+		}
+		try {
+			coapClient.createChannel(context);
+			CoapRequest request = createCoapGet(context.getOutCoapClientChannel(), key);
+			if (resource.getETag() != null) {
+				request.addETag(resource.getETag());
+				context.setValidation(true);
+			}
+			context.setOutCoapRequest(request);
+			if (sendUpstream(context)) {
+				schedulePendingTimeout(context);
+			}
+			logger.debug("refresh cached resource: " + key.getPath());
+		} catch (Exception e) {
+			logger.warn("cache refresh failed: " + e.getMessage());
+			if (context.getOutCoapClientChannel() != null){
+				context.getOutCoapClientChannel().close();
+			}
+			resource.finishRefresh();
+			completeInFlight(context);
+		}
+	}
+
+	/* returns the owner of the requested resource if it is another node of the cluster */
+	private InetSocketAddress getClusterOwner(ProxyMessageContext context) {
+		ProxyCluster c = cluster;
+		if (c == null || !isCoalescable(context)) {
+			/* only plain GET requests are cached */
+			return null;
+		}
+		return c.getOwner(context.getResourceKey());
+	}
+
+	/* the owner is a proxy, the resource is given by the Proxy-Uri option */
+	private static void forwardToClusterPeer(ProxyMessageContext context) {
+		CoapRequest request = context.getOutCoapRequest();
+		request.removeOption(CoapHeaderOptionType.Uri_Path);
+		request.removeOption(CoapHeaderOptionType.Uri_Query);
+		request.setProxyUri(context.getUri().toString());
+	}
+
+	/* sends the request of a failed cluster forward to the origin server */
+	private boolean resendToOrigin(ProxyMessageContext context) {
+		context.setClusterPeer(null);
+		context.setConnectionFailed(false);
+		context.setInCoapResponse(null);
+		try {
+			coapClient.createChannel(context);
+			if (context.isHttpRequest()) {
+				transRequestHttpToCoap(context);
+			} else {
+				transRequestCoapToCoap(context);
+			}
+			addValidation(context);
+			/* answered with 5.03/503 if the origin is busy */
+			sendUpstream(context);
+			return true;
+		} catch (Exception e) {
+			logger.warn("cluster: request to the origin server failed: " + e.getMessage());
+			if (context.getOutCoapClientChannel() != null) {
+				context.getOutCoapClientChannel().close();
+			}
+			context.setConnectionFailed(true);
+			return false;
+		}
+	}
+
+	/* sets the payload or the requested Block2 slice of it, payloads larger than
+	 * MAX_BLOCK_SIZE are sent block-wise; returns false if the block does not exist */
+	static boolean setBlockPayload(CoapRequest request, CoapResponse response, byte[] payload) {
+		CoapBlockOption requested = request.getBlock2();
+		if (requested == null && payload.length <= MAX_BLOCK_SIZE.getSize()) {
+			response.setPayload(payload);
+			return true;
+		}
+		CoapBlockSize size = MAX_BLOCK_SIZE;
+		int number = 0;
+		if (requested != null && requested.getBlockSize() != null) {
+			size = requested.getBlockSize();
+			number = requested.getNumber();
+		}
+		int position = number * size.getSize();
+		if (position > 0 && position >= payload.length) {
+			return false;
+		}
+		int end = Math.min(position + size.getSize(), payload.length);
+		response.setPayload(Arrays.copyOfRange(payload, position, end));
+		response.setBlock2(new CoapBlockOption(number, end < payload.length, size));
+		return true;
+	}
+
+	/* answers a Block2 request from the blocks received for other clients */
+	private boolean serveCachedBlock(ProxyMessageContext context) {
+		CoapBlockOption requested = context.getInCoapRequest().getBlock2();
+		if (requested == null || requested.getBlockSize() == null || context.getResourceKey() == null) {
+			return false;
+		}
+		CoapBlockSize size = requested.getBlockSize();
+		ProxyBlockStore.Block block = cache.getBlockStore().getBlock(context.getResourceKey(), requested.getNumber() * size.getSize(), size.getSize());
+		if (block == null) {
+			return false;
+		}
+		CoapResponse response = context.getOutCoapResponse();
+		response.setResponseCode(CoapResponseCode.Content_205);
+		response.setPayload(block.getPayload());
+		response.setBlock2(new CoapBlockOption(requested.getNumber(), block.isMore(), size));
+		if (block.getMediaType() != null) {
+			response.setContentType(block.getMediaType());
+		}
+		if (block.getETag() != null) {
+			response.setETag(block.getETag());
+		}
+		if (block.expires() != -1) {
+			response.setMaxAge((int) Math.max((block.expires() - System.currentTimeMillis()) / 1000, 0));
+		}
+		context.setCached(true);
+		coapServer.sendResponse(context);
+		logger.info("served block " + requested.getNumber() + " from cache");
+		servedFromCacheCount.increment();
+		return true;
+	}
+
+	/* returns the time in ms from the header "Prefer: wait=N" (RFC 7240), -1 if there is none */
+	private static long getLongPollWait(HttpRequest request) {
+		for (Header header : request.getHeaders("Prefer")) {
+			for (String preference : header.getValue().split(",")) {
+				String[] parts = preference.trim().split("=", 2);
+				if (parts.length == 2 && parts[0].trim().equalsIgnoreCase("wait")) {
+					try {
+						return Long.parseLong(parts[1].trim()) * 1000;
+					} catch (NumberFormatException e) {
+						return -1;
+					}
+				}
+			}
+		}
+		return -1;
+	}
+
+	/* creates a GET request for the cached variant described by the key */
+	static CoapRequest createCoapGet(CoapClientChannel channel, ProxyResourceKey key) {
+		CoapRequest request = channel.createRequest(CoapClientProxy.RELIABLE, CoapRequestCode.GET);
+		request.setUriPath(key.getPath());
+		if (key.getQuery() != null) {
+			request.setUriQuery(key.getQuery());
+		}
+		if (key.getAccept() != null) {
+			for (String mediaType : key.getAccept().split(",")) {
+				request.addAccept(CoapMediaType.parse(Integer.parseInt(mediaType)));
+			}
+		}
+		return request;
+	}
+
+	/* only plain GET requests are coalesced, the key covers path, query and accept;
+	 * other header options of the followers are not forwarded */
+	private static boolean isCoalescable(ProxyMessageContext context) {
+		if (context.getResourceKey() == null) {
+			return false;
+		}
+		if (context.isHttpRequest()) {
+			HttpRequest request = context.getInHttpRequest();
+			return request.getRequestLine().getMethod().toLowerCase().equals("get")
+					&& !request.containsHeader("Etag");
+		}
+		CoapRequest request = context.getInCoapRequest();
+		/* followers of a block request would get the block of the leader */
+		if (request.getRequestCode() != CoapRequestCode.GET || request.getObserveOption() != null || request.getBlock2() != null) {
+			return false;
+		}
+		Vector<byte[]> etags = request.getETag();
+		return etags == null || etags.isEmpty();
+	}
+
+	/* adds the ETag of an expired cached resource to the outgoing GET request */
+	private void addValidation(ProxyMessageContext context) {
+		CoapRequest request = context.getOutCoapRequest();
+		if (request.getRequestCode() != CoapRequestCode.GET) {
+			return;
+		}
+		Vector<byte[]> etags = request.getETag();
+		if (etags != null && !etags.isEmpty()) {
+			/* the client validates its own copy */
+			return;
+		}
+		ProxyResource resource = cache.getValidationCandidate(context);
+		if (resource != null) {
+			request.addETag(resource.getETag());
+			context.setResource(resource);
+			context.setValidation(true);
+		}
+	}
+
 	/* ------------------------------------ Translate Functions -----------------------------------*/
 	
 	public static void transRequestCoapToCoap(ProxyMessageContext context){
@@ -329,6 +1315,10 @@ public class ProxyMapper {
 			if (headers.length > 0) {
 				for (int i = 0; i < headers.length; i++) {
 					String etag = headers[i].getValue();
+					/* the deflated representation has the ETag of the origin with a suffix */
+					if (etag.endsWith(ProxyResponseTemplate.DEFLATE_ETAG_SUFFIX)) {
+						etag = etag.substring(0, etag.length() - ProxyResponseTemplate.DEFLATE_ETAG_SUFFIX.length());
+					}
 					coapRequest.addETag(etag.getBytes());
 				}
 			}
@@ -450,7 +1440,12 @@ public class ProxyMapper {
 		
 		out.setResponseCode(in.getResponseCode());
 		out.removeOption(CoapHeaderOptionType.Token);
-		out.setPayload(in.getPayload());
+		if (in.getBlock2() != null || in.getPayload() == null) {
+			/* the origin server answered block-wise */
+			out.setPayload(in.getPayload());
+		} else if (!setBlockPayload(context.getInCoapRequest(), out, in.getPayload())) {
+			out.setResponseCode(CoapResponseCode.Bad_Option_402);
+		}
 	}
 
 	public static void transResponseCoapToHttp(ProxyMessageContext context) throws UnsupportedEncodingException{
@@ -496,11 +1491,13 @@ public class ProxyMapper {
 		
 		//assume in this case a string-entity
 		//TODO: add more entity-types
-		coapResponse.setContentType(CoapMediaType.text_plain);
+		coapResponse.setContentType(httpContentType2coapMediaType(context.getInHttpResponse()));
 		
 		String entity = "";
 		entity = EntityUtils.toString(context.getInHttpResponse().getEntity());
-		coapResponse.setPayload(entity);
+		if (!setBlockPayload(context.getInCoapRequest(), coapResponse, entity.getBytes())) {
+			coapResponse.setResponseCode(CoapResponseCode.Bad_Option_402);
+		}
 	}
 
 	/* these functions are called if the request translation fails and no message was forwarded */
@@ -514,40 +1511,106 @@ public class ProxyMapper {
 	public void sendDirectCoapError(ProxyMessageContext context, CoapResponseCode code){
 		CoapServerChannel channel = (CoapServerChannel) context.getInCoapRequest().getChannel();
 		CoapResponse response = channel.createResponse(context.getInCoapRequest(), code); 
-		context.setInCoapResponse(response);
+		/* the server sends the out response */
+		context.setOutCoapResponse(response);
 		coapServer.sendResponse(context);
 	}
 	
 	public static void resourceToHttp(ProxyMessageContext context, ProxyResource resource){
-		/* TODO: very rudimentary implementation */
-		HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"); 
-		try {
-			NStringEntity entity;
-			entity = new NStringEntity(new String(resource.getValue()), "UTF-8");
-			entity.setContentType("text/plain");
-			response.setEntity(entity);
-		} catch (UnsupportedEncodingException e) {
-			logger.error("HTTP entity creation failed");
+		ProxyResponseTemplate template = resource.getResponseTemplate();
+		byte[] payload = template.getPayload();
+		Header[] headers = template.getHttpHeaders();
+		if (payload == null && template.getDeflateHttpHeaders() != null && acceptsDeflate(context.getInHttpRequest())) {
+			/* the compressed payload is sent as it is */
+			payload = resource.getStoredValue();
+			headers = template.getDeflateHttpHeaders();
+		} else if (payload == null) {
+			/* off-heap or compressed */
+			payload = resource.getValue();
+		}
+		if (payload == null) {
+			/* off-heap payload was dropped in the meantime */
+			logger.warn("cached payload not available: " + resource.getPath());
+			context.setOutHttpResponse(new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_INTERNAL_SERVER_ERROR, "Internal Server Error"));
+			return;
+		}
+		/* only Date, Expires and Warning depend on the request */
+		long now = System.currentTimeMillis();
+		HttpResponse response = new BasicHttpResponse(ProxyResponseTemplate.HTTP_OK);
+		response.setHeaders(headers);
+		response.addHeader(ProxyResponseTemplate.getDateHeader(now));
+		if (resource.expires() != -1) {
+			response.addHeader(template.getExpiresHeader(resource.expires()));
 		}
+		if (resource.expires() != -1 && resource.expires() <= now) {
+			response.addHeader(ProxyResponseTemplate.HTTP_STALE_WARNING);
+		}
+		response.setEntity(new NByteArrayEntity(payload));
 		context.setOutHttpResponse(response);
 	}
 	
+	/* true if the request accepts the deflate content coding (Accept-Encoding without q=0) */
+	static boolean acceptsDeflate(HttpRequest request) {
+		if (request == null) {
+			return false;
+		}
+		for (Header header : request.getHeaders("Accept-Encoding")) {
+			for (String coding : header.getValue().split(",")) {
+				String[] params = coding.split(";");
+				if (!params[0].trim().equalsIgnoreCase("deflate")) {
+					continue;
+				}
+				for (int i = 1; i < params.length; i++) {
+					String param = params[i].trim();
+					if (param.startsWith("q=") || param.startsWith("Q=")) {
+						try {
+							return Double.parseDouble(param.substring(2).trim()) > 0;
+						} catch (NumberFormatException e) {
+							return false;
+						}
+					}
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	public static void resourceToCoap(ProxyMessageContext context, ProxyResource resource){
 		CoapResponse response = context.getOutCoapResponse(); //already generated
+		ProxyResponseTemplate template = resource.getResponseTemplate();
+		byte[] payload = template.getPayload();
+		if (payload == null) {
+			/* off-heap or compressed */
+			payload = resource.getValue();
+		}
+		if (payload == null) {
+			/* off-heap payload was dropped in the meantime */
+			logger.warn("cached payload not available: " + resource.getPath());
+			response.setResponseCode(CoapResponseCode.Internal_Server_Error_500);
+			return;
+		}
 		/* response code */
 		response.setResponseCode(CoapResponseCode.Content_205);
-		/* payload */
-		response.setPayload(resource.getValue());
+		/* payload or the requested block of it */
+		if (!setBlockPayload(context.getInCoapRequest(), response, payload)) {
+			response.setResponseCode(CoapResponseCode.Bad_Option_402);
+			return;
+		}
 		/* mediatype */
-		if (resource.getCoapMediaType() != null) {
-			response.setContentType(resource.getCoapMediaType());
+		if (template.getMediaType() != null) {
+			response.setContentType(template.getMediaType());
+		}
+		/* ETag */
+		if (template.getETag() != null) {
+			response.setETag(template.getETag());
 		}
 		/* Max-Age */
 		int maxAge = (int)(resource.expires() -  System.currentTimeMillis()) / 1000;
 		if (maxAge < 0){
-			/* should never happen because the function is only called if the resource is valid. 
-			 * However, processing time can be an issue */
-			logger.warn("return expired resource (Max-Age = 0)");
+			/* stale resources are served while they are refreshed,
+			 * processing time can also be an issue */
+			logger.debug("return expired resource (Max-Age = 0)");
 			maxAge = 0;
 		}
 		response.setMaxAge(maxAge);
@@ -738,12 +1801,30 @@ public class ProxyMapper {
 		
 	//mediatype-mapping:
 	public static void httpMediaType2coapMediaType(String mediatype, CoapRequest request) {
-		
+		for (CoapMediaType mediaType : httpMediaType2coapMediaTypes(mediatype)) {
+			request.addAccept(mediaType);
+		}
+	}
+
+	/* media type of an HTTP response, text/plain if it has none or it cannot be mapped */
+	public static CoapMediaType httpContentType2coapMediaType(HttpResponse response) {
+		Header contentType = response.getFirstHeader("Content-Type");
+		if (contentType != null) {
+			List<CoapMediaType> mediaTypes = httpMediaType2coapMediaTypes(contentType.getValue());
+			if (!mediaTypes.isEmpty()) {
+				return mediaTypes.get(0);
+			}
+		}
+		return CoapMediaType.text_plain;
+	}
+
+	public static List<CoapMediaType> httpMediaType2coapMediaTypes(String mediatype) {
+		List<CoapMediaType> mediaTypes = new ArrayList<CoapMediaType>();
 		String[] type_subtype = mediatype.split(",");
 		for (String value : type_subtype) {
 			if (value.toLowerCase().contains("text")
 					&& value.toLowerCase().contains("plain")) {
-				request.addAccept(CoapMediaType.text_plain);
+				mediaTypes.add(CoapMediaType.text_plain);
 			} else if (value.toLowerCase().contains("application")) { // value is for example "application/xml;q=0.9"
 				String[] subtypes = value.toLowerCase().split("/");
 				String subtype = "";
@@ -765,59 +1846,57 @@ public class ProxyMapper {
 				}
 
 				if (name.contentEquals("link-format")) {
-					request.addAccept(CoapMediaType.link_format);
+					mediaTypes.add(CoapMediaType.link_format);
 				}
 				if (name.contentEquals("xml")) {
-					request.addAccept(CoapMediaType.xml);
+					mediaTypes.add(CoapMediaType.xml);
 				}
 				if (name.contentEquals("octet-stream")) {
-					request.addAccept(CoapMediaType.octet_stream);
+					mediaTypes.add(CoapMediaType.octet_stream);
 				}
 				if (name.contentEquals("exi")) {
-					request.addAccept(CoapMediaType.exi);
+					mediaTypes.add(CoapMediaType.exi);
 				}
 				if (name.contentEquals("json")) {
-					request.addAccept(CoapMediaType.json);
+					mediaTypes.add(CoapMediaType.json);
 				}
 			}
 		}
+		return mediaTypes;
 	}
 		
 
+	public static String coapMediaType2httpContentType(CoapMediaType contentType) {
+		if (contentType == null) {
+			return "text/plain";
+		}
+		switch (contentType) {
+		case link_format:
+			return "application/link-format";
+		case json:
+			return "application/json";
+		case exi:
+			return "application/exi";
+		case octet_stream:
+			return "application/octet-stream";
+		case xml:
+			return "application/xml";
+		case text_plain:
+		default:
+			return "text/plain";
+		}
+	}
+
 	// translate response-header-options in case of http-coap
+	/* the Max-Age of a CoAP 5.03 response */
+	static void setRetryAfter(HttpResponse httpResponse, long seconds) {
+		httpResponse.setHeader("Retry-After", String.valueOf(seconds));
+	}
+
 	public static void headerTranslateCoapToHttp(CoapResponse coapResponse, HttpResponse httpResponse) {
 
 		// investigate all coap-headers and set corresponding http-headers
-		CoapMediaType contentType = coapResponse.getContentType();
-		if (contentType != null) {
-			switch (contentType) {
-			case text_plain:
-				httpResponse.addHeader("Content-Type", "text/plain");
-				break;
-			case link_format:
-				httpResponse.addHeader("Content-Type",
-						"application/link-format");
-				break;
-			case json:
-				httpResponse.addHeader("Content-Type", "application/json");
-				break;
-			case exi:
-				httpResponse.addHeader("Content-Type", "application/exi");
-				break;
-			case octet_stream:
-				httpResponse.addHeader("Content-Type",
-						"application/octet-stream");
-				break;
-			case xml:
-				httpResponse.addHeader("Content-Type", "application/xml");
-				break;
-			default:
-				httpResponse.addHeader("Content-Type", "text/plain");
-				break;
-			}
-		} else {
-			httpResponse.addHeader("Content-Type", "text/plain");
-		}
+		httpResponse.addHeader("Content-Type", coapMediaType2httpContentType(coapResponse.getContentType()));
 		
 		long maxAge = coapResponse.getMaxAge();
 		if (maxAge < 0){
@@ -825,7 +1904,7 @@ public class ProxyMapper {
 		}
 		long maxAgeMs = maxAge * 1000; 
 		if (httpResponse.getStatusLine().getStatusCode() == HttpStatus.SC_SERVICE_UNAVAILABLE){
-			httpResponse.addHeader("Retry-After", String.valueOf(maxAge));
+			setRetryAfter(httpResponse, maxAge);
 		}
 		
 		byte[] etag = coapResponse.getETag();
@@ -952,28 +2031,116 @@ public class ProxyMapper {
 		}
 	}
 
-	public int getHttpRequestCount() {
-		return httpRequestCount;
+	public long getHttpRequestCount() {
+		return httpRequestCount.get();
 	}
 
-	public int getCoapRequestCount() {
-		return coapRequestCount;
+	public long getCoapRequestCount() {
+		return coapRequestCount.get();
 	}
 
-	public int getServedFromCacheCount() {
-		return servedFromCacheCount;
+	public long getServedFromCacheCount() {
+		return servedFromCacheCount.get();
 	}
 	
 	public void resetCounter(){
-		httpRequestCount = 0;
-		coapRequestCount = 0;
-		servedFromCacheCount = 0;
+		httpRequestCount.reset();
+		coapRequestCount.reset();
+		servedFromCacheCount.reset();
 	}
 
 	public void setCacheEnabled(boolean enabled) {
 			cache.setEnabled(enabled);
 	}
 
+	public void setCacheCapacity(long maxBytes, int concurrencyLevel) {
+			cache.setCapacity(maxBytes, concurrencyLevel);
+	}
+
+	public ProxyCache getCache() {
+		return cache;
+	}
+
+	public ProxyTimerWheel getTimerWheel() {
+		return timerWheel;
+	}
+
+	public ProxyNegativeCache getNegativeCache() {
+		return negativeCache;
+	}
+
+	public ProxyCluster getCluster() {
+		return cluster;
+	}
+
+	public void setCluster(final ProxyCluster cluster) {
+		this.cluster = cluster;
+		if (cluster == null) {
+			metrics.removeAll("cluster.");
+			return;
+		}
+		/* the counters were registered by the cluster */
+		metrics.remove("cluster.peers");
+		metrics.remove("cluster.peers-down");
+		metrics.gauge("cluster.peers", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return cluster.getPeers().size();
+			}
+		});
+		metrics.gauge("cluster.peers-down", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return cluster.getDownCount();
+			}
+		});
+	}
+
+	public ProxyObserveRelay getObserveRelay() {
+		return observeRelay;
+	}
+
+	public long getPendingTimeout() {
+		return pendingTimeoutMs;
+	}
+
+	/* 0 disables the timeout */
+	public void setPendingTimeout(long pendingTimeoutMs) {
+		this.pendingTimeoutMs = pendingTimeoutMs;
+	}
+
+	public long getPendingTimeoutCount() {
+		return pendingTimeoutCount.get();
+	}
+
+	public ProxyOriginLimiter getOriginLimiter() {
+		return originLimiter;
+	}
+
+	public ProxyRateLimiter getOriginRateLimiter() {
+		return originRateLimiter;
+	}
+
+	public ProxyRateLimiter getClientRateLimiter() {
+		return clientRateLimiter;
+	}
+
+	public ProxyRateLimiter getHitRateLimiter() {
+		return hitRateLimiter;
+	}
+
+	public ProxyResolver getResolver() {
+		return resolver;
+	}
+
+	public ProxyPipeline getPipeline() {
+		return pipeline;
+	}
+
+	public ProxyInFlightTable getInFlightTable() {
+		return inFlight;
+	}
+
 	public CoapClientProxy getCoapClient() {
 		return coapClient;
 	}
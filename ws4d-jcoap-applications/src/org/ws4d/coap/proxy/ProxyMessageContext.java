@@ -19,8 +19,14 @@
 package org.ws4d.coap.proxy;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.http.Header;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
@@ -28,6 +34,7 @@ import org.apache.http.nio.protocol.NHttpResponseTrigger;
 import org.ws4d.coap.interfaces.CoapClientChannel;
 import org.ws4d.coap.interfaces.CoapRequest;
 import org.ws4d.coap.interfaces.CoapResponse;
+import org.ws4d.coap.messages.CoapMediaType;
 
 /**
  * @author Christian Lerche <christian.lerche@uni-rostock.de>
@@ -66,6 +73,10 @@ public class ProxyMessageContext {
 
 	/* corresponding cached resource*/
 	private ProxyResource resource; 
+	/* set if this context sends an upstream request that other contexts wait for */
+	private ProxyResourceKey inFlightKey;
+	/* cache key, calculated on first use */
+	private ProxyResourceKey resourceKey;
 
 	private URI uri;
 	private InetAddress clientAddress;
@@ -78,8 +89,26 @@ public class ProxyMessageContext {
 
 	/* indicates that the response comes from the cache*/
 	private boolean cached = false;
+	/* indicates a background refresh of a cached resource, there is no client */
+	private boolean refresh = false;
+	/* owner of the resource in the proxy cluster, the request is forwarded to it */
+	private InetSocketAddress clusterPeer = null;
+	/* indicates the upstream observation of the observe relay, it receives notifications until it is cancelled */
+	private boolean observe = false;
+	/* indicates that the proxy sent a conditional request to validate the expired cached resource */
+	private boolean validation = false;
 	/* in case of a HTTP Head this is true, GET and HEAD are both mapped to CoAP GET */
 	private boolean httpHeadMethod = false;
+	/* set when the upstream response or the timeout is handled, whatever comes first */
+	private final AtomicBoolean answered = new AtomicBoolean(false);
+	/* the origin server was not reachable */
+	private volatile boolean connectionFailed = false;
+	/* timeout of the pending upstream request */
+	private volatile ProxyTimerWheel.Timeout pendingTimeout;
+	/* set if the context is processed by its own thread, which waits for the upstream response */
+	private volatile ProxyResponseFuture responseFuture = null;
+	/* slot of the origin server while the request is pending, see ProxyOriginLimiter */
+	private final AtomicReference<ProxyOriginLimiter.Origin> originSlot = new AtomicReference<ProxyOriginLimiter.Origin>();
 	
 	/* times */
 	long requestTime;
@@ -99,6 +128,13 @@ public class ProxyMessageContext {
 		this.trigger = trigger;
 	}
 	
+	/* context of a background refresh, the response only updates the cache */
+	public ProxyMessageContext(URI uri, boolean translate) {
+		this.translate = translate;
+		this.uri = uri;
+		this.refresh = true;
+	}
+	
 	public boolean isCoapRequest(){
 		return inCoapRequest != null;
 	}
@@ -243,6 +279,94 @@ public class ProxyMessageContext {
 		this.resource = resource;
 	}
 
+	/* key of the resource variant in the proxy cache, null if the uri has no path */
+	public ProxyResourceKey getResourceKey() {
+		if (resourceKey == null && uri.getPath() != null) {
+			resourceKey = new ProxyResourceKey(serverAddress, serverPort, uri.getPath(), uri.getQuery(), getAcceptVariant());
+		}
+		return resourceKey;
+	}
+
+	public void setResourceKey(ProxyResourceKey resourceKey) {
+		this.resourceKey = resourceKey;
+	}
+
+	/* the requested media types select the variant of a resource */
+	private String getAcceptVariant() {
+		if (inCoapRequest != null) {
+			return ProxyResourceKey.acceptVariant(inCoapRequest.getAccept(null));
+		}
+		if (inHttpRequest != null) {
+			List<CoapMediaType> mediaTypes = new ArrayList<CoapMediaType>();
+			for (Header header : inHttpRequest.getHeaders("Accept")) {
+				mediaTypes.addAll(ProxyMapper.httpMediaType2coapMediaTypes(header.getValue()));
+			}
+			return ProxyResourceKey.acceptVariant(mediaTypes);
+		}
+		return null;
+	}
+
+	public ProxyResourceKey getInFlightKey() {
+		return inFlightKey;
+	}
+
+	public void setInFlightKey(ProxyResourceKey inFlightKey) {
+		this.inFlightKey = inFlightKey;
+	}
+
+	public boolean isRefresh() {
+		return refresh;
+	}
+
+	public InetSocketAddress getClusterPeer() {
+		return clusterPeer;
+	}
+
+	public void setClusterPeer(InetSocketAddress clusterPeer) {
+		this.clusterPeer = clusterPeer;
+	}
+
+	public boolean isObserve() {
+		return observe;
+	}
+
+	public void setObserve(boolean observe) {
+		this.observe = observe;
+	}
+
+	public boolean isValidation() {
+		return validation;
+	}
+
+	public void setValidation(boolean validation) {
+		this.validation = validation;
+	}
+
+	public boolean isConnectionFailed() {
+		return connectionFailed;
+	}
+
+	public void setConnectionFailed(boolean connectionFailed) {
+		this.connectionFailed = connectionFailed;
+	}
+
+	/* returns true only for the first caller */
+	public boolean claimAnswer() {
+		return answered.compareAndSet(false, true);
+	}
+
+	public boolean isAnswered() {
+		return answered.get();
+	}
+
+	public ProxyTimerWheel.Timeout getPendingTimeout() {
+		return pendingTimeout;
+	}
+
+	public void setPendingTimeout(ProxyTimerWheel.Timeout pendingTimeout) {
+		this.pendingTimeout = pendingTimeout;
+	}
+
 	public void setHttpHeadMethod(boolean httpHeadMethod) {
 		this.httpHeadMethod = httpHeadMethod;
 	}
@@ -267,4 +391,20 @@ public class ProxyMessageContext {
 		this.responseTime = responseTime;
 	}
 
+	public ProxyResponseFuture getResponseFuture() {
+		return responseFuture;
+	}
+
+	public void setResponseFuture(ProxyResponseFuture responseFuture) {
+		this.responseFuture = responseFuture;
+	}
+
+	void setOriginSlot(ProxyOriginLimiter.Origin slot) {
+		originSlot.set(slot);
+	}
+
+	/* returns the slot only once */
+	ProxyOriginLimiter.Origin takeOriginSlot() {
+		return originSlot.getAndSet(null);
+	}
 }
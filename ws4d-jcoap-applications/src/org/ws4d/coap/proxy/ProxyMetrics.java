@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of the counters and gauges of the proxy components.
+ * Every proxy has its own registry that is passed to its components, a
+ * component that is created without one gets a registry of its own. The
+ * counters of several instances in one JVM are never mixed.
+ * Counters are striped: each thread adds to one of several cells, which are
+ * placed on separate cache lines, and reads sum up the cells. Increments do
+ * not contend and never block, reads are not atomic across the cells.
+ * Gauges read the current value of a component when a snapshot is taken.
+ * Metrics are named "component.metric" and listed in name order.
+ */
+public class ProxyMetrics {
+	/* longs per cell, a cell fills a cache line of 64 bytes */
+	private static final int PADDING = 8;
+	private static final int MAX_STRIPES = 16;
+	private static final int STRIPES;
+	static {
+		int stripes = 1;
+		while (stripes < Runtime.getRuntime().availableProcessors() && stripes < MAX_STRIPES) {
+			stripes <<= 1;
+		}
+		STRIPES = stripes;
+	}
+
+	/* Counter or Gauge */
+	private final ConcurrentSkipListMap<String, Object> metrics = new ConcurrentSkipListMap<String, Object>();
+
+	/* returns the counter of this name, which is created on the first call,
+	 * a component that replaces another one continues its counters */
+	public Counter counter(String name) {
+		Object metric = metrics.get(name);
+		if (metric == null) {
+			Counter created = new Counter();
+			metric = metrics.putIfAbsent(name, created);
+			if (metric == null) {
+				return created;
+			}
+		}
+		if (!(metric instanceof Counter)) {
+			throw new IllegalArgumentException("metric " + name + " is not a counter");
+		}
+		return (Counter) metric;
+	}
+
+	/* registers the gauge, a name can only be registered once */
+	public void gauge(String name, Gauge gauge) {
+		if (metrics.putIfAbsent(name, gauge) != null) {
+			throw new IllegalArgumentException("metric " + name + " is already registered");
+		}
+	}
+
+	public void remove(String name) {
+		metrics.remove(name);
+	}
+
+	/* removes the metrics of a component, e.g. "cache.offheap." */
+	public void removeAll(String prefix) {
+		metrics.subMap(prefix, prefix + Character.MAX_VALUE).clear();
+	}
+
+	/* current values in name order */
+	public Map<String, Long> snapshot() {
+		Map<String, Long> values = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, Object> metric : metrics.entrySet()) {
+			Object value = metric.getValue();
+			if (value instanceof Counter) {
+				values.put(metric.getKey(), ((Counter) value).get());
+			} else {
+				values.put(metric.getKey(), ((Gauge) value).getValue());
+			}
+		}
+		return values;
+	}
+
+	public interface Gauge {
+		long getValue();
+	}
+
+	public static class Counter {
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+		private Counter() {
+		}
+
+		public void increment() {
+			cells.getAndIncrement(cell());
+		}
+
+		public void add(long delta) {
+			cells.getAndAdd(cell(), delta);
+		}
+
+		public long get() {
+			long sum = 0;
+			for (int i = 0; i < STRIPES; i++) {
+				sum += cells.get(i * PADDING);
+			}
+			return sum;
+		}
+
+		/* increments during the reset may be lost */
+		public void reset() {
+			for (int i = 0; i < STRIPES; i++) {
+				cells.set(i * PADDING, 0);
+			}
+		}
+
+		/* a thread always uses the same cell */
+		private static int cell() {
+			long id = Thread.currentThread().getId();
+			int hash = (int) ((id * 0x9e3779b97f4a7c15L) >>> 32);
+			return (hash & (STRIPES - 1)) * PADDING;
+		}
+	}
+}
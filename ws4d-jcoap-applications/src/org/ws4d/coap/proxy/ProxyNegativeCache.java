@@ -0,0 +1,186 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.HttpStatus;
+import org.ws4d.coap.messages.CoapResponseCode;
+
+/**
+ * Remembers failed requests for a short time, so that following requests are
+ * answered immediately instead of waiting for the same failure again.
+ * Error responses (4.04 and 5.xx) are stored per resource, connection
+ * failures and timeouts are stored per origin server. Both are only used for
+ * safe requests (GET, HEAD), unsafe requests are always tried.
+ */
+public class ProxyNegativeCache {
+	public static final long DEFAULT_TTL_MS = 5000;
+	private static final int MAX_ENTRIES = 10000;
+	private static final NegativeEntry UNREACHABLE = new NegativeEntry(CoapResponseCode.Gateway_Timeout_504, HttpStatus.SC_GATEWAY_TIMEOUT, "Gateway Timeout", 0);
+
+	/* ProxyResourceKey or InetSocketAddress of the origin */
+	private final ConcurrentHashMap<Object, NegativeEntry> entries = new ConcurrentHashMap<Object, NegativeEntry>();
+	private final ProxyTimerWheel timerWheel;
+	/* 0 disables the negative cache */
+	private volatile long ttlMs = DEFAULT_TTL_MS;
+
+	/* statistics */
+	private final ProxyMetrics.Counter hitCount;
+	private final ProxyMetrics.Counter insertCount;
+
+	public ProxyNegativeCache(ProxyTimerWheel timerWheel) {
+		this(timerWheel, new ProxyMetrics());
+	}
+
+	public ProxyNegativeCache(ProxyTimerWheel timerWheel, ProxyMetrics metrics) {
+		this.timerWheel = timerWheel;
+		hitCount = metrics.counter("negative-cache.hits");
+		insertCount = metrics.counter("negative-cache.inserts");
+	}
+
+	public long getTtl() {
+		return ttlMs;
+	}
+
+	public void setTtl(long ttlMs) {
+		this.ttlMs = ttlMs;
+		if (ttlMs <= 0) {
+			entries.clear();
+		}
+	}
+
+	/* returns the stored failure of the origin or the resource, null if there is none */
+	public NegativeEntry get(ProxyMessageContext context, boolean safe) {
+		if (ttlMs <= 0 || !safe || entries.isEmpty()) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		NegativeEntry entry = null;
+		InetSocketAddress origin = getOrigin(context);
+		if (origin != null) {
+			entry = entries.get(origin);
+		}
+		if ((entry == null || entry.expires <= now) && context.getResourceKey() != null) {
+			entry = entries.get(context.getResourceKey());
+		}
+		if (entry == null || entry.expires <= now) {
+			return null;
+		}
+		hitCount.increment();
+		return entry;
+	}
+
+	public void putResource(ProxyResourceKey key, CoapResponseCode coapCode, int httpStatus, String reason) {
+		if (key == null) {
+			return;
+		}
+		put(key, new NegativeEntry(coapCode, httpStatus, reason, 0));
+	}
+
+	/* the origin server did not respond */
+	public void putOrigin(ProxyMessageContext context) {
+		InetSocketAddress origin = getOrigin(context);
+		if (origin != null) {
+			put(origin, UNREACHABLE);
+		}
+	}
+
+	/* the origin server responded, the stored failures are outdated */
+	public void remove(ProxyMessageContext context) {
+		if (entries.isEmpty()) {
+			return;
+		}
+		InetSocketAddress origin = getOrigin(context);
+		if (origin != null) {
+			entries.remove(origin);
+		}
+		if (context.getResourceKey() != null) {
+			entries.remove(context.getResourceKey());
+		}
+	}
+
+	private void put(final Object key, NegativeEntry template) {
+		long ttl = ttlMs;
+		if (ttl <= 0 || (entries.size() >= MAX_ENTRIES && !entries.containsKey(key))) {
+			return;
+		}
+		long expires = System.currentTimeMillis() + ttl;
+		final NegativeEntry entry = new NegativeEntry(template.coapCode, template.httpStatus, template.reason, expires);
+		entries.put(key, entry);
+		insertCount.increment();
+		timerWheel.schedule(expires, new Runnable() {
+			@Override
+			public void run() {
+				entries.remove(key, entry);
+			}
+		});
+	}
+
+	private static InetSocketAddress getOrigin(ProxyMessageContext context) {
+		if (context.getServerAddress() == null) {
+			return null;
+		}
+		return new InetSocketAddress(context.getServerAddress(), context.getServerPort());
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getInsertCount() {
+		return insertCount.get();
+	}
+
+	public static class NegativeEntry {
+		private final CoapResponseCode coapCode;
+		private final int httpStatus;
+		private final String reason;
+		private final long expires;
+
+		NegativeEntry(CoapResponseCode coapCode, int httpStatus, String reason, long expires) {
+			this.coapCode = coapCode;
+			this.httpStatus = httpStatus;
+			this.reason = reason;
+			this.expires = expires;
+		}
+
+		public CoapResponseCode getCoapCode() {
+			return coapCode;
+		}
+
+		public int getHttpStatus() {
+			return httpStatus;
+		}
+
+		public String getReason() {
+			return reason;
+		}
+
+		/* remaining time in seconds, rounded up */
+		public int getMaxAge(long now) {
+			return (int) Math.max((expires - now + 999) / 1000, 0);
+		}
+	}
+}
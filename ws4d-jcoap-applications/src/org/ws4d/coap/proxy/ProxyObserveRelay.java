@@ -0,0 +1,565 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.log4j.Logger;
+import org.ws4d.coap.interfaces.CoapChannel;
+import org.ws4d.coap.interfaces.CoapRequest;
+import org.ws4d.coap.interfaces.CoapResponse;
+import org.ws4d.coap.interfaces.CoapServerChannel;
+import org.ws4d.coap.messages.AbstractCoapMessage.CoapHeaderOptionType;
+import org.ws4d.coap.messages.CoapResponseCode;
+
+/**
+ * Relays CoAP observations of origin resources to many clients.
+ * The proxy keeps one upstream observation per resource and reference counts
+ * its clients: CoAP observers and HTTP clients that wait for the next change
+ * (long polling with "Prefer: wait=N"). Every notification updates the cache
+ * and is sent to all clients.
+ * jCoAP does not report deregistrations, so CoAP observers hold a lease that
+ * is renewed when they register again. An observation without clients is kept
+ * for LINGER_MS, so long polling clients do not restart it for every request.
+ */
+public class ProxyObserveRelay {
+	static Logger logger = Logger.getLogger(Proxy.class);
+	/* observers have to register again within this time */
+	static final long OBSERVER_LEASE_MS = 10 * 60 * 1000;
+	/* an observation without clients is cancelled after this time */
+	static final long LINGER_MS = 30 * 1000;
+	static final long MAX_LONG_POLL_MS = 5 * 60 * 1000;
+	/* the Observe option has 24 bit */
+	private static final int SEQUENCE_MASK = 0xffffff;
+
+	private final ProxyMapper mapper;
+	private final ProxyCache cache;
+	private final ProxyTimerWheel timerWheel;
+	private final ConcurrentHashMap<ProxyResourceKey, Observation> observations = new ConcurrentHashMap<ProxyResourceKey, Observation>();
+
+	/* statistics */
+	private final ProxyMetrics.Counter upstreamCount;
+	private final ProxyMetrics.Counter notificationCount;
+	private final ProxyMetrics.Counter deliveredCount;
+
+	public ProxyObserveRelay(ProxyMapper mapper, ProxyCache cache, ProxyTimerWheel timerWheel) {
+		this.mapper = mapper;
+		this.cache = cache;
+		this.timerWheel = timerWheel;
+		/* counted with the other metrics of the cache */
+		ProxyMetrics metrics = cache.getMetrics();
+		upstreamCount = metrics.counter("observe.started");
+		notificationCount = metrics.counter("observe.notifications-received");
+		deliveredCount = metrics.counter("observe.notifications-delivered");
+	}
+
+	/* registers a CoAP observer, returns false if the request can not be relayed */
+	public boolean observe(ProxyMessageContext context) {
+		ProxyResourceKey key = context.getResourceKey();
+		if (key == null || context.isTranslate()) {
+			return false;
+		}
+		CoapChannel channel = context.getInCoapRequest().getChannel();
+		String endpoint = channel.getRemoteAddress().getHostAddress() + ":" + channel.getRemotePort();
+		Observer observer = new Observer(context);
+		while (true) {
+			Observation observation = observations.get(key);
+			boolean created = false;
+			if (observation == null) {
+				observation = new Observation(key);
+				Observation existing = observations.putIfAbsent(key, observation);
+				if (existing != null) {
+					observation = existing;
+				} else {
+					created = true;
+				}
+			}
+			Observer old;
+			CoapResponse last;
+			int sequence = -1;
+			synchronized (observation) {
+				if (observation.closed) {
+					/* the observation was cancelled in the meantime */
+					observations.remove(key, observation);
+					continue;
+				}
+				old = observation.observers.put(endpoint, observer);
+				observation.cancelLinger();
+				last = observation.last;
+				if (last != null) {
+					sequence = observation.nextSequence();
+				}
+			}
+			if (old != null) {
+				/* the observer registered again */
+				old.cancelLease();
+			}
+			observer.lease = scheduleLease(observation, endpoint, observer);
+			if (created) {
+				startUpstream(observation);
+			} else if (last != null) {
+				/* answer with the last notification */
+				sendToObserver(observer, last, sequence);
+			}
+			logger.debug("observe relay: new observer " + endpoint + " for " + key.getPath());
+			return true;
+		}
+	}
+
+	/* holds an HTTP GET until the next notification, returns false if the request can not be relayed */
+	public boolean longPoll(final ProxyMessageContext context, long waitMs) {
+		ProxyResourceKey key = context.getResourceKey();
+		if (key == null || !context.isTranslate()) {
+			return false;
+		}
+		while (true) {
+			Observation observation = observations.get(key);
+			boolean created = false;
+			if (observation == null) {
+				observation = new Observation(key);
+				Observation existing = observations.putIfAbsent(key, observation);
+				if (existing != null) {
+					observation = existing;
+				} else {
+					created = true;
+				}
+			}
+			synchronized (observation) {
+				if (observation.closed) {
+					observations.remove(key, observation);
+					continue;
+				}
+				observation.waiters.add(context);
+				observation.cancelLinger();
+			}
+			final Observation waitFor = observation;
+			context.setPendingTimeout(timerWheel.schedule(System.currentTimeMillis() + Math.min(waitMs, MAX_LONG_POLL_MS), new Runnable() {
+				@Override
+				public void run() {
+					handlePollTimeout(waitFor, context);
+				}
+			}));
+			if (created) {
+				startUpstream(observation);
+			}
+			return true;
+		}
+	}
+
+	/* a GET without Observe option ends the observation of the client */
+	public void cancel(ProxyMessageContext context) {
+		ProxyResourceKey key = context.getResourceKey();
+		if (observations.isEmpty() || key == null || context.getInCoapRequest() == null) {
+			return;
+		}
+		Observation observation = observations.get(key);
+		if (observation == null) {
+			return;
+		}
+		CoapChannel channel = context.getInCoapRequest().getChannel();
+		String endpoint = channel.getRemoteAddress().getHostAddress() + ":" + channel.getRemotePort();
+		Observer observer;
+		synchronized (observation) {
+			observer = observation.observers.remove(endpoint);
+		}
+		if (observer != null) {
+			observer.cancelLease();
+			lingerIfUnused(observation);
+		}
+	}
+
+	/* a notification could not be delivered, the observer is removed */
+	public void removeObserver(CoapServerChannel channel) {
+		for (Observation observation : observations.values()) {
+			Observer removed = null;
+			synchronized (observation) {
+				for (Map.Entry<String, Observer> entry : observation.observers.entrySet()) {
+					if (entry.getValue().context.getInCoapRequest().getChannel() == channel) {
+						removed = observation.observers.remove(entry.getKey());
+						break;
+					}
+				}
+			}
+			if (removed != null) {
+				removed.cancelLease();
+				lingerIfUnused(observation);
+			}
+		}
+	}
+
+	/* called by the CoAP client for every response of an upstream observation */
+	public void handleNotification(ProxyMessageContext upstream, CoapResponse response) {
+		ProxyResourceKey key = upstream.getResourceKey();
+		Observation observation = observations.get(key);
+		if (observation == null || observation.upstream != upstream) {
+			/* the observation was cancelled */
+			upstream.getOutCoapClientChannel().close();
+			return;
+		}
+		long now = System.currentTimeMillis();
+		/* a notification has no request, it was sent at least the delay of the origin ago */
+		upstream.setRequestTime(now - Math.max(cache.getRttEstimator().getDelay(key.getOrigin()), 0));
+		upstream.setResponseTime(now);
+		upstream.setInCoapResponse(response);
+		cache.cacheCoapResponse(upstream);
+		mapper.getNegativeCache().remove(upstream);
+		notificationCount.increment();
+
+		/* only 2.05 responses with Observe option continue the observation */
+		boolean observable = response.getObserveOption() != null && response.getResponseCode() == CoapResponseCode.Content_205;
+		List<Observer> observers;
+		List<ProxyMessageContext> waiters;
+		int sequence;
+		synchronized (observation) {
+			observation.last = observable ? response : null;
+			sequence = observable ? observation.nextSequence() : -1;
+			observers = new ArrayList<Observer>(observation.observers.values());
+			waiters = new ArrayList<ProxyMessageContext>(observation.waiters);
+			observation.waiters.clear();
+			if (!observable) {
+				observation.close();
+			}
+		}
+		if (!observable) {
+			logger.info("observe relay: observation of " + key.getPath() + " ended by the origin server");
+			observations.remove(key, observation);
+			upstream.getOutCoapClientChannel().close();
+		}
+		for (Observer observer : observers) {
+			sendToObserver(observer, response, sequence);
+			if (!observable) {
+				observer.cancelLease();
+			}
+		}
+		for (ProxyMessageContext waiter : waiters) {
+			answerWaiter(waiter, response);
+		}
+		if (observable) {
+			lingerIfUnused(observation);
+		}
+	}
+
+	/* called by the CoAP client if the upstream observation failed */
+	public void handleFailure(ProxyMessageContext upstream) {
+		ProxyResourceKey key = upstream.getResourceKey();
+		Observation observation = observations.get(key);
+		if (observation == null || observation.upstream != upstream) {
+			return;
+		}
+		mapper.getNegativeCache().putOrigin(upstream);
+		fail(observation);
+	}
+
+	/* ends the observation, the clients get an error */
+	private void fail(Observation observation) {
+		List<Observer> observers;
+		List<ProxyMessageContext> waiters;
+		synchronized (observation) {
+			observers = new ArrayList<Observer>(observation.observers.values());
+			waiters = new ArrayList<ProxyMessageContext>(observation.waiters);
+			observation.waiters.clear();
+			observation.close();
+		}
+		observations.remove(observation.key, observation);
+		logger.warn("observe relay: observation of " + observation.key.getPath() + " failed");
+		for (Observer observer : observers) {
+			observer.cancelLease();
+			sendError(observer, CoapResponseCode.Gateway_Timeout_504);
+		}
+		for (ProxyMessageContext waiter : waiters) {
+			answerWaiterError(waiter);
+		}
+	}
+
+	private void startUpstream(Observation observation) {
+		ProxyResourceKey key = observation.key;
+		ProxyMessageContext upstream;
+		try {
+			URI uri = new URI("coap", null, key.getInetAddr().getHostAddress(), key.getPort(), key.getPath(), key.getQuery(), null);
+			upstream = new ProxyMessageContext(uri, false);
+		} catch (Exception e) {
+			logger.warn("observe relay: invalid resource " + key.getPath());
+			fail(observation);
+			return;
+		}
+		upstream.setObserve(true);
+		upstream.setServerAddress(key.getInetAddr(), key.getPort());
+		upstream.setResourceKey(key);
+		synchronized (observation) {
+			observation.upstream = upstream;
+		}
+		try {
+			mapper.getCoapClient().createChannel(upstream);
+			CoapRequest request = ProxyMapper.createCoapGet(upstream.getOutCoapClientChannel(), key);
+			request.setObserveOption(0);
+			upstream.setOutCoapRequest(request);
+			upstream.setRequestTime(System.currentTimeMillis());
+			mapper.getCoapClient().sendRequest(upstream);
+			upstreamCount.increment();
+			logger.debug("observe relay: observe " + key.getPath());
+		} catch (Exception e) {
+			logger.warn("observe relay: upstream request failed: " + e.getMessage());
+			if (upstream.getOutCoapClientChannel() != null) {
+				upstream.getOutCoapClientChannel().close();
+			}
+			handleFailure(upstream);
+		}
+	}
+
+	/* the first response is the piggy-backed response of the registration,
+	 * a sequence number of -1 ends the observation of the client */
+	private void sendToObserver(Observer observer, CoapResponse notification, int sequence) {
+		CoapRequest request = observer.context.getInCoapRequest();
+		CoapServerChannel channel = (CoapServerChannel) request.getChannel();
+		boolean first = observer.initialSent.compareAndSet(false, true);
+		CoapResponse response;
+		if (first) {
+			response = observer.context.getOutCoapResponse();
+			response.setResponseCode(notification.getResponseCode());
+		} else {
+			response = channel.createNotification(request, notification.getResponseCode(), Math.max(sequence, 0));
+		}
+		if (sequence >= 0) {
+			response.setObserveOption(sequence);
+		} else if (!first) {
+			response.removeOption(CoapHeaderOptionType.Observe);
+		}
+		if (notification.getPayload() != null) {
+			response.setPayload(notification.getPayload());
+		}
+		if (notification.getContentType() != null) {
+			response.setContentType(notification.getContentType());
+		}
+		if (notification.getETag() != null) {
+			response.setETag(notification.getETag());
+		}
+		if (notification.getMaxAge() >= 0) {
+			response.setMaxAge((int) notification.getMaxAge());
+		}
+		if (first) {
+			channel.sendMessage(response);
+		} else {
+			channel.sendNotification(response);
+		}
+		if (sequence < 0) {
+			channel.close();
+		}
+		deliveredCount.increment();
+	}
+
+	private void sendError(Observer observer, CoapResponseCode code) {
+		CoapRequest request = observer.context.getInCoapRequest();
+		CoapServerChannel channel = (CoapServerChannel) request.getChannel();
+		if (observer.initialSent.compareAndSet(false, true)) {
+			CoapResponse response = observer.context.getOutCoapResponse();
+			response.setResponseCode(code);
+			channel.sendMessage(response);
+		}
+		/* an established observer detects the end by the missing notifications */
+		channel.close();
+	}
+
+	private void answerWaiter(ProxyMessageContext waiter, CoapResponse response) {
+		if (!waiter.claimAnswer()) {
+			return;
+		}
+		if (waiter.getPendingTimeout() != null) {
+			waiter.getPendingTimeout().cancel();
+		}
+		waiter.setInCoapResponse(response);
+		try {
+			ProxyMapper.transResponseCoapToHttp(waiter);
+		} catch (Exception e) {
+			logger.warn("observe relay: translation failed: " + e.getMessage());
+			waiter.setOutHttpResponse(new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_INTERNAL_SERVER_ERROR, "Internal Server Error"));
+		}
+		mapper.getHttpServer().sendResponse(waiter);
+		deliveredCount.increment();
+	}
+
+	private void answerWaiterError(ProxyMessageContext waiter) {
+		if (!waiter.claimAnswer()) {
+			return;
+		}
+		if (waiter.getPendingTimeout() != null) {
+			waiter.getPendingTimeout().cancel();
+		}
+		waiter.setOutHttpResponse(new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_GATEWAY_TIMEOUT, "Gateway Timeout"));
+		mapper.getHttpServer().sendResponse(waiter);
+	}
+
+	/* no change within the requested time, the client gets the current representation */
+	private void handlePollTimeout(Observation observation, ProxyMessageContext waiter) {
+		synchronized (observation) {
+			observation.waiters.remove(waiter);
+		}
+		if (waiter.claimAnswer()) {
+			ProxyResource resource = cache.getStore().getQuiet(observation.key);
+			if (resource != null) {
+				ProxyMapper.resourceToHttp(waiter, resource);
+			} else {
+				waiter.setOutHttpResponse(new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_GATEWAY_TIMEOUT, "Gateway Timeout"));
+			}
+			mapper.getHttpServer().sendResponse(waiter);
+		}
+		lingerIfUnused(observation);
+	}
+
+	private ProxyTimerWheel.Timeout scheduleLease(final Observation observation, final String endpoint, final Observer observer) {
+		return timerWheel.schedule(System.currentTimeMillis() + OBSERVER_LEASE_MS, new Runnable() {
+			@Override
+			public void run() {
+				boolean removed;
+				synchronized (observation) {
+					removed = observation.observers.get(endpoint) == observer;
+					if (removed) {
+						observation.observers.remove(endpoint);
+					}
+				}
+				if (removed) {
+					logger.debug("observe relay: lease of " + endpoint + " expired");
+					observer.context.getInCoapRequest().getChannel().close();
+					lingerIfUnused(observation);
+				}
+			}
+		});
+	}
+
+	/* schedules the cancellation of an observation without clients */
+	private void lingerIfUnused(final Observation observation) {
+		synchronized (observation) {
+			if (observation.closed || !observation.isUnused() || observation.linger != null) {
+				return;
+			}
+			observation.linger = timerWheel.schedule(System.currentTimeMillis() + LINGER_MS, new Runnable() {
+				@Override
+				public void run() {
+					ProxyMessageContext upstream;
+					synchronized (observation) {
+						observation.linger = null;
+						if (observation.closed || !observation.isUnused()) {
+							return;
+						}
+						observation.close();
+						upstream = observation.upstream;
+					}
+					observations.remove(observation.key, observation);
+					if (upstream != null && upstream.getOutCoapClientChannel() != null) {
+						upstream.getOutCoapClientChannel().close();
+					}
+					logger.debug("observe relay: cancelled unused observation of " + observation.key.getPath());
+				}
+			});
+		}
+	}
+
+	public int getObservationCount() {
+		return observations.size();
+	}
+
+	public int getObserverCount() {
+		int count = 0;
+		for (Observation observation : observations.values()) {
+			synchronized (observation) {
+				count += observation.observers.size() + observation.waiters.size();
+			}
+		}
+		return count;
+	}
+
+	public long getUpstreamCount() {
+		return upstreamCount.get();
+	}
+
+	public long getNotificationCount() {
+		return notificationCount.get();
+	}
+
+	public long getDeliveredCount() {
+		return deliveredCount.get();
+	}
+
+	/* one upstream observation, guarded by itself */
+	private static class Observation {
+		final ProxyResourceKey key;
+		ProxyMessageContext upstream;
+		/* CoAP observers by remote address and port */
+		final Map<String, Observer> observers = new LinkedHashMap<String, Observer>();
+		/* HTTP long polling clients */
+		final List<ProxyMessageContext> waiters = new ArrayList<ProxyMessageContext>();
+		/* last notification, sent to new observers */
+		CoapResponse last;
+		int sequence = 0;
+		ProxyTimerWheel.Timeout linger;
+		boolean closed = false;
+
+		Observation(ProxyResourceKey key) {
+			this.key = key;
+		}
+
+		int nextSequence() {
+			sequence = (sequence + 1) & SEQUENCE_MASK;
+			return sequence;
+		}
+
+		boolean isUnused() {
+			return observers.isEmpty() && waiters.isEmpty();
+		}
+
+		void cancelLinger() {
+			if (linger != null) {
+				linger.cancel();
+				linger = null;
+			}
+		}
+
+		void close() {
+			closed = true;
+			last = null;
+			observers.clear();
+			cancelLinger();
+		}
+	}
+
+	private static class Observer {
+		final ProxyMessageContext context;
+		final AtomicBoolean initialSent = new AtomicBoolean(false);
+		volatile ProxyTimerWheel.Timeout lease;
+
+		Observer(ProxyMessageContext context) {
+			this.context = context;
+		}
+
+		void cancelLease() {
+			ProxyTimerWheel.Timeout timeout = lease;
+			if (timeout != null) {
+				timeout.cancel();
+			}
+		}
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Limits the requests that are sent to one origin server at the same time.
+ * Requests beyond the limit wait in a bounded queue per origin and are sent
+ * when a response (or a failure) frees a slot. Requests beyond the queue are
+ * rejected, the proxy answers them immediately with 5.03/503 instead of
+ * letting the queues of a constrained device overflow.
+ * A context holds at most one slot, releasing it twice has no effect.
+ */
+public class ProxyOriginLimiter {
+	public static final int DEFAULT_QUEUE_SIZE = 16;
+	public static final int ADMITTED = 0;
+	public static final int QUEUED = 1;
+	public static final int REJECTED = 2;
+
+	private final ConcurrentHashMap<InetSocketAddress, Origin> origins = new ConcurrentHashMap<InetSocketAddress, Origin>();
+	/* limits of single origins, override maxInFlight */
+	private final ConcurrentHashMap<InetSocketAddress, Integer> limits = new ConcurrentHashMap<InetSocketAddress, Integer>();
+	/* 0 disables the limit for origins without their own limit */
+	private volatile int maxInFlight = 0;
+	private volatile int maxQueued = DEFAULT_QUEUE_SIZE;
+
+	/* statistics */
+	private final ProxyMetrics.Counter admittedCount;
+	private final ProxyMetrics.Counter queuedCount;
+	private final ProxyMetrics.Counter rejectedCount;
+
+	public ProxyOriginLimiter() {
+		this(new ProxyMetrics());
+	}
+
+	public ProxyOriginLimiter(ProxyMetrics metrics) {
+		admittedCount = metrics.counter("origin-limit.admitted");
+		queuedCount = metrics.counter("origin-limit.queued");
+		rejectedCount = metrics.counter("origin-limit.rejected");
+		metrics.gauge("origin-limit.busy-origins", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return origins.size();
+			}
+		});
+	}
+
+	public void setLimit(int maxInFlight) {
+		this.maxInFlight = Math.max(maxInFlight, 0);
+	}
+
+	public void setLimit(InetSocketAddress origin, int maxInFlight) {
+		limits.put(origin, Math.max(maxInFlight, 0));
+	}
+
+	public int getLimit() {
+		return maxInFlight;
+	}
+
+	public int getLimit(InetSocketAddress origin) {
+		Integer limit = limits.get(origin);
+		return limit != null ? limit : maxInFlight;
+	}
+
+	public int getQueueSize() {
+		return maxQueued;
+	}
+
+	public void setQueueSize(int maxQueued) {
+		this.maxQueued = Math.max(maxQueued, 0);
+	}
+
+	/* true if no origin is limited */
+	public boolean isDisabled() {
+		return maxInFlight == 0 && limits.isEmpty();
+	}
+
+	/* ADMITTED: the caller sends the request now, QUEUED: send is run when a slot is free,
+	 * REJECTED: the request must not be sent */
+	public int acquire(InetSocketAddress origin, ProxyMessageContext context, Runnable send) {
+		int limit = getLimit(origin);
+		if (limit == 0) {
+			admittedCount.increment();
+			return ADMITTED;
+		}
+		while (true) {
+			Origin state = origins.get(origin);
+			if (state == null) {
+				Origin created = new Origin(origin);
+				state = origins.putIfAbsent(origin, created);
+				if (state == null) {
+					state = created;
+				}
+			}
+			synchronized (state) {
+				if (state.removed) {
+					/* became idle in the meantime */
+					continue;
+				}
+				if (state.inFlight < limit) {
+					state.inFlight++;
+					context.setOriginSlot(state);
+					admittedCount.increment();
+					return ADMITTED;
+				}
+				if (state.queue.size() < maxQueued) {
+					state.queue.add(new Waiter(context, send));
+					queuedCount.increment();
+					return QUEUED;
+				}
+				rejectedCount.increment();
+				return REJECTED;
+			}
+		}
+	}
+
+	/* frees the slot of the context and sends the next queued request of its origin */
+	public void release(ProxyMessageContext context) {
+		Origin state = context.takeOriginSlot();
+		if (state == null) {
+			return;
+		}
+		Waiter next;
+		synchronized (state) {
+			next = state.queue.poll();
+			if (next != null) {
+				/* the slot is passed on */
+				next.context.setOriginSlot(state);
+			} else {
+				state.inFlight--;
+				if (state.inFlight == 0) {
+					state.removed = true;
+					origins.remove(state.address, state);
+				}
+			}
+		}
+		if (next != null) {
+			next.send.run();
+		}
+	}
+
+	/* removes a queued request, returns false if it is not queued */
+	public boolean removeQueued(ProxyMessageContext context) {
+		if (context.getServerAddress() == null) {
+			return false;
+		}
+		Origin state = origins.get(new InetSocketAddress(context.getServerAddress(), context.getServerPort()));
+		if (state == null) {
+			return false;
+		}
+		synchronized (state) {
+			for (Iterator<Waiter> it = state.queue.iterator(); it.hasNext();) {
+				if (it.next().context == context) {
+					it.remove();
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	public int getInFlight(InetSocketAddress origin) {
+		Origin state = origins.get(origin);
+		if (state == null) {
+			return 0;
+		}
+		synchronized (state) {
+			return state.inFlight;
+		}
+	}
+
+	/* seconds until the queue of the origin is expected to be sent, at least 1 */
+	public int getRetryAfter(InetSocketAddress origin, long rttMs) {
+		int limit = Math.max(getLimit(origin), 1);
+		long drain = rttMs * (maxQueued / limit + 1);
+		return (int) Math.max((drain + 999) / 1000, 1);
+	}
+
+	public long getAdmittedCount() {
+		return admittedCount.get();
+	}
+
+	public long getQueuedCount() {
+		return queuedCount.get();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	static class Origin {
+		final InetSocketAddress address;
+		/* guarded by this */
+		int inFlight = 0;
+		final ArrayDeque<Waiter> queue = new ArrayDeque<Waiter>();
+		boolean removed = false;
+
+		Origin(InetSocketAddress address) {
+			this.address = address;
+		}
+	}
+
+	private static class Waiter {
+		final ProxyMessageContext context;
+		final Runnable send;
+
+		Waiter(ProxyMessageContext context, Runnable send) {
+			this.context = context;
+			this.send = send;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Compresses cached payloads above a size threshold with Deflate at the
+ * fastest level. The zlib format is used, which is also the HTTP "deflate"
+ * content coding, so compressed payloads can be sent to HTTP clients as they
+ * are. Payloads are kept only if compression saves at least an eighth.
+ * Deflaters and inflaters are reused per thread.
+ */
+public class ProxyPayloadCompressor {
+	static Logger logger = Logger.getLogger(Proxy.class);
+	public static final int DEFAULT_THRESHOLD = 1024;
+
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_SPEED);
+		}
+	};
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	private final int threshold;
+
+	/* statistics */
+	private final ProxyMetrics.Counter compressedCount;
+	private final ProxyMetrics.Counter incompressibleCount;
+	private final ProxyMetrics.Counter inflatedCount;
+	/* bytes saved by the currently cached payloads */
+	private final ProxyMetrics.Counter savedBytes;
+	/* deflate and inflate are CPU bound, the elapsed time is used as CPU time */
+	private final ProxyMetrics.Counter compressMicros;
+	private final ProxyMetrics.Counter decompressMicros;
+
+	public ProxyPayloadCompressor(int threshold) {
+		this(threshold, new ProxyMetrics());
+	}
+
+	public ProxyPayloadCompressor(int threshold, ProxyMetrics metrics) {
+		if (threshold <= 0) {
+			throw new IllegalArgumentException("threshold must be positive");
+		}
+		this.threshold = threshold;
+		compressedCount = metrics.counter("cache.compression.payloads");
+		incompressibleCount = metrics.counter("cache.compression.incompressible");
+		inflatedCount = metrics.counter("cache.compression.decompressed");
+		savedBytes = metrics.counter("cache.compression.saved-bytes");
+		compressMicros = metrics.counter("cache.compression.compress-us");
+		decompressMicros = metrics.counter("cache.compression.decompress-us");
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/* returns the compressed payload, null if it is too small or does not compress */
+	public byte[] compress(byte[] value) {
+		if (value == null || value.length < threshold) {
+			return null;
+		}
+		long start = System.nanoTime();
+		Deflater deflater = deflaters.get();
+		/* larger results are not kept anyway */
+		int limit = value.length - value.length / 8;
+		byte[] buffer = new byte[limit + 1];
+		int length = 0;
+		try {
+			deflater.setInput(value);
+			deflater.finish();
+			while (!deflater.finished() && length < buffer.length) {
+				length += deflater.deflate(buffer, length, buffer.length - length);
+			}
+		} finally {
+			deflater.reset();
+			compressMicros.add((System.nanoTime() - start) / 1000);
+		}
+		if (length > limit) {
+			incompressibleCount.increment();
+			return null;
+		}
+		byte[] compressed = new byte[length];
+		System.arraycopy(buffer, 0, compressed, 0, length);
+		compressedCount.increment();
+		savedBytes.add(value.length - length);
+		return compressed;
+	}
+
+	/* returns null if the payload is corrupted */
+	public byte[] decompress(byte[] compressed, int length) {
+		long start = System.nanoTime();
+		Inflater inflater = inflaters.get();
+		byte[] value = new byte[length];
+		try {
+			inflater.setInput(compressed);
+			int inflated = 0;
+			while (inflated < length && !inflater.finished()) {
+				int n = inflater.inflate(value, inflated, length - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated += n;
+			}
+			if (inflated != length) {
+				logger.warn("compressed payload is truncated");
+				return null;
+			}
+		} catch (DataFormatException e) {
+			logger.warn("compressed payload is corrupted: " + e.getMessage());
+			return null;
+		} finally {
+			inflater.reset();
+			decompressMicros.add((System.nanoTime() - start) / 1000);
+		}
+		inflatedCount.increment();
+		return value;
+	}
+
+	/* called when a compressed payload is removed from the cache */
+	void release(int saved) {
+		savedBytes.add(-saved);
+	}
+
+	public long getCompressedCount() {
+		return compressedCount.get();
+	}
+
+	public long getIncompressibleCount() {
+		return incompressibleCount.get();
+	}
+
+	public long getDecompressedCount() {
+		return inflatedCount.get();
+	}
+
+	public long getSavedBytes() {
+		return savedBytes.get();
+	}
+
+	public long getCompressTimeMillis() {
+		return compressMicros.get() / 1000;
+	}
+
+	public long getDecompressTimeMillis() {
+		return decompressMicros.get() / 1000;
+	}
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Stages between the I/O threads and the proxy logic. The I/O threads (HTTP
+ * reactor, CoAP receive thread, client callbacks) only create the message
+ * context, which is passed through the stages:
+ * lookup (cache lookup and cache hits), translate (cache misses, requests to
+ * the origin and its responses) and egress (sending the responses).
+ * Each stage has its own threads and a bounded queue. A full queue rejects
+ * the context, the handler decides what happens then (e.g. an overload
+ * response), by default it runs on the submitting thread.
+ * Cache hits can be answered on the I/O thread without any queue.
+ * In the thread-per-request mode each context gets its own thread, which
+ * runs all stages inline and blocks until the origin server responds
+ * (see ProxyResponseFuture). The threads are pooled and have a small stack.
+ */
+public class ProxyPipeline {
+	static Logger logger = Logger.getLogger(Proxy.class);
+	public static final int DEFAULT_THREADS = 2;
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+	/* longer than any request timeout, a lost response does not block the thread forever */
+	static final long MAX_RESPONSE_WAIT_MS = 10 * 60 * 1000;
+	private static final long REQUEST_THREAD_STACK_SIZE = 256 * 1024;
+
+	private final ProxyMetrics metrics;
+	private final Stage lookup;
+	private final Stage translate;
+	private final Stage egress;
+	private volatile boolean inlineCacheHits = false;
+	/* threads of the thread-per-request mode, null in the staged mode */
+	private volatile ThreadPoolExecutor requestThreads = null;
+	private final AtomicInteger activeRequests = new AtomicInteger();
+	private final ProxyMetrics.Counter requestThreadRejectedCount;
+
+	public ProxyPipeline() {
+		this(new ProxyMetrics());
+	}
+
+	public ProxyPipeline(ProxyMetrics metrics) {
+		this.metrics = metrics;
+		lookup = new Stage("lookup", metrics);
+		translate = new Stage("translate", metrics);
+		egress = new Stage("egress", metrics);
+		requestThreadRejectedCount = metrics.counter("pipeline.request-threads.rejected");
+		configure(DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/* replaces the threads of all stages, queued contexts are still processed */
+	public synchronized void configure(int threads, int queueCapacity) {
+		if (threads <= 0 || queueCapacity <= 0) {
+			throw new IllegalArgumentException("threads and queue capacity must be positive");
+		}
+		lookup.configure(threads, queueCapacity);
+		translate.configure(threads, queueCapacity);
+		egress.configure(threads, queueCapacity);
+	}
+
+	public boolean isInlineCacheHits() {
+		return inlineCacheHits;
+	}
+
+	/* lookups run on the I/O thread, hits are also sent there */
+	public void setInlineCacheHits(boolean inlineCacheHits) {
+		this.inlineCacheHits = inlineCacheHits;
+	}
+
+	/* processes each context on its own thread, at most maxThreads at once, 0 returns to the staged mode */
+	public synchronized void setThreadPerRequest(int maxThreads) {
+		ThreadPoolExecutor old = requestThreads;
+		metrics.remove("pipeline.request-threads.active");
+		if (maxThreads <= 0) {
+			requestThreads = null;
+		} else {
+			final AtomicInteger threadCount = new AtomicInteger();
+			requestThreads = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(null, r, "proxy request " + threadCount.incrementAndGet(), REQUEST_THREAD_STACK_SIZE);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			metrics.gauge("pipeline.request-threads.active", new ProxyMetrics.Gauge() {
+				@Override
+				public long getValue() {
+					return activeRequests.get();
+				}
+			});
+		}
+		if (old != null) {
+			old.shutdown();
+		}
+	}
+
+	public boolean isThreadPerRequest() {
+		return requestThreads != null;
+	}
+
+	/* runs the lookup handler and the following stages on a thread of the context */
+	public void startRequest(final ProxyMessageContext context, final Handler lookupHandler) {
+		ThreadPoolExecutor executor = requestThreads;
+		if (executor == null) {
+			lookup.submit(context, lookupHandler);
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					processRequest(context, lookupHandler);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			requestThreadRejectedCount.increment();
+			lookupHandler.rejected(context);
+		}
+	}
+
+	private void processRequest(ProxyMessageContext context, Handler lookupHandler) {
+		ProxyResponseFuture future = new ProxyResponseFuture(Thread.currentThread());
+		context.setResponseFuture(future);
+		activeRequests.incrementAndGet();
+		try {
+			/* all submits of the context run inline, the request is sent at the end */
+			lookup.process(context, lookupHandler);
+			Handler response;
+			while ((response = future.await(MAX_RESPONSE_WAIT_MS)) != null) {
+				/* may send the request again (e.g. to the origin instead of a cluster peer) */
+				translate.process(context, response);
+			}
+		} catch (InterruptedException e) {
+			logger.warn("request thread interrupted");
+		} finally {
+			future.release();
+			activeRequests.decrementAndGet();
+		}
+	}
+
+	public Stage getLookupStage() {
+		return lookup;
+	}
+
+	public Stage getTranslateStage() {
+		return translate;
+	}
+
+	public Stage getEgressStage() {
+		return egress;
+	}
+
+	/* sends the response, inline if it is an inline cache hit */
+	public void egress(ProxyMessageContext context, Handler sender) {
+		if ((inlineCacheHits && context.isCached()) || isOwner(context)) {
+			sender.handle(context);
+		} else {
+			egress.submit(context, sender);
+		}
+	}
+
+	/* true if the calling thread is the thread of the context */
+	static boolean isOwner(ProxyMessageContext context) {
+		ProxyResponseFuture future = context == null ? null : context.getResponseFuture();
+		return future != null && future.isOwner();
+	}
+
+	public void shutdown() {
+		ThreadPoolExecutor executor = requestThreads;
+		if (executor != null) {
+			executor.shutdown();
+		}
+		lookup.shutdown();
+		translate.shutdown();
+		egress.shutdown();
+	}
+
+	public abstract static class Handler {
+		public abstract void handle(ProxyMessageContext context);
+
+		/* called on the submitting thread if the queue of the stage is full */
+		public void rejected(ProxyMessageContext context) {
+			handle(context);
+		}
+
+		/* called if handle throws, e.g. to answer the client with an error */
+		public void failed(ProxyMessageContext context, RuntimeException e) {
+		}
+	}
+
+	public static class Stage {
+		private final String name;
+		private volatile ThreadPoolExecutor executor = null;
+
+		/* statistics */
+		private final ProxyMetrics.Counter processedCount;
+		private final ProxyMetrics.Counter rejectedCount;
+		private final ProxyMetrics.Counter serviceMicros;
+
+		Stage(String name, ProxyMetrics metrics) {
+			this.name = name;
+			processedCount = metrics.counter("pipeline." + name + ".processed");
+			rejectedCount = metrics.counter("pipeline." + name + ".rejected");
+			serviceMicros = metrics.counter("pipeline." + name + ".service-us");
+			metrics.gauge("pipeline." + name + ".queued", new ProxyMetrics.Gauge() {
+				@Override
+				public long getValue() {
+					return getQueueDepth();
+				}
+			});
+			metrics.gauge("pipeline." + name + ".mean-service-us", new ProxyMetrics.Gauge() {
+				@Override
+				public long getValue() {
+					return getMeanServiceMicros();
+				}
+			});
+		}
+
+		synchronized void configure(int threads, int queueCapacity) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			ThreadPoolExecutor old = executor;
+			executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity),
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "proxy " + name + " " + threadCount.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			if (old != null) {
+				old.shutdown();
+			}
+		}
+
+		public void submit(final ProxyMessageContext context, final Handler handler) {
+			if (isOwner(context)) {
+				/* thread-per-request mode */
+				process(context, handler);
+				return;
+			}
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						process(context, handler);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				rejectedCount.increment();
+				handler.rejected(context);
+			}
+		}
+
+		/* runs the handler on the calling thread */
+		public void process(ProxyMessageContext context, Handler handler) {
+			long start = System.nanoTime();
+			try {
+				handler.handle(context);
+			} catch (RuntimeException e) {
+				logger.warn("pipeline stage " + name + " failed", e);
+				try {
+					handler.failed(context, e);
+				} catch (RuntimeException failure) {
+					logger.warn("pipeline stage " + name + " could not handle the failure", failure);
+				}
+			} finally {
+				processedCount.increment();
+				serviceMicros.add((System.nanoTime() - start) / 1000);
+			}
+		}
+
+		void shutdown() {
+			executor.shutdown();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getQueueDepth() {
+			return executor.getQueue().size();
+		}
+
+		public long getProcessedCount() {
+			return processedCount.get();
+		}
+
+		public long getRejectedCount() {
+			return rejectedCount.get();
+		}
+
+		public long getMeanServiceMicros() {
+			long processed = processedCount.get();
+			return processed == 0 ? 0 : serviceMicros.get() / processed;
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets per key (an origin server or a client address).
+ * Each bucket is a single theoretical arrival time (GCRA): a request takes
+ * one token by moving it one interval ahead, and it is rejected if this
+ * would be more than the burst ahead of now. Buckets are updated with CAS
+ * and need no lock.
+ * A bucket whose arrival time has passed is full and is the same as a new
+ * bucket, such idle buckets are removed when the table is full, at most once
+ * per SWEEP_INTERVAL_NS or token interval. Keys that still do not fit share one
+ * overflow bucket.
+ */
+public class ProxyRateLimiter {
+	public static final int DEFAULT_MAX_KEYS = 10000;
+	/* a full table of busy buckets is not scanned for every new key */
+	static final long SWEEP_INTERVAL_NS = 100 * 1000000L;
+
+	private final ConcurrentHashMap<Object, Bucket> buckets = new ConcurrentHashMap<Object, Bucket>();
+	private final Bucket overflow = new Bucket(System.nanoTime());
+	/* System.nanoTime of the next allowed sweep */
+	private final AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+	private final int maxKeys;
+	/* null disables the limiter */
+	private volatile Rate rate = null;
+
+	/* statistics */
+	private final ProxyMetrics.Counter rejectedCount;
+	private final ProxyMetrics.Counter evictedCount;
+	private final ProxyMetrics.Counter overflowCount;
+
+	/* name is the prefix of the metrics */
+	public ProxyRateLimiter(String name) {
+		this(name, DEFAULT_MAX_KEYS, new ProxyMetrics());
+	}
+
+	public ProxyRateLimiter(String name, ProxyMetrics metrics) {
+		this(name, DEFAULT_MAX_KEYS, metrics);
+	}
+
+	public ProxyRateLimiter(String name, int maxKeys, ProxyMetrics metrics) {
+		if (maxKeys <= 0) {
+			throw new IllegalArgumentException("table size must be positive");
+		}
+		this.maxKeys = maxKeys;
+		rejectedCount = metrics.counter(name + ".rejected");
+		evictedCount = metrics.counter(name + ".evicted");
+		overflowCount = metrics.counter(name + ".overflow");
+		metrics.gauge(name + ".keys", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return buckets.size();
+			}
+		});
+	}
+
+	public Rate getRate() {
+		return rate;
+	}
+
+	public void setRate(Rate rate) {
+		this.rate = rate;
+		if (rate == null) {
+			buckets.clear();
+		}
+	}
+
+	public boolean isDisabled() {
+		return rate == null;
+	}
+
+	/* takes a token of the key, returns false if the bucket is empty */
+	public boolean tryAcquire(Object key) {
+		Rate r = rate;
+		if (r == null) {
+			return true;
+		}
+		Bucket bucket = getBucket(key, r);
+		while (true) {
+			long now = System.nanoTime();
+			long tat = bucket.tat.get();
+			long next = (tat - now > 0 ? tat : now) + r.intervalNs;
+			if (next - now > r.burstNs) {
+				rejectedCount.increment();
+				return false;
+			}
+			if (bucket.tat.compareAndSet(tat, next)) {
+				return true;
+			}
+		}
+	}
+
+	/* seconds until the key gets the next token, at least 1 */
+	public int getRetryAfter(Object key) {
+		Rate r = rate;
+		Bucket bucket = buckets.get(key);
+		if (r == null || bucket == null) {
+			return 1;
+		}
+		long now = System.nanoTime();
+		long tat = bucket.tat.get();
+		long wait = (tat - now > 0 ? tat : now) + r.intervalNs - now - r.burstNs;
+		return (int) Math.max((wait + 999999999L) / 1000000000L, 1);
+	}
+
+	public int size() {
+		return buckets.size();
+	}
+
+	private Bucket getBucket(Object key, Rate r) {
+		Bucket bucket = buckets.get(key);
+		if (bucket != null) {
+			return bucket;
+		}
+		if (buckets.size() >= maxKeys) {
+			sweep(r);
+			if (buckets.size() >= maxKeys) {
+				overflowCount.increment();
+				return overflow;
+			}
+		}
+		Bucket created = new Bucket(System.nanoTime());
+		bucket = buckets.putIfAbsent(key, created);
+		return bucket != null ? bucket : created;
+	}
+
+	/* removes the full buckets, the thread that moves nextSweep sweeps */
+	private void sweep(Rate r) {
+		long now = System.nanoTime();
+		long next = nextSweep.get();
+		if (now - next < 0 || !nextSweep.compareAndSet(next, now + Math.max(r.intervalNs, SWEEP_INTERVAL_NS))) {
+			return;
+		}
+		Iterator<Map.Entry<Object, Bucket>> it = buckets.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Object, Bucket> entry = it.next();
+			if (entry.getValue().tat.get() - now <= 0 && buckets.remove(entry.getKey(), entry.getValue())) {
+				evictedCount.increment();
+			}
+		}
+	}
+
+	private static class Bucket {
+		/* theoretical arrival time of the next request (System.nanoTime) */
+		final AtomicLong tat;
+
+		Bucket(long now) {
+			tat = new AtomicLong(now);
+		}
+	}
+
+	/**
+	 * Requests per second and the number of requests that may be sent at once.
+	 */
+	public static class Rate {
+		private final double perSecond;
+		private final int burst;
+		private final long intervalNs;
+		private final long burstNs;
+
+		public Rate(double perSecond, int burst) {
+			if (!(perSecond > 0) || burst <= 0) {
+				throw new IllegalArgumentException("rate and burst must be positive");
+			}
+			this.perSecond = perSecond;
+			this.burst = burst;
+			this.intervalNs = Math.max((long) (1000000000L / perSecond), 1);
+			this.burstNs = intervalNs * burst;
+		}
+
+		/* "rate" or "rate/burst", the burst defaults to one second of requests;
+		 * returns null for a rate of 0 */
+		public static Rate parse(String value) {
+			int slash = value.indexOf('/');
+			double perSecond = Double.parseDouble((slash < 0 ? value : value.substring(0, slash)).trim());
+			if (perSecond == 0) {
+				return null;
+			}
+			int burst = slash < 0 ? (int) Math.max(Math.ceil(perSecond), 1) : Integer.parseInt(value.substring(slash + 1).trim());
+			return new Rate(perSecond, burst);
+		}
+
+		public double getPerSecond() {
+			return perSecond;
+		}
+
+		public int getBurst() {
+			return burst;
+		}
+
+		@Override
+		public String toString() {
+			return perSecond + "/s, burst " + burst;
+		}
+	}
+}
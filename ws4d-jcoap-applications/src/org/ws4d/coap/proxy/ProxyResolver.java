@@ -0,0 +1,467 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Resolves host names off the I/O threads.
+ * IP literals are parsed directly. Resolved and unknown hosts are cached
+ * for the positive and negative TTL. The Java resolver does not expose the
+ * TTL of a DNS record, so the TTLs of the JVM (networkaddress.cache.ttl and
+ * networkaddress.cache.negative.ttl) are used. The remaining host names are
+ * resolved by a small thread pool; requests for a host that is already being
+ * resolved wait for the same lookup.
+ * Callbacks run on the calling thread if the result is known, otherwise on
+ * a resolver thread.
+ */
+public class ProxyResolver {
+	static Logger logger = Logger.getLogger(Proxy.class);
+	public static final int DEFAULT_THREADS = 4;
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+	public static final long DEFAULT_TTL_MS = 30000;
+	public static final long DEFAULT_NEGATIVE_TTL_MS = 10000;
+	private static final int MAX_ENTRIES = 10000;
+
+	/* lower case host names */
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentHashMap<String, Lookup> pending = new ConcurrentHashMap<String, Lookup>();
+	private final ThreadPoolExecutor executor;
+	private volatile long ttlMs = securityTtl("networkaddress.cache.ttl", DEFAULT_TTL_MS);
+	private volatile long negativeTtlMs = securityTtl("networkaddress.cache.negative.ttl", DEFAULT_NEGATIVE_TTL_MS);
+
+	/* statistics */
+	private final ProxyMetrics.Counter literalCount;
+	private final ProxyMetrics.Counter hitCount;
+	private final ProxyMetrics.Counter negativeHitCount;
+	private final ProxyMetrics.Counter missCount;
+	private final ProxyMetrics.Counter joinedCount;
+	private final ProxyMetrics.Counter failureCount;
+	private final ProxyMetrics.Counter rejectedCount;
+	private final ProxyMetrics.Counter lookupMicros;
+
+	public ProxyResolver() {
+		this(DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY, new ProxyMetrics());
+	}
+
+	public ProxyResolver(ProxyMetrics metrics) {
+		this(DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY, metrics);
+	}
+
+	public ProxyResolver(int threads, int queueCapacity, ProxyMetrics metrics) {
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "proxy resolver " + threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		literalCount = metrics.counter("resolver.literals");
+		hitCount = metrics.counter("resolver.hits");
+		negativeHitCount = metrics.counter("resolver.negative-hits");
+		missCount = metrics.counter("resolver.misses");
+		joinedCount = metrics.counter("resolver.joined");
+		failureCount = metrics.counter("resolver.failures");
+		rejectedCount = metrics.counter("resolver.rejected");
+		lookupMicros = metrics.counter("resolver.lookup-us");
+		metrics.gauge("resolver.entries", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return entries.size();
+			}
+		});
+		metrics.gauge("resolver.pending", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return pending.size();
+			}
+		});
+		metrics.gauge("resolver.hit-ratio-percent", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return getHitRatioPercent();
+			}
+		});
+		metrics.gauge("resolver.mean-lookup-us", new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return getMeanLookupMicros();
+			}
+		});
+	}
+
+	/* a negative JVM TTL means forever, which is capped to the default */
+	private static long securityTtl(String property, long defaultMs) {
+		try {
+			String value = Security.getProperty(property);
+			if (value != null) {
+				long seconds = Long.parseLong(value.trim());
+				return seconds < 0 ? defaultMs : seconds * 1000;
+			}
+		} catch (NumberFormatException e) {
+			/* use the default */
+		} catch (SecurityException e) {
+			/* use the default */
+		}
+		return defaultMs;
+	}
+
+	public long getTtl() {
+		return ttlMs;
+	}
+
+	public long getNegativeTtl() {
+		return negativeTtlMs;
+	}
+
+	/* 0 disables caching of resolved or unknown hosts */
+	public void setTtl(long ttlMs, long negativeTtlMs) {
+		this.ttlMs = Math.max(ttlMs, 0);
+		this.negativeTtlMs = Math.max(negativeTtlMs, 0);
+		entries.clear();
+	}
+
+	public void resolve(String host, Callback callback) {
+		if (host == null) {
+			callback.failed(new UnknownHostException("no host"));
+			return;
+		}
+		if (isLiteral(host)) {
+			literalCount.increment();
+			InetAddress address;
+			try {
+				/* parses the literal, there is no lookup */
+				address = InetAddress.getByName(host);
+			} catch (UnknownHostException e) {
+				callback.failed(e);
+				return;
+			}
+			callback.resolved(address);
+			return;
+		}
+		if (looksLikeLiteral(host)) {
+			/* getByName would parse it in its own way (e.g. "10.1" or "999.1.1.1") */
+			failureCount.increment();
+			callback.failed(new UnknownHostException(host + ": invalid address literal"));
+			return;
+		}
+		final String name = host.toLowerCase(Locale.ENGLISH);
+		Entry entry = entries.get(name);
+		if (entry != null) {
+			if (entry.expires > System.currentTimeMillis()) {
+				if (entry.address != null) {
+					hitCount.increment();
+					callback.resolved(entry.address);
+				} else {
+					negativeHitCount.increment();
+					callback.failed(new UnknownHostException(host));
+				}
+				return;
+			}
+			entries.remove(name, entry);
+		}
+		Lookup lookup = new Lookup();
+		lookup.callbacks.add(callback);
+		Lookup running = pending.putIfAbsent(name, lookup);
+		if (running != null) {
+			if (running.join(callback)) {
+				joinedCount.increment();
+			}
+			return;
+		}
+		missCount.increment();
+		final Lookup started = lookup;
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					lookup(name, started);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejectedCount.increment();
+			pending.remove(name, started);
+			started.finish(null, new UnknownHostException(host + ": resolver overloaded"));
+		}
+	}
+
+	private void lookup(String name, Lookup lookup) {
+		long start = System.nanoTime();
+		InetAddress address = null;
+		UnknownHostException failure = null;
+		try {
+			address = InetAddress.getByName(name);
+		} catch (UnknownHostException e) {
+			failureCount.increment();
+			failure = e;
+		} catch (RuntimeException e) {
+			/* e.g., a SecurityException */
+			failureCount.increment();
+			failure = new UnknownHostException(name + ": " + e.getMessage());
+		}
+		lookupMicros.add((System.nanoTime() - start) / 1000);
+		long ttl = address != null ? ttlMs : negativeTtlMs;
+		if (ttl > 0) {
+			put(name, new Entry(address, System.currentTimeMillis() + ttl));
+		}
+		/* the entry is visible before the lookup is removed, so no request starts a second lookup */
+		pending.remove(name, lookup);
+		lookup.finish(address, failure);
+	}
+
+	private void put(String name, Entry entry) {
+		if (entries.size() >= MAX_ENTRIES && !entries.containsKey(name)) {
+			removeExpired();
+			if (entries.size() >= MAX_ENTRIES) {
+				return;
+			}
+		}
+		entries.put(name, entry);
+	}
+
+	private void removeExpired() {
+		long now = System.currentTimeMillis();
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().expires <= now) {
+				it.remove();
+			}
+		}
+	}
+
+	/* dotted IPv4 address or IPv6 address (with or without brackets) */
+	static boolean isLiteral(String host) {
+		if (host.startsWith("[") && host.endsWith("]")) {
+			return isIPv6Literal(host, 1, host.length() - 1);
+		}
+		return isIPv4Literal(host, 0, host.length()) || isIPv6Literal(host, 0, host.length());
+	}
+
+	/* only digits and dots or a colon, no valid host name */
+	static boolean looksLikeLiteral(String host) {
+		if (host.indexOf(':') >= 0 || host.startsWith("[")) {
+			return true;
+		}
+		for (int i = 0; i < host.length(); i++) {
+			char c = host.charAt(i);
+			if (c != '.' && (c < '0' || c > '9')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* four decimal octets of at most 255 */
+	private static boolean isIPv4Literal(String host, int start, int end) {
+		int octets = 0;
+		int digits = 0;
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			char c = host.charAt(i);
+			if (c == '.') {
+				if (digits == 0 || ++octets > 3) {
+					return false;
+				}
+				digits = 0;
+				value = 0;
+			} else if (c >= '0' && c <= '9' && digits < 3) {
+				value = value * 10 + (c - '0');
+				if (value > 255) {
+					return false;
+				}
+				digits++;
+			} else {
+				return false;
+			}
+		}
+		return octets == 3 && digits > 0;
+	}
+
+	/* eight groups of hex digits, "::" replaces one or more zero groups, the last two
+	 * groups can be an IPv4 address, a zone can follow after '%' */
+	private static boolean isIPv6Literal(String host, int start, int end) {
+		int zone = host.indexOf('%', start);
+		if (zone >= 0 && zone < end) {
+			if (zone == end - 1) {
+				return false;
+			}
+			for (int i = zone + 1; i < end; i++) {
+				char c = host.charAt(i);
+				if (!Character.isLetterOrDigit(c) && c != '.' && c != '_' && c != '-') {
+					return false;
+				}
+			}
+			end = zone;
+		}
+		if (end - start < 2) {
+			return false;
+		}
+		int groups = 0;
+		boolean compressed = false;
+		int i = start;
+		if (host.startsWith("::", i)) {
+			compressed = true;
+			i += 2;
+		} else if (host.charAt(i) == ':') {
+			return false;
+		}
+		while (i < end) {
+			int groupEnd = i;
+			while (groupEnd < end && host.charAt(groupEnd) != ':') {
+				groupEnd++;
+			}
+			if (groupEnd == end && host.indexOf('.', i) >= 0 && host.indexOf('.', i) < end) {
+				/* embedded IPv4 address as the last two groups */
+				if (!isIPv4Literal(host, i, end)) {
+					return false;
+				}
+				groups += 2;
+				break;
+			}
+			if (groupEnd == i || groupEnd - i > 4) {
+				return false;
+			}
+			for (int j = i; j < groupEnd; j++) {
+				if (Character.digit(host.charAt(j), 16) < 0) {
+					return false;
+				}
+			}
+			groups++;
+			if (groupEnd == end) {
+				break;
+			}
+			/* skip the colon, a second one compresses zero groups */
+			i = groupEnd + 1;
+			if (i < end && host.charAt(i) == ':') {
+				if (compressed) {
+					return false;
+				}
+				compressed = true;
+				i++;
+			} else if (i == end) {
+				/* trailing single colon */
+				return false;
+			}
+		}
+		return compressed ? groups < 8 : groups == 8;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHitRatioPercent() {
+		long hits = hitCount.get() + negativeHitCount.get() + joinedCount.get();
+		long total = hits + missCount.get();
+		return total == 0 ? 0 : hits * 100 / total;
+	}
+
+	public long getMeanLookupMicros() {
+		long lookups = missCount.get() - rejectedCount.get();
+		return lookups <= 0 ? 0 : lookupMicros.get() / lookups;
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Receives the result of a resolution.
+	 */
+	public interface Callback {
+		void resolved(InetAddress address);
+
+		void failed(UnknownHostException e);
+	}
+
+	private static class Entry {
+		/* null for an unknown host */
+		final InetAddress address;
+		final long expires;
+
+		Entry(InetAddress address, long expires) {
+			this.address = address;
+			this.expires = expires;
+		}
+	}
+
+	private static class Lookup {
+		/* guarded by the lookup */
+		final List<Callback> callbacks = new ArrayList<Callback>(1);
+		boolean done = false;
+		InetAddress address;
+		UnknownHostException failure;
+
+		/* returns false if the lookup is already finished and the callback was run */
+		boolean join(Callback callback) {
+			synchronized (this) {
+				if (!done) {
+					callbacks.add(callback);
+					return true;
+				}
+			}
+			deliver(callback, address, failure);
+			return false;
+		}
+
+		void finish(InetAddress address, UnknownHostException failure) {
+			List<Callback> waiting;
+			synchronized (this) {
+				this.address = address;
+				this.failure = failure;
+				done = true;
+				waiting = new ArrayList<Callback>(callbacks);
+				callbacks.clear();
+			}
+			for (Callback callback : waiting) {
+				try {
+					deliver(callback, address, failure);
+				} catch (RuntimeException e) {
+					logger.warn("resolver callback failed: " + e.getMessage());
+				}
+			}
+		}
+
+		private static void deliver(Callback callback, InetAddress address, UnknownHostException failure) {
+			if (address != null) {
+				callback.resolved(address);
+			} else {
+				callback.failed(failure);
+			}
+		}
+	}
+}
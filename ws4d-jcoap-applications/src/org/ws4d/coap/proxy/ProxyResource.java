@@ -1,5 +1,9 @@
 package org.ws4d.coap.proxy;
 
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.log4j.Logger;
 import org.ws4d.coap.messages.CoapMediaType;
 import org.ws4d.coap.rest.BasicCoapResource;
@@ -8,6 +12,28 @@ public class ProxyResource extends BasicCoapResource {
 	static Logger logger = Logger.getLogger(Proxy.class);
 	
 	private ProxyResourceKey key = null;
+	/* ETag of the origin server, used to validate the resource when it is expired */
+	private byte[] etag = null;
+	/* uri of the origin request, the scheme tells if the origin is a CoAP or HTTP server */
+	private URI originUri = null;
+	/* time when the resource was received, used to calculate the access rate */
+	private volatile long cachedTime = 0;
+	/* time when a hot resource should be refreshed ahead of expiry, -1 for never */
+	private volatile long refreshTime = -1;
+	private final AtomicInteger accessCount = new AtomicInteger();
+	/* true while a background refresh is pending */
+	private final AtomicBoolean refreshing = new AtomicBoolean(false);
+	/* payload in off-heap memory, null if the payload is on the heap */
+	private volatile ProxySlabAllocator.SlabHandle payloadHandle = null;
+	private ProxySlabAllocator allocator = null;
+	/* set if the stored payload is deflated */
+	private volatile ProxyPayloadCompressor compressor = null;
+	private int uncompressedLength = 0;
+	/* set when the resource is removed from the cache */
+	private final AtomicBoolean discarded = new AtomicBoolean(false);
+	private ProxyTimerWheel.Timeout expiryTimeout = null;
+	/* built on the first cache hit */
+	private volatile ProxyResponseTemplate responseTemplate = null;
 	
 
 	public ProxyResource(String path, byte[] value, CoapMediaType mediaType) {
@@ -15,6 +41,130 @@ public class ProxyResource extends BasicCoapResource {
 		
 	}
 	
+	/* returns null if the off-heap payload was released and its memory reused,
+	 * a compressed payload is inflated on each call */
+	@Override
+	public byte[] getValue() {
+		byte[] value = getStoredValue();
+		ProxyPayloadCompressor c = compressor;
+		if (c != null && value != null) {
+			return c.decompress(value, uncompressedLength);
+		}
+		return value;
+	}
+
+	/* the payload as stored in the cache, deflated if isCompressed() */
+	public byte[] getStoredValue() {
+		ProxySlabAllocator.SlabHandle handle = payloadHandle;
+		if (handle != null) {
+			return allocator.read(handle);
+		}
+		return super.getValue();
+	}
+
+	/* length of the uncompressed payload */
+	public int getPayloadLength() {
+		if (compressor != null) {
+			return uncompressedLength;
+		}
+		return getStoredLength();
+	}
+
+	/* length of the payload in the cache */
+	public int getStoredLength() {
+		ProxySlabAllocator.SlabHandle handle = payloadHandle;
+		if (handle != null) {
+			return handle.getLength();
+		}
+		byte[] value = super.getValue();
+		return value == null ? 0 : value.length;
+	}
+
+	/* compresses the payload before it is cached, returns false if it stays uncompressed */
+	public synchronized boolean compress(ProxyPayloadCompressor compressor) {
+		if (payloadHandle != null || this.compressor != null) {
+			return false;
+		}
+		byte[] value = super.getValue();
+		byte[] compressed = compressor.compress(value);
+		if (compressed == null) {
+			return false;
+		}
+		this.uncompressedLength = value.length;
+		setValue(compressed);
+		this.compressor = compressor;
+		this.responseTemplate = null;
+		return true;
+	}
+
+	public boolean isCompressed() {
+		return compressor != null;
+	}
+
+	/* moves the payload to off-heap memory, returns false if it stays on the heap */
+	public synchronized boolean moveOffHeap(ProxySlabAllocator allocator) {
+		byte[] value = super.getValue();
+		if (payloadHandle != null || value == null || value.length == 0) {
+			return false;
+		}
+		ProxySlabAllocator.SlabHandle handle = allocator.store(value);
+		if (handle == null) {
+			return false;
+		}
+		this.allocator = allocator;
+		this.payloadHandle = handle;
+		this.responseTemplate = null;
+		setValue(null);
+		return true;
+	}
+
+	public boolean isOffHeap() {
+		return payloadHandle != null;
+	}
+
+	/* called when the resource is removed from the cache:
+	 * cancels the expiry, the off-heap memory is reused later */
+	public void discard() {
+		if (!discarded.compareAndSet(false, true)) {
+			return;
+		}
+		setExpiryTimeout(null);
+		ProxyPayloadCompressor c = compressor;
+		if (c != null) {
+			c.release(uncompressedLength - getStoredLength());
+		}
+		ProxySlabAllocator.SlabHandle handle = payloadHandle;
+		if (handle != null) {
+			allocator.free(handle);
+		}
+	}
+
+	/* replaces the scheduled expiry */
+	public void setExpiryTimeout(ProxyTimerWheel.Timeout timeout) {
+		ProxyTimerWheel.Timeout old;
+		synchronized (this) {
+			old = expiryTimeout;
+			expiryTimeout = discarded.get() ? null : timeout;
+		}
+		if (old != null) {
+			old.cancel();
+		}
+		if (timeout != null && discarded.get()) {
+			/* removed in the meantime */
+			timeout.cancel();
+		}
+	}
+
+	public ProxyResponseTemplate getResponseTemplate() {
+		ProxyResponseTemplate template = responseTemplate;
+		if (template == null) {
+			/* concurrent hits may build equal templates, one of them is kept */
+			template = new ProxyResponseTemplate(this);
+			responseTemplate = template;
+		}
+		return template;
+	}
+
 	public ProxyResourceKey getKey() {
 		return key;
 	}
@@ -22,4 +172,61 @@ public class ProxyResource extends BasicCoapResource {
 	public void setKey(ProxyResourceKey key) {
 		this.key = key;
 	}
+
+	public byte[] getETag() {
+		return etag;
+	}
+
+	public void setETag(byte[] etag) {
+		this.etag = etag;
+		this.responseTemplate = null;
+	}
+
+	public URI getOriginUri() {
+		return originUri;
+	}
+
+	public void setOriginUri(URI originUri) {
+		this.originUri = originUri;
+	}
+
+	public boolean isHttpOrigin() {
+		return originUri != null && "http".equalsIgnoreCase(originUri.getScheme());
+	}
+
+	public long getCachedTime() {
+		return cachedTime;
+	}
+
+	public void setCachedTime(long cachedTime) {
+		this.cachedTime = cachedTime;
+		accessCount.set(0);
+	}
+
+	public long getRefreshTime() {
+		return refreshTime;
+	}
+
+	public void setRefreshTime(long refreshTime) {
+		this.refreshTime = refreshTime;
+	}
+
+	public void recordAccess() {
+		accessCount.incrementAndGet();
+	}
+
+	/* accesses per second since the resource was cached */
+	public double getAccessRate(long now) {
+		long age = Math.max(now - cachedTime, 1);
+		return accessCount.get() * 1000.0 / age;
+	}
+
+	/* returns true if the caller has to refresh the resource */
+	public boolean startRefresh() {
+		return refreshing.compareAndSet(false, true);
+	}
+
+	public void finishRefresh() {
+		refreshing.set(false);
+	}
 }
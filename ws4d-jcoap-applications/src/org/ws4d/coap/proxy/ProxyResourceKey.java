@@ -1,18 +1,31 @@
 package org.ws4d.coap.proxy;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import org.ws4d.coap.messages.CoapMediaType;
 
 public class ProxyResourceKey {
 	/* these variables are unique for one resource */
 	private InetAddress inetAddr;
 	private int port;
 	private String path;
+	/* these variables select a variant of the resource, null if not used */
+	private String query;
+	private String accept;
 	
 	public ProxyResourceKey(InetAddress inetAddr, int port, String path) {
+		this(inetAddr, port, path, null, null);
+	}
+	
+	public ProxyResourceKey(InetAddress inetAddr, int port, String path, String query, String accept) {
 		super();
 		this.inetAddr = inetAddr;
 		this.port = port;
 		this.path = path;
+		this.query = query;
+		this.accept = accept;
 	}
 	
 	/* hide default constructor */
@@ -20,6 +33,58 @@ public class ProxyResourceKey {
 		
 	}
 	
+	public InetAddress getInetAddr() {
+		return inetAddr;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	public String getAccept() {
+		return accept;
+	}
+
+	public boolean isVariant() {
+		return query != null || accept != null;
+	}
+
+	/* the origin server, used for the per-origin quotas */
+	public InetSocketAddress getOrigin() {
+		return new InetSocketAddress(inetAddr, port);
+	}
+
+	/* key of the resource without query and accept, used to find all variants */
+	public ProxyResourceKey getPathKey() {
+		if (!isVariant()) {
+			return this;
+		}
+		return new ProxyResourceKey(inetAddr, port, path);
+	}
+
+	/* builds the accept part of the key from the requested media types, e.g. "41,50" */
+	public static String acceptVariant(List<CoapMediaType> mediaTypes) {
+		if (mediaTypes == null || mediaTypes.isEmpty()) {
+			return null;
+		}
+		StringBuilder accept = new StringBuilder();
+		for (CoapMediaType mediaType : mediaTypes) {
+			if (accept.length() > 0) {
+				accept.append(',');
+			}
+			accept.append(mediaType.getValue());
+		}
+		return accept.toString();
+	}
+	
 	//----------------GENERATED BY ECLIPSE---------------------------------
 	@Override
 	public int hashCode() {
@@ -29,6 +94,8 @@ public class ProxyResourceKey {
 				+ ((inetAddr == null) ? 0 : inetAddr.hashCode());
 		result = prime * result + ((path == null) ? 0 : path.hashCode());
 		result = prime * result + port;
+		result = prime * result + ((query == null) ? 0 : query.hashCode());
+		result = prime * result + ((accept == null) ? 0 : accept.hashCode());
 		return result;
 	}
 	@Override
@@ -52,6 +119,16 @@ public class ProxyResourceKey {
 			return false;
 		if (port != other.port)
 			return false;
+		if (query == null) {
+			if (other.query != null)
+				return false;
+		} else if (!query.equals(other.query))
+			return false;
+		if (accept == null) {
+			if (other.accept != null)
+				return false;
+		} else if (!accept.equals(other.accept))
+			return false;
 		return true;
 	}
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+/**
+ * Lets the thread of a request wait for the response of the origin server
+ * instead of returning to a callback. The CoAP and HTTP clients arm the
+ * future when they send a request of the context, the response callback
+ * hands the response handler to the waiting thread.
+ * A response that arrives after the thread gave up is not taken, the
+ * callback processes it as without a waiting thread.
+ */
+public class ProxyResponseFuture {
+	/* the thread that processes the context, null when it finished */
+	private Thread owner;
+	private boolean armed = false;
+	private ProxyPipeline.Handler response = null;
+
+	public ProxyResponseFuture(Thread owner) {
+		this.owner = owner;
+	}
+
+	/* true if the calling thread processes the context */
+	public synchronized boolean isOwner() {
+		return owner == Thread.currentThread();
+	}
+
+	/* called before a request of the context is sent */
+	public synchronized void arm() {
+		if (owner != null) {
+			armed = true;
+			response = null;
+		}
+	}
+
+	/* the request was not sent, a waiting thread returns */
+	public synchronized void disarm() {
+		armed = false;
+		notifyAll();
+	}
+
+	/* returns false if no thread waits for the response */
+	public synchronized boolean complete(ProxyPipeline.Handler handler) {
+		if (!armed || response != null) {
+			return false;
+		}
+		response = handler;
+		notifyAll();
+		return true;
+	}
+
+	/* waits for the response of the last sent request, returns its handler,
+	 * null if no request is pending or the timeout passed */
+	public synchronized ProxyPipeline.Handler await(long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (armed && response == null) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				break;
+			}
+			wait(remaining);
+		}
+		ProxyPipeline.Handler handler = response;
+		armed = false;
+		response = null;
+		return handler;
+	}
+
+	/* the thread finished, later responses are processed by the callbacks */
+	public synchronized void release() {
+		owner = null;
+		armed = false;
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import java.util.Date;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.ws4d.coap.messages.CoapMediaType;
+
+/**
+ * Ready-to-send parts of the responses for a cached resource.
+ * The template is built on the first cache hit and shared by all following
+ * hits, which only add the per-request fields (Date, Expires, Max-Age).
+ * All parts are immutable, a resource that changes gets a new template.
+ */
+public class ProxyResponseTemplate {
+	static final StatusLine HTTP_OK = new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+	static final Header HTTP_STALE_WARNING = new BasicHeader("Warning", "110 - \"Response is Stale\"");
+	/* appended to the ETag of the deflated representation, it is a different entity */
+	static final String DEFLATE_ETAG_SUFFIX = "-deflate";
+
+	/* date header of the current second, shared by all responses */
+	private static volatile DateHeader currentDate = new DateHeader(0, null);
+
+	/* null if the payload is off-heap or compressed and has to be copied
+	 * or inflated for each response */
+	private final byte[] payload;
+	private final CoapMediaType mediaType;
+	private final byte[] etag;
+	/* Content-Type, Content-Length and Etag */
+	private final Header[] httpHeaders;
+	/* headers of the deflated payload, null if the payload is not compressed */
+	private final Header[] deflateHttpHeaders;
+	private volatile DateHeader expiresHeader = new DateHeader(Long.MIN_VALUE, null);
+
+	public ProxyResponseTemplate(ProxyResource resource) {
+		this.payload = resource.isOffHeap() || resource.isCompressed() ? null : resource.getValue();
+		this.mediaType = resource.getCoapMediaType();
+		this.etag = resource.getETag();
+		Header contentType = new BasicHeader("Content-Type", ProxyMapper.coapMediaType2httpContentType(mediaType));
+		Header contentLength = new BasicHeader("Content-length", Integer.toString(resource.getPayloadLength()));
+		Header etagHeader = etag == null ? null : new BasicHeader("Etag", new String(etag));
+		if (resource.isCompressed()) {
+			/* caches in front of the proxy have to keep both encodings apart */
+			Header vary = new BasicHeader("Vary", "Accept-Encoding");
+			httpHeaders = headers(contentType, contentLength, vary, etagHeader);
+			deflateHttpHeaders = headers(contentType, new BasicHeader("Content-length", Integer.toString(resource.getStoredLength())),
+					vary, new BasicHeader("Content-Encoding", "deflate"),
+					etag == null ? null : new BasicHeader("Etag", new String(etag) + DEFLATE_ETAG_SUFFIX));
+		} else {
+			httpHeaders = headers(contentType, contentLength, etagHeader);
+			deflateHttpHeaders = null;
+		}
+	}
+
+	/* the last header is left out if it is null */
+	private static Header[] headers(Header... headers) {
+		if (headers[headers.length - 1] != null) {
+			return headers;
+		}
+		Header[] result = new Header[headers.length - 1];
+		System.arraycopy(headers, 0, result, 0, result.length);
+		return result;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	public CoapMediaType getMediaType() {
+		return mediaType;
+	}
+
+	public byte[] getETag() {
+		return etag;
+	}
+
+	public Header[] getHttpHeaders() {
+		return httpHeaders;
+	}
+
+	public Header[] getDeflateHttpHeaders() {
+		return deflateHttpHeaders;
+	}
+
+	/* Expires header, formatted again only if the resource was validated */
+	public Header getExpiresHeader(long expires) {
+		DateHeader header = expiresHeader;
+		if (header.time != expires) {
+			header = new DateHeader(expires, new BasicHeader("Expires", ProxyMapper.formatDate(new Date(expires))));
+			expiresHeader = header;
+		}
+		return header.header;
+	}
+
+	public static Header getDateHeader(long now) {
+		long second = now / 1000;
+		DateHeader header = currentDate;
+		if (header.time != second) {
+			header = new DateHeader(second, new BasicHeader("Date", ProxyMapper.formatDate(new Date(second * 1000))));
+			currentDate = header;
+		}
+		return header.header;
+	}
+
+	private static class DateHeader {
+		final long time;
+		final Header header;
+
+		DateHeader(long time, Header header) {
+			this.time = time;
+			this.header = header;
+		}
+	}
+}
@@ -1,5 +1,9 @@
 package org.ws4d.coap.proxy;
 
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import org.apache.log4j.Logger;
@@ -11,19 +15,27 @@ public class ProxyRestInterface {
 	static Logger logger = Logger.getLogger(Proxy.class);
 	private CoapResourceServer resourceServer;
 	
+	static final int DEFAULT_PORT = 5684;
+	
 	public void start(){
+		start(DEFAULT_PORT);
+	}
+	
+	public void start(int port){
 	    if (resourceServer != null)
 		    resourceServer.stop();
 		resourceServer = new CoapResourceServer();
 		resourceServer.createResource(new ProxyStatisticResource());
 		try {
-			resourceServer.start(5684);
+			resourceServer.start(port);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 	
 	public class ProxyStatisticResource extends BasicCoapResource{
+		/* the origins with the largest cache usage are listed */
+		private static final int MAX_LISTED_ORIGINS = 10;
 		
 	    private ProxyStatisticResource(String path, byte[] value, CoapMediaType mediaType) {
 			super(path, value, mediaType);
@@ -36,10 +48,26 @@ public class ProxyRestInterface {
 		@Override
 		public byte[] getValue(Vector<String> query) {
 			StringBuilder val = new StringBuilder();
-			ProxyMapper.getInstance().getCoapRequestCount();
-			val.append("Number of HTTP Requests: " + ProxyMapper.getInstance().getHttpRequestCount() + "\n");
-			val.append("Number of CoAP Requests: " + ProxyMapper.getInstance().getCoapRequestCount()  + "\n");
-			val.append("Number of Reqeusts served from cache: " + ProxyMapper.getInstance().getServedFromCacheCount() + "\n");
+			/* counters and gauges of all components */
+			for (Map.Entry<String, Long> metric : ProxyMapper.getInstance().getMetrics().snapshot().entrySet()) {
+				val.append(metric.getKey() + ": " + metric.getValue() + "\n");
+			}
+			ProxyCache cache = ProxyMapper.getInstance().getCache();
+			val.append("Cache time policy: " + cache.getTimePolicy() + " (path rules: " + cache.getTimePolicyRules() + ")\n");
+			ProxyCacheStore store = cache.getStore();
+			List<ProxyCacheStore.OriginUsage> origins = store.getOriginUsage();
+			Collections.sort(origins, new Comparator<ProxyCacheStore.OriginUsage>() {
+				@Override
+				public int compare(ProxyCacheStore.OriginUsage a, ProxyCacheStore.OriginUsage b) {
+					return Long.compare(b.getBytes(), a.getBytes());
+				}
+			});
+			val.append("Largest origins:\n");
+			for (ProxyCacheStore.OriginUsage usage : origins.subList(0, Math.min(origins.size(), MAX_LISTED_ORIGINS))) {
+				long quota = store.getOriginQuota(usage.getOrigin());
+				val.append("  " + usage.getOrigin() + ": " + usage.getEntryCount() + " entries, " + usage.getBytes() + (quota > 0 ? " of " + quota : "") + " bytes, hits: "
+						+ usage.getHitCount() + ", evictions: " + usage.getEvictionCount() + ", rejected: " + usage.getRejectionCount() + "\n");
+			}
 			return val.toString().getBytes();
 		}
 	}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Smoothed round trip time and its variance per origin server, computed as
+ * for the retransmission timeout of TCP (RFC 6298) from the request and
+ * response times of the exchanges.
+ * The adaptive cache time policy uses the estimate to bound the time the
+ * origin created a response: the delay from the origin to the proxy is
+ * assumed to be half the smoothed RTT plus four times the variance, so a
+ * response is rather taken as older than it is.
+ */
+public class ProxyRttEstimator {
+	private static final int MAX_ORIGINS = 10000;
+	/* samples of an origin before its estimate is used */
+	static final int MIN_SAMPLES = 3;
+	private static final int VARIANCE_FACTOR = 4;
+
+	private final ConcurrentHashMap<InetSocketAddress, Estimate> estimates = new ConcurrentHashMap<InetSocketAddress, Estimate>();
+
+	/* statistics */
+	private final ProxyMetrics.Counter sampleCount;
+
+	public ProxyRttEstimator() {
+		this(new ProxyMetrics());
+	}
+
+	public ProxyRttEstimator(ProxyMetrics metrics) {
+		sampleCount = metrics.counter("cache.rtt.samples");
+	}
+
+	public void sample(InetSocketAddress origin, long rtt) {
+		if (origin == null || rtt < 0) {
+			return;
+		}
+		Estimate estimate = estimates.get(origin);
+		if (estimate == null) {
+			if (estimates.size() >= MAX_ORIGINS) {
+				return;
+			}
+			Estimate created = new Estimate();
+			estimate = estimates.putIfAbsent(origin, created);
+			if (estimate == null) {
+				estimate = created;
+			}
+		}
+		estimate.update(rtt);
+		sampleCount.increment();
+	}
+
+	/* conservative delay from the origin to the proxy in ms, -1 if there are too few samples */
+	public long getDelay(InetSocketAddress origin) {
+		Estimate estimate = origin == null ? null : estimates.get(origin);
+		if (estimate == null) {
+			return -1;
+		}
+		return estimate.getDelay();
+	}
+
+	public Estimate get(InetSocketAddress origin) {
+		return estimates.get(origin);
+	}
+
+	public int size() {
+		return estimates.size();
+	}
+
+	public long getSampleCount() {
+		return sampleCount.get();
+	}
+
+	public static class Estimate {
+		/* guarded by this */
+		private double srtt = 0;
+		private double rttvar = 0;
+		private long samples = 0;
+
+		synchronized void update(long rtt) {
+			if (samples == 0) {
+				srtt = rtt;
+				rttvar = rtt / 2.0;
+			} else {
+				/* beta = 1/4, alpha = 1/8 */
+				rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+				srtt = 0.875 * srtt + 0.125 * rtt;
+			}
+			samples++;
+		}
+
+		synchronized long getDelay() {
+			if (samples < MIN_SAMPLES) {
+				return -1;
+			}
+			return (long) Math.ceil(srtt / 2 + VARIANCE_FACTOR * rttvar);
+		}
+
+		public synchronized long getSmoothedRtt() {
+			return Math.round(srtt);
+		}
+
+		public synchronized long getRttVariance() {
+			return Math.round(rttvar);
+		}
+
+		public synchronized long getSampleCount() {
+			return samples;
+		}
+	}
+}
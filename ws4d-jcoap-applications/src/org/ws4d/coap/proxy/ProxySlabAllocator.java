@@ -0,0 +1,368 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocator for cached payloads in off-heap memory.
+ * Memory is reserved in slabs of direct buffers. The slab size is a fraction
+ * of the budget, so every size class can get slabs. A slab is split into
+ * chunks of one size class. A slab whose chunks are all free is returned
+ * to the allocator and can be split again for another size class.
+ * A freed chunk (or an empty slab) is reused only after REUSE_DELAY_MS, so
+ * readers that got a handle shortly before the entry was evicted can still
+ * copy the payload. Every chunk has a generation that is incremented when the
+ * chunk is reused, and every split of a slab has its own layout; readers
+ * holding a handle of an older generation or layout get null.
+ */
+public class ProxySlabAllocator {
+	public static final int DEFAULT_SLAB_SIZE = 64 * 1024;
+	/* the budget is split into at least this many slabs */
+	private static final int MIN_SLABS = 16;
+	private static final int MIN_SLAB_SIZE = 4 * 1024;
+	private static final int MIN_CHUNK_SIZE = 64;
+	private static final double GROWTH_FACTOR = 1.25;
+	static final long REUSE_DELAY_MS = 1000;
+
+	private final int slabSize;
+	private final int maxSlabs;
+	private final int[] chunkSizes;
+	private final SizeClass[] sizeClasses;
+	/* guarded by itself */
+	private final List<Slab> slabs = new ArrayList<Slab>();
+	/* slabs that became empty, oldest first, guarded by slabs */
+	private final ArrayDeque<Slab> emptySlabs = new ArrayDeque<Slab>();
+
+	/* statistics */
+	private final AtomicLong usedBytes = new AtomicLong();
+	private final AtomicLong chunkBytes = new AtomicLong();
+	private final ProxyMetrics.Counter failedAllocations;
+	private final ProxyMetrics.Counter reclaimedSlabs;
+
+	public ProxySlabAllocator(long maxBytes) {
+		this(maxBytes, slabSizeFor(maxBytes), new ProxyMetrics());
+	}
+
+	public ProxySlabAllocator(long maxBytes, ProxyMetrics metrics) {
+		this(maxBytes, slabSizeFor(maxBytes), metrics);
+	}
+
+	public ProxySlabAllocator(long maxBytes, int slabSize) {
+		this(maxBytes, slabSize, new ProxyMetrics());
+	}
+
+	public ProxySlabAllocator(long maxBytes, int slabSize, ProxyMetrics metrics) {
+		if (slabSize < MIN_CHUNK_SIZE) {
+			throw new IllegalArgumentException("slab size must be at least " + MIN_CHUNK_SIZE);
+		}
+		failedAllocations = metrics.counter("cache.offheap.failed-allocations");
+		reclaimedSlabs = metrics.counter("cache.offheap.reclaimed-slabs");
+		this.slabSize = slabSize;
+		this.maxSlabs = (int) Math.max(1, Math.min(maxBytes / slabSize, Integer.MAX_VALUE));
+		List<Integer> sizes = new ArrayList<Integer>();
+		int size = MIN_CHUNK_SIZE;
+		while (size < slabSize) {
+			sizes.add(size);
+			/* align to 8 bytes */
+			size = (((int) (size * GROWTH_FACTOR)) + 7) & ~7;
+		}
+		sizes.add(slabSize);
+		chunkSizes = new int[sizes.size()];
+		sizeClasses = new SizeClass[sizes.size()];
+		for (int i = 0; i < chunkSizes.length; i++) {
+			chunkSizes[i] = sizes.get(i);
+			sizeClasses[i] = new SizeClass(chunkSizes[i]);
+		}
+	}
+
+	/* largest power of two that splits the budget into MIN_SLABS slabs, at most DEFAULT_SLAB_SIZE */
+	static int slabSizeFor(long maxBytes) {
+		int size = DEFAULT_SLAB_SIZE;
+		while (size > MIN_SLAB_SIZE && (long) size * MIN_SLABS > maxBytes) {
+			size >>= 1;
+		}
+		return size;
+	}
+
+	/* copies the payload to off-heap memory, returns null if there is no free memory
+	 * or the payload is larger than a slab */
+	public SlabHandle store(byte[] payload) {
+		int sizeClass = sizeClassOf(payload.length);
+		if (sizeClass < 0) {
+			failedAllocations.increment();
+			return null;
+		}
+		SlabHandle handle = sizeClasses[sizeClass].allocate(payload.length);
+		if (handle == null) {
+			failedAllocations.increment();
+			return null;
+		}
+		ByteBuffer buffer = handle.slab.buffer.duplicate();
+		buffer.position(handle.offset);
+		buffer.put(payload);
+		usedBytes.addAndGet(payload.length);
+		chunkBytes.addAndGet(chunkSizes[sizeClass]);
+		return handle;
+	}
+
+	/* returns null if the chunk was reused for another payload */
+	public byte[] read(SlabHandle handle) {
+		if (!handle.isValid()) {
+			return null;
+		}
+		byte[] payload = new byte[handle.length];
+		ByteBuffer buffer = handle.slab.buffer.duplicate();
+		buffer.position(handle.offset);
+		buffer.get(payload);
+		if (!handle.isValid()) {
+			return null;
+		}
+		return payload;
+	}
+
+	public void free(SlabHandle handle) {
+		int sizeClass = sizeClassOf(handle.length);
+		usedBytes.addAndGet(-handle.length);
+		chunkBytes.addAndGet(-chunkSizes[sizeClass]);
+		sizeClasses[sizeClass].free(handle);
+	}
+
+	private int sizeClassOf(int length) {
+		for (int i = 0; i < chunkSizes.length; i++) {
+			if (length <= chunkSizes[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/* reserves a new or an empty slab for the chunk size, returns null if all slabs are in use */
+	private Slab newSlab(int chunkSize) {
+		synchronized (slabs) {
+			if (slabs.size() < maxSlabs) {
+				Slab slab = new Slab(slabSize, chunkSize);
+				slabs.add(slab);
+				return slab;
+			}
+			long now = System.currentTimeMillis();
+			Slab slab;
+			while ((slab = emptySlabs.peekFirst()) != null) {
+				if (slab.live.get() == 0 && now - slab.emptySince < REUSE_DELAY_MS) {
+					/* the following slabs became empty later */
+					return null;
+				}
+				emptySlabs.pollFirst();
+				/* a slab that is used again is queued again when it is empty */
+				if (slab.live.compareAndSet(0, -1)) {
+					slab.layout = new Layout(slabSize, chunkSize);
+					slab.live.set(0);
+					reclaimedSlabs.increment();
+					return slab;
+				}
+			}
+			return null;
+		}
+	}
+
+	/* takes a chunk of the slab, fails if the slab was reclaimed or split again */
+	private boolean acquire(Slab slab, Layout layout) {
+		while (true) {
+			int live = slab.live.get();
+			if (live < 0) {
+				return false;
+			}
+			if (slab.live.compareAndSet(live, live + 1)) {
+				break;
+			}
+		}
+		if (slab.layout != layout) {
+			release(slab);
+			return false;
+		}
+		return true;
+	}
+
+	private void release(Slab slab) {
+		if (slab.live.decrementAndGet() == 0) {
+			slab.emptySince = System.currentTimeMillis();
+			synchronized (slabs) {
+				emptySlabs.addLast(slab);
+			}
+		}
+	}
+
+	public int getSlabCount() {
+		synchronized (slabs) {
+			return slabs.size();
+		}
+	}
+
+	public int getSlabSize() {
+		return slabSize;
+	}
+
+	public long getReservedBytes() {
+		return (long) getSlabCount() * slabSize;
+	}
+
+	public long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+	/* share of the allocated chunks that is not used by payload (internal fragmentation) */
+	public double getFragmentation() {
+		long chunks = chunkBytes.get();
+		if (chunks == 0) {
+			return 0;
+		}
+		return 1.0 - ((double) usedBytes.get() / chunks);
+	}
+
+	public long getFailedAllocations() {
+		return failedAllocations.get();
+	}
+
+	public long getReclaimedSlabs() {
+		return reclaimedSlabs.get();
+	}
+
+	private class SizeClass {
+		private final int chunkSize;
+		private final ArrayDeque<FreeChunk> freeChunks = new ArrayDeque<FreeChunk>();
+		/* slab that is currently split into chunks, it can be reclaimed when all its chunks are free */
+		private Slab current;
+		private Layout currentLayout;
+		private int nextOffset;
+
+		SizeClass(int chunkSize) {
+			this.chunkSize = chunkSize;
+		}
+
+		synchronized SlabHandle allocate(int length) {
+			long now = System.currentTimeMillis();
+			FreeChunk free;
+			while ((free = freeChunks.peekFirst()) != null) {
+				if (free.layout == free.slab.layout && now - free.freedAt < REUSE_DELAY_MS) {
+					break;
+				}
+				freeChunks.pollFirst();
+				/* chunks of reclaimed slabs are dropped */
+				if (acquire(free.slab, free.layout)) {
+					return free.slab.claim(free.layout, free.offset, length);
+				}
+			}
+			if (current == null || nextOffset + chunkSize > slabSize || !acquire(current, currentLayout)) {
+				Slab slab = newSlab(chunkSize);
+				if (slab == null) {
+					return null;
+				}
+				current = slab;
+				currentLayout = slab.layout;
+				nextOffset = 0;
+				/* the slab is not in the empty queue, nobody else can take it */
+				slab.live.incrementAndGet();
+			}
+			int offset = nextOffset;
+			nextOffset += chunkSize;
+			return current.claim(currentLayout, offset, length);
+		}
+
+		void free(SlabHandle handle) {
+			synchronized (this) {
+				freeChunks.addLast(new FreeChunk(handle.slab, handle.layout, handle.offset, System.currentTimeMillis()));
+			}
+			release(handle.slab);
+		}
+	}
+
+	/* split of a slab into chunks of one size */
+	private static class Layout {
+		final int chunkSize;
+		final AtomicIntegerArray generations;
+
+		Layout(int slabSize, int chunkSize) {
+			this.chunkSize = chunkSize;
+			this.generations = new AtomicIntegerArray(slabSize / chunkSize);
+		}
+	}
+
+	private static class Slab {
+		final ByteBuffer buffer;
+		volatile Layout layout;
+		/* used chunks, -1 while the slab is reclaimed */
+		final AtomicInteger live = new AtomicInteger();
+		volatile long emptySince;
+
+		Slab(int size, int chunkSize) {
+			this.buffer = ByteBuffer.allocateDirect(size);
+			this.layout = new Layout(size, chunkSize);
+		}
+
+		SlabHandle claim(Layout layout, int offset, int length) {
+			int generation = layout.generations.incrementAndGet(offset / layout.chunkSize);
+			return new SlabHandle(this, layout, offset, length, generation);
+		}
+	}
+
+	private static class FreeChunk {
+		final Slab slab;
+		final Layout layout;
+		final int offset;
+		final long freedAt;
+
+		FreeChunk(Slab slab, Layout layout, int offset, long freedAt) {
+			this.slab = slab;
+			this.layout = layout;
+			this.offset = offset;
+			this.freedAt = freedAt;
+		}
+	}
+
+	/* reference to a payload in a slab */
+	public static class SlabHandle {
+		private final Slab slab;
+		private final Layout layout;
+		private final int offset;
+		private final int length;
+		private final int generation;
+
+		private SlabHandle(Slab slab, Layout layout, int offset, int length, int generation) {
+			this.slab = slab;
+			this.layout = layout;
+			this.offset = offset;
+			this.length = length;
+			this.generation = generation;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		boolean isValid() {
+			return slab.layout == layout && layout.generations.get(offset / layout.chunkSize) == generation;
+		}
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hierarchical timer wheel for cache expiry and request timeouts.
+ * Each level has 64 slots, a slot of level n covers 64^n ticks. Timeouts are
+ * stored in doubly linked slot lists, so scheduling and cancellation are O(1).
+ * When the lower level wraps around, the next slot of the upper level is
+ * cascaded down. Timeouts beyond the top level are placed in the top level
+ * and rescheduled when they are cascaded.
+ * Tasks are run by a single worker thread, which is started on the first
+ * schedule. Tasks must be short and must not block.
+ */
+public class ProxyTimerWheel {
+	static Logger logger = Logger.getLogger(Proxy.class);
+	public static final long DEFAULT_TICK_MS = 100;
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+	private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+	private final long tickMs;
+	private final long startTime;
+	/* heads of the slot lists */
+	private final Timeout[][] wheel = new Timeout[LEVELS][SLOTS];
+	/* all ticks up to this one are processed */
+	private long currentTick = 0;
+	private int size = 0;
+	private Thread worker = null;
+	private volatile boolean stopped = false;
+
+	public ProxyTimerWheel() {
+		this(DEFAULT_TICK_MS);
+	}
+
+	public ProxyTimerWheel(long tickMs) {
+		if (tickMs <= 0) {
+			throw new IllegalArgumentException("tick must be positive");
+		}
+		this.tickMs = tickMs;
+		this.startTime = System.currentTimeMillis();
+	}
+
+	/* runs the task when the deadline (absolute time in ms) has passed */
+	public synchronized Timeout schedule(long deadline, Runnable task) {
+		if (worker == null && !stopped) {
+			worker = new Thread("cache timer") {
+				@Override
+				public void run() {
+					work();
+				}
+			};
+			worker.setDaemon(true);
+			worker.start();
+		}
+		/* round up, a timeout never fires early */
+		long deadlineTick = Math.max((deadline - startTime + tickMs - 1) / tickMs, 0);
+		Timeout timeout = new Timeout(this, deadlineTick, task);
+		/* the slot of the current tick is already processed */
+		add(timeout, 1);
+		size++;
+		return timeout;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public void stop() {
+		stopped = true;
+		Thread w;
+		synchronized (this) {
+			w = worker;
+		}
+		if (w != null) {
+			w.interrupt();
+		}
+	}
+
+	private void add(Timeout timeout, long minDelta) {
+		long delta = Math.max(timeout.deadlineTick - currentTick, minDelta);
+		long placement = currentTick + Math.min(delta, MAX_DELTA);
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+			level++;
+		}
+		int slot = (int) (placement >>> (SLOT_BITS * level)) & SLOT_MASK;
+		Timeout head = wheel[level][slot];
+		timeout.level = level;
+		timeout.slot = slot;
+		timeout.prev = null;
+		timeout.next = head;
+		if (head != null) {
+			head.prev = timeout;
+		}
+		wheel[level][slot] = timeout;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			wheel[timeout.level][timeout.slot] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+	}
+
+	private synchronized boolean cancel(Timeout timeout) {
+		if (timeout.state != Timeout.PENDING) {
+			return false;
+		}
+		timeout.state = Timeout.CANCELLED;
+		unlink(timeout);
+		size--;
+		return true;
+	}
+
+	/* advances the wheel to the given tick, returns the expired timeouts */
+	private synchronized List<Timeout> advance(long tick) {
+		List<Timeout> expired = null;
+		while (currentTick < tick) {
+			currentTick++;
+			/* cascade the upper levels if the lower level wrapped around */
+			for (int level = 1; level < LEVELS; level++) {
+				if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+					break;
+				}
+				cascade(level, (int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+			}
+			int slot = (int) currentTick & SLOT_MASK;
+			Timeout timeout = wheel[0][slot];
+			wheel[0][slot] = null;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				timeout.prev = null;
+				timeout.next = null;
+				if (timeout.deadlineTick <= currentTick) {
+					timeout.state = Timeout.EXPIRED;
+					size--;
+					if (expired == null) {
+						expired = new ArrayList<Timeout>();
+					}
+					expired.add(timeout);
+				} else {
+					add(timeout, 1);
+				}
+				timeout = next;
+			}
+		}
+		return expired;
+	}
+
+	private void cascade(int level, int slot) {
+		Timeout timeout = wheel[level][slot];
+		wheel[level][slot] = null;
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			/* cascading happens before the slot of the current tick is processed */
+			add(timeout, 0);
+			timeout = next;
+		}
+	}
+
+	private void work() {
+		while (!stopped) {
+			long tick = (System.currentTimeMillis() - startTime) / tickMs;
+			List<Timeout> expired = advance(tick);
+			if (expired != null) {
+				for (Timeout timeout : expired) {
+					try {
+						timeout.task.run();
+					} catch (RuntimeException e) {
+						logger.warn("timer task failed: " + e.getMessage());
+					}
+				}
+			}
+			long nextTickTime = startTime + (tick + 1) * tickMs;
+			try {
+				Thread.sleep(Math.max(nextTickTime - System.currentTimeMillis(), 1));
+			} catch (InterruptedException e) {
+				/* stopped */
+			}
+		}
+	}
+
+	public static class Timeout {
+		static final int PENDING = 0;
+		static final int CANCELLED = 1;
+		static final int EXPIRED = 2;
+
+		private final ProxyTimerWheel wheel;
+		private final long deadlineTick;
+		private final Runnable task;
+		/* guarded by the wheel */
+		private int state = PENDING;
+		private int level;
+		private int slot;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(ProxyTimerWheel wheel, long deadlineTick, Runnable task) {
+			this.wheel = wheel;
+			this.deadlineTick = deadlineTick;
+			this.task = task;
+		}
+
+		/* returns false if the task already ran or was cancelled */
+		public boolean cancel() {
+			return wheel.cancel(this);
+		}
+	}
+}
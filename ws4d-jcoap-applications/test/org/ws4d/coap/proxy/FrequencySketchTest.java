@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FrequencySketchTest {
+
+	@Test
+	public void incrementsAreCounted() {
+		FrequencySketch sketch = new FrequencySketch(1024);
+		for (int i = 0; i < 5; i++) {
+			sketch.increment("hot");
+		}
+		sketch.increment("warm");
+		assertTrue(sketch.frequency("hot") >= 5);
+		assertTrue(sketch.frequency("hot") > sketch.frequency("warm"));
+		assertEquals(0, sketch.frequency("cold"));
+	}
+
+	@Test
+	public void countersSaturate() {
+		FrequencySketch sketch = new FrequencySketch(1024);
+		for (int i = 0; i < 100; i++) {
+			sketch.increment("hot");
+		}
+		assertEquals(15, sketch.frequency("hot"));
+	}
+
+	@Test
+	public void countersAreHalvedByTheReset() {
+		FrequencySketch sketch = new FrequencySketch(1024);
+		for (int i = 0; i < 15; i++) {
+			sketch.increment("hot");
+		}
+		sketch.reset();
+		assertEquals(7, sketch.frequency("hot"));
+	}
+}
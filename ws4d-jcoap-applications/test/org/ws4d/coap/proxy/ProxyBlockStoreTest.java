@@ -0,0 +1,131 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.ws4d.coap.proxy.TestPayloads.payload;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ws4d.coap.messages.CoapMediaType;
+
+public class ProxyBlockStoreTest {
+	private static final byte[] ETAG = { 1, 2 };
+
+	private ProxyTimerWheel timerWheel;
+	private ProxyResourceKey key;
+
+	@Before
+	public void setUp() throws UnknownHostException {
+		timerWheel = new ProxyTimerWheel(10);
+		key = new ProxyResourceKey(InetAddress.getByName("10.0.0.1"), 5683, "/a");
+	}
+
+	@After
+	public void tearDown() {
+		timerWheel.stop();
+	}
+
+	@Test
+	public void blocksAreReassembled() {
+		ProxyBlockStore store = new ProxyBlockStore(timerWheel, 1024 * 1024);
+		byte[] first = payload(32, 1);
+		byte[] last = payload(10, 2);
+		assertNull(add(store, 0, first, false, ETAG));
+		assertTrue(store.getBytes() >= 32);
+
+		ProxyBlockStore.Block block = store.getBlock(key, 0, 32);
+		assertNotNull(block);
+		assertArrayEquals(first, block.getPayload());
+		assertTrue(block.isMore());
+		/* not received yet */
+		assertNull(store.getBlock(key, 32, 32));
+
+		byte[] complete = add(store, 32, last, true, ETAG);
+		assertNotNull(complete);
+		assertEquals(42, complete.length);
+		assertEquals(first[5], complete[5]);
+		assertEquals(last[5], complete[37]);
+		assertEquals(0, store.size());
+		assertEquals(0, store.getBytes());
+	}
+
+	@Test
+	public void blocksBeyondTheCapAreRejected() {
+		ProxyBlockStore store = new ProxyBlockStore(timerWheel, 64);
+		assertNull(add(store, 0, payload(64, 1), false, ETAG));
+		assertEquals(64, store.getBytes());
+		assertNull(add(store, 64, payload(64, 2), false, ETAG));
+		assertEquals(1, store.getRejectedCount());
+		assertEquals(64, store.getBytes());
+	}
+
+	@Test
+	public void anotherRepresentationReplacesTheBuffer() {
+		ProxyBlockStore store = new ProxyBlockStore(timerWheel, 1024 * 1024);
+		add(store, 0, payload(64, 1), false, ETAG);
+		add(store, 0, payload(16, 2), false, new byte[] { 3 });
+		assertEquals(1, store.size());
+		assertEquals(16, store.getBytes());
+		assertArrayEquals(payload(16, 2), store.getBlock(key, 0, 16).getPayload());
+	}
+
+	@Test
+	public void removeReleasesTheBuffer() {
+		ProxyBlockStore store = new ProxyBlockStore(timerWheel, 1024 * 1024);
+		add(store, 0, payload(64, 1), false, ETAG);
+		store.remove(key);
+		assertEquals(0, store.size());
+		assertEquals(0, store.getBytes());
+	}
+
+	@Test
+	public void removeVariantsReleasesAllBuffers() {
+		ProxyBlockStore store = new ProxyBlockStore(timerWheel, 1024 * 1024);
+		ProxyResourceKey variant = new ProxyResourceKey(key.getInetAddr(), 5683, "/a", "x=1", null);
+		add(store, 0, payload(64, 1), false, ETAG);
+		store.addBlock(variant, 0, payload(64, 2), false, CoapMediaType.text_plain, ETAG, -1);
+		assertEquals(2, store.size());
+		store.removeVariants(key);
+		assertEquals(0, store.size());
+		assertEquals(0, store.getBytes());
+	}
+
+	@Test
+	public void expiredBufferIsRemoved() throws InterruptedException {
+		ProxyBlockStore store = new ProxyBlockStore(timerWheel, 1024 * 1024);
+		store.addBlock(key, 0, payload(64, 1), false, CoapMediaType.text_plain, ETAG, System.currentTimeMillis() + 50);
+		assertEquals(1, store.size());
+		Thread.sleep(500);
+		assertEquals(0, store.size());
+		assertEquals(0, store.getBytes());
+	}
+
+	private byte[] add(ProxyBlockStore store, int position, byte[] data, boolean last, byte[] etag) {
+		return store.addBlock(key, position, data, last, CoapMediaType.text_plain, etag, -1);
+	}
+}
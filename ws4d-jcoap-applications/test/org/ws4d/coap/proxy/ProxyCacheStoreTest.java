@@ -0,0 +1,193 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+import org.ws4d.coap.messages.CoapMediaType;
+
+public class ProxyCacheStoreTest {
+	private static final int PAYLOAD = 100;
+	/* weight of an entry with a path of two characters */
+	private static final int WEIGHT = ProxyCacheStore.ENTRY_OVERHEAD + PAYLOAD + 2;
+
+	@Test
+	public void weightCoversOverheadPayloadAndPath() throws UnknownHostException {
+		ProxyCacheStore store = new ProxyCacheStore(1024 * 1024, 1);
+		ProxyResourceKey key = key("10.0.0.1", "/a");
+		assertEquals(WEIGHT, ProxyCacheStore.weightOf(key, resource("/a")));
+		assertTrue(store.put(key, resource("/a")));
+		assertEquals(WEIGHT, store.getWeightedSize());
+		assertEquals(1, store.size());
+	}
+
+	@Test
+	public void removeReleasesTheWeight() throws UnknownHostException {
+		ProxyCacheStore store = new ProxyCacheStore(1024 * 1024, 1);
+		ProxyResourceKey key = key("10.0.0.1", "/a");
+		store.put(key, resource("/a"));
+		assertNotNull(store.remove(key));
+		assertEquals(0, store.getWeightedSize());
+		assertEquals(0, store.size());
+		/* the usage of the origin is dropped with its last entry */
+		assertTrue(store.getOriginUsage().isEmpty());
+	}
+
+	@Test
+	public void replacementIsWeighedAgain() throws UnknownHostException {
+		ProxyCacheStore store = new ProxyCacheStore(1024 * 1024, 1);
+		ProxyResourceKey key = key("10.0.0.1", "/a");
+		store.put(key, resource("/a"));
+		store.put(key, new ProxyResource("/a", new byte[2 * PAYLOAD], CoapMediaType.text_plain));
+		assertEquals(1, store.size());
+		assertEquals(WEIGHT + PAYLOAD, store.getWeightedSize());
+	}
+
+	@Test
+	public void largerReplacementStaysWithinTheBudget() throws UnknownHostException {
+		ProxyCacheStore store = new ProxyCacheStore(3 * WEIGHT, 1);
+		ProxyResourceKey[] keys = { key("10.0.0.1", "/a"), key("10.0.0.1", "/b"), key("10.0.0.1", "/c") };
+		for (ProxyResourceKey key : keys) {
+			assertTrue(store.put(key, resource(key.getPath())));
+		}
+		assertEquals(3 * WEIGHT, store.getWeightedSize());
+		assertTrue(store.put(keys[2], new ProxyResource("/c", new byte[2 * PAYLOAD], CoapMediaType.text_plain)));
+		assertTrue(store.getWeightedSize() <= store.getMaxBytes());
+		/* the least recently used entry made room */
+		assertFalse(store.containsKey(keys[0]));
+		assertTrue(store.containsKey(keys[2]));
+	}
+
+	@Test
+	public void rejectedReplacementRemovesTheOldEntry() throws UnknownHostException {
+		ProxyCacheStore store = new ProxyCacheStore(3 * WEIGHT, 1);
+		ProxyResourceKey key = key("10.0.0.1", "/a");
+		assertTrue(store.put(key, resource("/a")));
+		assertFalse(store.put(key, new ProxyResource("/a", new byte[3 * WEIGHT], CoapMediaType.text_plain)));
+		assertFalse(store.containsKey(key));
+		assertEquals(0, store.getWeightedSize());
+	}
+
+	@Test
+	public void colderCandidateIsNotAdmitted() throws UnknownHostException {
+		ProxyCacheStore store = new ProxyCacheStore(2 * WEIGHT, 1);
+		ProxyResourceKey a = key("10.0.0.1", "/a");
+		ProxyResourceKey b = key("10.0.0.1", "/b");
+		store.put(a, resource("/a"));
+		store.put(b, resource("/b"));
+		store.get(a);
+		store.get(b);
+		assertFalse(store.put(key("10.0.0.1", "/c"), resource("/c")));
+		assertEquals(1, store.getRejectionCount());
+		assertEquals(2 * WEIGHT, store.getWeightedSize());
+	}
+
+	@Test
+	public void quotaEvictsEntriesOfTheSameOrigin() throws UnknownHostException {
+		ProxyCacheStore store = new ProxyCacheStore(1024 * 1024, 1);
+		store.setOriginQuota(3 * WEIGHT);
+		ProxyResourceKey other = key("10.0.0.2", "/x");
+		store.put(other, resource("/x"));
+		ProxyResourceKey[] keys = { key("10.0.0.1", "/a"), key("10.0.0.1", "/b"), key("10.0.0.1", "/c"), key("10.0.0.1", "/d") };
+		for (int i = 0; i < keys.length; i++) {
+			if (i == 3) {
+				/* the hit gives /a a second chance */
+				store.get(keys[0]);
+			}
+			assertTrue(store.put(keys[i], resource(keys[i].getPath())));
+		}
+		assertTrue(store.containsKey(keys[0]));
+		assertFalse(store.containsKey(keys[1]));
+		assertTrue(store.containsKey(keys[2]));
+		assertTrue(store.containsKey(keys[3]));
+		assertTrue(store.containsKey(other));
+		assertEquals(5 * WEIGHT - WEIGHT, store.getWeightedSize());
+	}
+
+	@Test
+	public void replacementAboveTheQuotaRemovesTheOldEntry() throws UnknownHostException {
+		ProxyCacheStore store = new ProxyCacheStore(1024 * 1024, 1);
+		store.setOriginQuota(2 * WEIGHT);
+		ProxyResourceKey key = key("10.0.0.1", "/a");
+		assertTrue(store.put(key, resource("/a")));
+		assertFalse(store.put(key, new ProxyResource("/a", new byte[2 * WEIGHT], CoapMediaType.text_plain)));
+		assertFalse(store.containsKey(key));
+		assertEquals(0, store.getWeightedSize());
+	}
+
+	@Test
+	public void rejectedCandidateDoesNotEvictItsOrigin() throws UnknownHostException {
+		ProxyCacheStore store = new ProxyCacheStore(2 * WEIGHT, 1);
+		store.setOriginQuota(2 * WEIGHT);
+		ProxyResourceKey a = key("10.0.0.1", "/a");
+		ProxyResourceKey b = key("10.0.0.1", "/b");
+		store.put(a, resource("/a"));
+		store.put(b, resource("/b"));
+		store.get(a);
+		store.get(b);
+		/* colder than both entries, TinyLFU rejects it */
+		assertFalse(store.put(key("10.0.0.1", "/c"), resource("/c")));
+		assertTrue(store.containsKey(a));
+		assertTrue(store.containsKey(b));
+	}
+
+	@Test
+	public void allVariantsAreRemoved() throws UnknownHostException {
+		ProxyCacheStore store = new ProxyCacheStore(1024 * 1024, 1);
+		InetAddress origin = InetAddress.getByName("10.0.0.1");
+		ProxyResourceKey plain = new ProxyResourceKey(origin, 5683, "/a");
+		ProxyResourceKey query = new ProxyResourceKey(origin, 5683, "/a", "x=1", null);
+		ProxyResourceKey accept = new ProxyResourceKey(origin, 5683, "/a", null, "50");
+		store.put(plain, resource("/a"));
+		store.put(query, resource("/a"));
+		store.put(accept, resource("/a"));
+		assertEquals(3, store.removeVariants(query));
+		assertEquals(0, store.size());
+		assertEquals(0, store.getWeightedSize());
+		assertNull(store.get(plain));
+	}
+
+	@Test
+	public void maxPayloadLengthIsAccepted() throws UnknownHostException {
+		ProxyCacheStore store = new ProxyCacheStore(1024 * 1024, 4);
+		ProxyResourceKey key = key("10.0.0.1", "/a");
+		int max = (int) store.getMaxPayloadLength(key);
+		assertFalse(store.put(key, new ProxyResource("/a", new byte[max + 1], CoapMediaType.text_plain)));
+		assertTrue(store.put(key, new ProxyResource("/a", new byte[max], CoapMediaType.text_plain)));
+		/* the origin quota lowers the limit */
+		store.setOriginQuota(WEIGHT);
+		assertEquals(PAYLOAD, store.getMaxPayloadLength(key));
+	}
+
+	private static ProxyResourceKey key(String origin, String path) throws UnknownHostException {
+		return new ProxyResourceKey(InetAddress.getByName(origin), 5683, path);
+	}
+
+	private static ProxyResource resource(String path) {
+		return new ProxyResource(path, new byte[PAYLOAD], CoapMediaType.text_plain);
+	}
+}
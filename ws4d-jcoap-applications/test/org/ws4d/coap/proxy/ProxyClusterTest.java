@@ -0,0 +1,141 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ProxyClusterTest {
+	private static final int KEYS = 30000;
+
+	private static final InetSocketAddress A = new InetSocketAddress("127.0.0.1", 5684);
+	private static final InetSocketAddress B = new InetSocketAddress("127.0.0.1", 5685);
+	/* TEST-NET-1, never a local address */
+	private static final InetSocketAddress REMOTE = new InetSocketAddress("192.0.2.1", 5683);
+
+	@Test
+	public void allNodesAgreeOnTheOwner() throws UnknownHostException {
+		List<InetSocketAddress> members = Arrays.asList(A, B, REMOTE);
+		ProxyCluster a = new ProxyCluster(members, A);
+		ProxyCluster b = new ProxyCluster(members, B);
+		ProxyCluster client = new ProxyCluster(members, null);
+		for (int i = 0; i < 1000; i++) {
+			ProxyResourceKey key = key(i);
+			InetSocketAddress owner = ownerOf(client, key);
+			assertNotNull(owner);
+			assertEquals(owner, ownerOf(a, key));
+			assertEquals(owner, ownerOf(b, key));
+		}
+	}
+
+	@Test
+	public void selfIsTheLocalMemberWithThePort() {
+		List<InetSocketAddress> members = Arrays.asList(REMOTE, A, B);
+		assertEquals(A, ProxyCluster.findSelf(members, A.getPort()));
+		assertEquals(B, ProxyCluster.findSelf(members, B.getPort()));
+		/* the remote member has the port but no local address */
+		assertNull(ProxyCluster.findSelf(members, REMOTE.getPort()));
+		assertNull(ProxyCluster.findSelf(members, 1));
+	}
+
+	@Test
+	public void virtualNodesSpreadTheKeys() throws UnknownHostException {
+		List<InetSocketAddress> members = Arrays.asList(A, B, REMOTE);
+		ProxyCluster cluster = new ProxyCluster(members, null);
+		Map<InetSocketAddress, Integer> counts = new HashMap<InetSocketAddress, Integer>();
+		for (int i = 0; i < KEYS; i++) {
+			InetSocketAddress owner = cluster.getOwner(key(i));
+			Integer count = counts.get(owner);
+			counts.put(owner, count == null ? 1 : count + 1);
+		}
+		assertEquals(members.size(), counts.size());
+		for (int count : counts.values()) {
+			/* a third of the keys each, within a few percent */
+			assertTrue("share " + count, count > KEYS / 4 && count < KEYS * 5 / 12);
+		}
+	}
+
+	@Test
+	public void downPeerIsBypassed() throws UnknownHostException {
+		ProxyCluster cluster = new ProxyCluster(Arrays.asList(A, B), A);
+		ProxyResourceKey key = keyOwnedBy(cluster, B);
+		assertEquals(B, cluster.getOwner(key));
+		cluster.markDown(B);
+		/* requested directly from the origin server */
+		assertNull(cluster.getOwner(key));
+		assertEquals(1, cluster.getDownCount());
+		assertEquals(1, cluster.getFailedCount());
+		/* keys of this node are not affected */
+		assertNull(cluster.getOwner(keyOwnedBy(cluster, A)));
+	}
+
+	@Test
+	public void twoLocalInstancesForwardOnlyOnce() throws UnknownHostException {
+		List<InetSocketAddress> members = Arrays.asList(A, B);
+		/* two proxies on localhost find themselves by their CoAP port */
+		ProxyCluster a = new ProxyCluster(members, ProxyCluster.findSelf(members, A.getPort()));
+		ProxyCluster b = new ProxyCluster(members, ProxyCluster.findSelf(members, B.getPort()));
+		int forwarded = 0;
+		for (int i = 0; i < 1000; i++) {
+			ProxyResourceKey key = key(i);
+			InetSocketAddress peer = a.getOwner(key);
+			if (peer == null) {
+				/* A owns the resource, B forwards to A */
+				assertEquals(A, b.getOwner(key));
+			} else {
+				/* B answers the forwarded request itself */
+				assertEquals(B, peer);
+				assertNull(b.getOwner(key));
+				forwarded++;
+			}
+		}
+		assertTrue(forwarded > 0 && forwarded < 1000);
+		assertEquals(forwarded, a.getForwardedCount());
+	}
+
+	/* the member that answers the key, whether it is the node itself or a peer */
+	private static InetSocketAddress ownerOf(ProxyCluster cluster, ProxyResourceKey key) {
+		InetSocketAddress owner = cluster.getOwner(key);
+		return owner != null ? owner : cluster.getSelf();
+	}
+
+	private static ProxyResourceKey keyOwnedBy(ProxyCluster cluster, InetSocketAddress member) throws UnknownHostException {
+		for (int i = 0;; i++) {
+			if (member.equals(ownerOf(cluster, key(i)))) {
+				return key(i);
+			}
+		}
+	}
+
+	private static ProxyResourceKey key(int i) throws UnknownHostException {
+		return new ProxyResourceKey(InetAddress.getByName("10.0.0." + (i % 7 + 1)), 5683, "/sensor/" + i);
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ProxyDoorkeeperTest {
+	private final ProxyTimerWheel timerWheel = new ProxyTimerWheel(10);
+
+	@After
+	public void tearDown() {
+		timerWheel.stop();
+	}
+
+	@Test
+	public void resourceIsAdmittedAfterRepeatedMisses() throws UnknownHostException {
+		ProxyDoorkeeper doorkeeper = new ProxyDoorkeeper(timerWheel);
+		ProxyResourceKey key = key("/a");
+		doorkeeper.recordMiss(key);
+		assertFalse(doorkeeper.admit(key));
+		doorkeeper.recordMiss(key);
+		assertTrue(doorkeeper.admit(key));
+		assertEquals(1, doorkeeper.getRejectedCount());
+		assertEquals(1, doorkeeper.getAdmittedCount());
+	}
+
+	@Test
+	public void thresholdOneAdmitsEveryResource() throws UnknownHostException {
+		ProxyDoorkeeper doorkeeper = new ProxyDoorkeeper(timerWheel);
+		doorkeeper.setThreshold(1);
+		assertTrue(doorkeeper.admit(key("/a")));
+	}
+
+	@Test
+	public void countersAgeAtTheEndOfTheWindow() throws Exception {
+		ProxyDoorkeeper doorkeeper = new ProxyDoorkeeper(timerWheel);
+		doorkeeper.setWindow(50);
+		ProxyResourceKey key = key("/a");
+		doorkeeper.recordMiss(key);
+		doorkeeper.recordMiss(key);
+		Thread.sleep(300);
+		assertFalse(doorkeeper.admit(key));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void thresholdAboveTheCounterRangeIsRejected() {
+		new ProxyDoorkeeper(timerWheel).setThreshold(ProxyDoorkeeper.MAX_THRESHOLD + 1);
+	}
+
+	private static ProxyResourceKey key(String path) throws UnknownHostException {
+		return new ProxyResourceKey(InetAddress.getByName("10.0.0.1"), 5683, path);
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/* two proxy instances in one JVM */
+public class ProxyInvalidationBusTest {
+	private static final InetSocketAddress GROUP = new InetSocketAddress(ProxyInvalidationBus.DEFAULT_GROUP, 56900);
+	private static final long WAIT_MS = 2000;
+
+	private ProxyInvalidationBus sender;
+	private ProxyInvalidationBus receiver;
+
+	@Before
+	public void setUp() throws IOException {
+		NetworkInterface networkInterface = multicastInterface();
+		assumeTrue(networkInterface != null);
+		sender = new ProxyInvalidationBus(new ProxyCache(), GROUP, networkInterface);
+		receiver = new ProxyInvalidationBus(new ProxyCache(), GROUP, networkInterface);
+		sender.start();
+		receiver.start();
+	}
+
+	@After
+	public void tearDown() {
+		if (sender != null) {
+			sender.stop();
+		}
+		if (receiver != null) {
+			receiver.stop();
+		}
+	}
+
+	@Test
+	public void keysReachTheOtherInstance() throws Exception {
+		sender.publish(key("/a"));
+		sender.publish(key("/b?x=1"));
+		awaitReceived(2);
+		assertEquals(2, receiver.getReceivedKeyCount());
+		/* own datagrams are ignored */
+		assertEquals(0, sender.getReceivedKeyCount());
+	}
+
+	@Test
+	public void keyLargerThanADatagramIsDropped() throws Exception {
+		StringBuilder path = new StringBuilder("/");
+		for (int i = 0; i < 2000; i++) {
+			path.append('x');
+		}
+		sender.publish(key(path.toString()));
+		assertEquals(1, sender.getDroppedKeyCount());
+		/* the following keys are still sent */
+		sender.publish(key("/a"));
+		awaitReceived(1);
+		assertEquals(1, receiver.getReceivedKeyCount());
+		assertEquals(0, receiver.getInvalidDatagramCount());
+	}
+
+	/* the loopback interface if it supports multicast (not the default on Linux), otherwise
+	 * the first interface that does: the buses enable IP_MULTICAST_LOOP, so the datagrams
+	 * stay on the host */
+	private static NetworkInterface multicastInterface() throws SocketException {
+		NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+		if (loopback != null && loopback.supportsMulticast()) {
+			return loopback;
+		}
+		for (NetworkInterface candidate : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+			if (candidate.isUp() && candidate.supportsMulticast() && candidate.getInetAddresses().hasMoreElements()) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	private void awaitReceived(long keys) throws InterruptedException {
+		long end = System.currentTimeMillis() + WAIT_MS;
+		while (receiver.getReceivedKeyCount() < keys && System.currentTimeMillis() < end) {
+			Thread.sleep(ProxyInvalidationBus.FLUSH_INTERVAL_MS);
+		}
+	}
+
+	private static ProxyResourceKey key(String path) throws IOException {
+		int query = path.indexOf('?');
+		if (query < 0) {
+			return new ProxyResourceKey(InetAddress.getByName("10.0.0.1"), 5683, path);
+		}
+		return new ProxyResourceKey(InetAddress.getByName("10.0.0.1"), 5683, path.substring(0, query), path.substring(query + 1), null);
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ProxyMetricsTest {
+
+	@Test
+	public void registriesDoNotShareCounters() {
+		ProxyMetrics first = new ProxyMetrics();
+		ProxyMetrics second = new ProxyMetrics();
+		first.counter("cache.hits").increment();
+		assertEquals(1, first.counter("cache.hits").get());
+		assertEquals(0, second.counter("cache.hits").get());
+		/* the same name returns the same counter of a registry */
+		assertSame(first.counter("cache.hits"), first.counter("cache.hits"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void gaugeIsNotReplaced() {
+		ProxyMetrics metrics = new ProxyMetrics();
+		metrics.gauge("cache.entries", gauge(1));
+		metrics.gauge("cache.entries", gauge(2));
+	}
+
+	@Test
+	public void removeAllRemovesTheComponent() {
+		ProxyMetrics metrics = new ProxyMetrics();
+		metrics.counter("cache.offheap.failed-allocations");
+		metrics.gauge("cache.offheap.slabs", gauge(1));
+		metrics.counter("cache.hits");
+		metrics.removeAll("cache.offheap.");
+		assertFalse(metrics.snapshot().containsKey("cache.offheap.slabs"));
+		assertFalse(metrics.snapshot().containsKey("cache.offheap.failed-allocations"));
+		assertTrue(metrics.snapshot().containsKey("cache.hits"));
+	}
+
+	private static ProxyMetrics.Gauge gauge(final long value) {
+		return new ProxyMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return value;
+			}
+		};
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ProxyRateLimiterTest {
+
+	@Test
+	public void disabledLimiterAcceptsEverything() {
+		ProxyRateLimiter limiter = new ProxyRateLimiter("test.disabled");
+		assertTrue(limiter.isDisabled());
+		for (int i = 0; i < 100; i++) {
+			assertTrue(limiter.tryAcquire("client"));
+		}
+		assertEquals(0, limiter.size());
+	}
+
+	@Test
+	public void burstIsAcceptedThenRejected() {
+		ProxyRateLimiter limiter = new ProxyRateLimiter("test.burst");
+		limiter.setRate(new ProxyRateLimiter.Rate(1, 3));
+		assertTrue(limiter.tryAcquire("client"));
+		assertTrue(limiter.tryAcquire("client"));
+		assertTrue(limiter.tryAcquire("client"));
+		assertFalse(limiter.tryAcquire("client"));
+		assertEquals(1, limiter.getRetryAfter("client"));
+	}
+
+	@Test
+	public void keysHaveTheirOwnBuckets() {
+		ProxyRateLimiter limiter = new ProxyRateLimiter("test.keys");
+		limiter.setRate(new ProxyRateLimiter.Rate(1, 1));
+		assertTrue(limiter.tryAcquire("a"));
+		assertFalse(limiter.tryAcquire("a"));
+		assertTrue(limiter.tryAcquire("b"));
+		assertEquals(2, limiter.size());
+	}
+
+	@Test
+	public void bucketRefillsOverTime() throws InterruptedException {
+		ProxyRateLimiter limiter = new ProxyRateLimiter("test.refill");
+		limiter.setRate(new ProxyRateLimiter.Rate(50, 1));
+		assertTrue(limiter.tryAcquire("client"));
+		assertFalse(limiter.tryAcquire("client"));
+		Thread.sleep(50);
+		assertTrue(limiter.tryAcquire("client"));
+	}
+
+	@Test
+	public void keysBeyondTheTableShareTheOverflowBucket() {
+		ProxyRateLimiter limiter = new ProxyRateLimiter("test.overflow", 1, new ProxyMetrics());
+		limiter.setRate(new ProxyRateLimiter.Rate(1, 1));
+		assertTrue(limiter.tryAcquire("a"));
+		/* the bucket of a is not idle, b and c use the overflow bucket */
+		assertTrue(limiter.tryAcquire("b"));
+		assertFalse(limiter.tryAcquire("c"));
+		assertEquals(1, limiter.size());
+	}
+
+	@Test
+	public void idleBucketsAreSweptOncePerInterval() throws InterruptedException {
+		ProxyMetrics metrics = new ProxyMetrics();
+		ProxyRateLimiter limiter = new ProxyRateLimiter("test.sweep", 1, metrics);
+		limiter.setRate(new ProxyRateLimiter.Rate(50, 1));
+		assertTrue(limiter.tryAcquire("a"));
+		Thread.sleep(30);
+		/* a is idle and swept */
+		assertTrue(limiter.tryAcquire("b"));
+		assertEquals(1, metrics.counter("test.sweep.evicted").get());
+		Thread.sleep(30);
+		/* b is idle, but the table was swept less than an interval ago */
+		assertTrue(limiter.tryAcquire("c"));
+		assertEquals(1, metrics.counter("test.sweep.evicted").get());
+		assertEquals(1, metrics.counter("test.sweep.overflow").get());
+		Thread.sleep(ProxyRateLimiter.SWEEP_INTERVAL_NS / 1000000);
+		assertTrue(limiter.tryAcquire("d"));
+		assertEquals(2, metrics.counter("test.sweep.evicted").get());
+	}
+
+	@Test
+	public void disablingClearsTheBuckets() {
+		ProxyRateLimiter limiter = new ProxyRateLimiter("test.clear");
+		limiter.setRate(new ProxyRateLimiter.Rate(1, 1));
+		limiter.tryAcquire("a");
+		limiter.setRate(null);
+		assertEquals(0, limiter.size());
+		assertTrue(limiter.tryAcquire("a"));
+	}
+
+	@Test
+	public void rateIsParsed() {
+		ProxyRateLimiter.Rate rate = ProxyRateLimiter.Rate.parse("10/5");
+		assertEquals(10, rate.getPerSecond(), 0);
+		assertEquals(5, rate.getBurst());
+		assertEquals(10, ProxyRateLimiter.Rate.parse("10").getBurst());
+		assertEquals(1, ProxyRateLimiter.Rate.parse("0.5").getBurst());
+		assertNull(ProxyRateLimiter.Rate.parse("0"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeRateIsRejected() {
+		ProxyRateLimiter.Rate.parse("-1/5");
+	}
+}
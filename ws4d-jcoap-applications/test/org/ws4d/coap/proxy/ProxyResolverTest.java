@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ProxyResolverTest {
+	private final ProxyResolver resolver = new ProxyResolver(1, 16, new ProxyMetrics());
+
+	@After
+	public void shutdown() {
+		resolver.shutdown();
+	}
+
+	@Test
+	public void validLiteralsAreAccepted() {
+		String[] literals = { "1.2.3.4", "0.0.0.0", "255.255.255.255", "::", "::1", "[::1]", "1::", "2001:db8::1",
+				"2001:db8:0:0:0:0:0:1", "::ffff:192.168.0.1", "fe80::1%eth0" };
+		for (String literal : literals) {
+			assertTrue(literal, ProxyResolver.isLiteral(literal));
+		}
+	}
+
+	@Test
+	public void malformedLiteralsAreRejected() {
+		String[] malformed = { "999.1.1.1", "256.0.0.1", "1.2.3", "1.2.3.4.5", "1..2.3", "10.1", "zz:1", "1:", ":1",
+				"1:::2", "a::b::c", "12345::1", "2001:db8:0:0:0:0:0:0:1", "::ffff:1.2.3.400", "[::1", "fe80::1%" };
+		for (String literal : malformed) {
+			assertFalse(literal, ProxyResolver.isLiteral(literal));
+			assertTrue(literal, ProxyResolver.looksLikeLiteral(literal));
+		}
+	}
+
+	@Test
+	public void hostNamesAreNoLiterals() {
+		String[] names = { "localhost", "example.com", "1.example.com", "host-1" };
+		for (String name : names) {
+			assertFalse(name, ProxyResolver.isLiteral(name));
+			assertFalse(name, ProxyResolver.looksLikeLiteral(name));
+		}
+	}
+
+	@Test
+	public void literalIsResolvedInline() {
+		Result result = new Result();
+		resolver.resolve("192.168.1.2", result);
+		assertNotNull(result.address);
+		assertEquals("192.168.1.2", result.address.getHostAddress());
+	}
+
+	@Test
+	public void malformedLiteralFailsInline() {
+		Result result = new Result();
+		resolver.resolve("999.1.1.1", result);
+		assertNull(result.address);
+		assertNotNull(result.failure);
+	}
+
+	/* the literal paths call back on the calling thread */
+	private static class Result implements ProxyResolver.Callback {
+		InetAddress address;
+		UnknownHostException failure;
+
+		@Override
+		public void resolved(InetAddress address) {
+			this.address = address;
+		}
+
+		@Override
+		public void failed(UnknownHostException e) {
+			this.failure = e;
+		}
+	}
+}
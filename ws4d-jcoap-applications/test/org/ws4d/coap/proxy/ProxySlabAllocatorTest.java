@@ -0,0 +1,108 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.ws4d.coap.proxy.TestPayloads.payload;
+
+import org.junit.Test;
+
+public class ProxySlabAllocatorTest {
+
+	@Test
+	public void slabSizeSplitsTheBudget() {
+		assertEquals(ProxySlabAllocator.DEFAULT_SLAB_SIZE, ProxySlabAllocator.slabSizeFor(16L * 1024 * 1024));
+		assertEquals(64 * 1024, ProxySlabAllocator.slabSizeFor(1024 * 1024));
+		assertEquals(16 * 1024, ProxySlabAllocator.slabSizeFor(256 * 1024));
+		/* never below the minimum */
+		assertEquals(4 * 1024, ProxySlabAllocator.slabSizeFor(1024));
+	}
+
+	@Test
+	public void storedPayloadIsRead() {
+		ProxySlabAllocator allocator = new ProxySlabAllocator(1024 * 1024);
+		byte[] payload = payload(300, 7);
+		ProxySlabAllocator.SlabHandle handle = allocator.store(payload);
+		assertNotNull(handle);
+		assertArrayEquals(payload, allocator.read(handle));
+		assertEquals(300, allocator.getUsedBytes());
+	}
+
+	@Test
+	public void defaultBudgetServesSeveralSizeClasses() {
+		ProxySlabAllocator allocator = new ProxySlabAllocator(1024 * 1024);
+		assertNotNull(allocator.store(payload(100, 1)));
+		assertNotNull(allocator.store(payload(10000, 2)));
+		assertNotNull(allocator.store(payload(60000, 3)));
+		assertEquals(3, allocator.getSlabCount());
+	}
+
+	@Test
+	public void storeFailsWhenAllSlabsAreUsed() {
+		ProxySlabAllocator allocator = new ProxySlabAllocator(4 * 4096, 4096);
+		for (int i = 0; i < 4; i++) {
+			assertNotNull(allocator.store(payload(4096, i)));
+		}
+		assertNull(allocator.store(payload(4096, 4)));
+		assertNull(allocator.store(payload(4097, 5)));
+		assertEquals(2, allocator.getFailedAllocations());
+	}
+
+	@Test
+	public void emptySlabIsReclaimedAfterTheReuseDelay() throws InterruptedException {
+		ProxySlabAllocator allocator = new ProxySlabAllocator(4096, 4096);
+		ProxySlabAllocator.SlabHandle large = allocator.store(payload(4096, 1));
+		assertNotNull(large);
+		allocator.free(large);
+		/* readers may still copy the freed payload */
+		assertNull(allocator.store(payload(100, 2)));
+		assertNotNull(allocator.read(large));
+
+		Thread.sleep(ProxySlabAllocator.REUSE_DELAY_MS + 100);
+		byte[] small = payload(100, 3);
+		ProxySlabAllocator.SlabHandle handle = allocator.store(small);
+		assertNotNull(handle);
+		assertEquals(1, allocator.getReclaimedSlabs());
+		assertEquals(1, allocator.getSlabCount());
+		assertArrayEquals(small, allocator.read(handle));
+		/* the slab was split again */
+		assertNull(allocator.read(large));
+	}
+
+	@Test
+	public void freedChunkIsReusedAfterTheReuseDelay() throws InterruptedException {
+		/* two chunks of 1720 bytes fit into the slab */
+		ProxySlabAllocator allocator = new ProxySlabAllocator(4096, 4096);
+		ProxySlabAllocator.SlabHandle first = allocator.store(payload(1500, 1));
+		ProxySlabAllocator.SlabHandle second = allocator.store(payload(1500, 2));
+		assertNotNull(first);
+		assertNotNull(second);
+		allocator.free(first);
+		assertNull(allocator.store(payload(1500, 3)));
+
+		Thread.sleep(ProxySlabAllocator.REUSE_DELAY_MS + 100);
+		assertNotNull(allocator.store(payload(1500, 4)));
+		/* the chunk has a new generation */
+		assertNull(allocator.read(first));
+		assertNotNull(allocator.read(second));
+	}
+}
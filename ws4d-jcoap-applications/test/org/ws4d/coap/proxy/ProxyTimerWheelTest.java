@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 University of Rostock, Institute of Applied Microelectronics and Computer Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This work has been sponsored by Siemens Corporate Technology.
+ *
+ */
+package org.ws4d.coap.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ProxyTimerWheelTest {
+	private final ProxyTimerWheel timerWheel = new ProxyTimerWheel(10);
+
+	@After
+	public void tearDown() {
+		timerWheel.stop();
+	}
+
+	@Test
+	public void taskRunsAfterTheDeadline() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicLong ranAt = new AtomicLong();
+		long deadline = System.currentTimeMillis() + 50;
+		timerWheel.schedule(deadline, new Runnable() {
+			@Override
+			public void run() {
+				ranAt.set(System.currentTimeMillis());
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(2, TimeUnit.SECONDS));
+		assertTrue(ranAt.get() >= deadline);
+		assertEquals(0, timerWheel.size());
+	}
+
+	@Test
+	public void distantTaskIsCascaded() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		/* beyond the first level of the wheel */
+		timerWheel.schedule(System.currentTimeMillis() + 700, new Runnable() {
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(3, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void cancelledTaskDoesNotRun() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		ProxyTimerWheel.Timeout timeout = timerWheel.schedule(System.currentTimeMillis() + 50, new Runnable() {
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		});
+		assertEquals(1, timerWheel.size());
+		assertTrue(timeout.cancel());
+		assertFalse(timeout.cancel());
+		assertEquals(0, timerWheel.size());
+		assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+	}
+}